@@ -0,0 +1,191 @@
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import org.appspot.apprtc.janus.JanusId;
+import org.appspot.apprtc.util.LongHashMap;
+
+/**
+ * Picks the active speaker among the remote feeds from their audio levels.
+ *
+ * <p>Levels come from the receive statistics (RtcStatsEngine.InboundRtp.audioLevel) and from
+ * Janus talking events when the room sends them. On every tick each feed's level is smoothed
+ * with a fast attack and a slow release and compared with a noise floor that follows the
+ * quiet level of that feed. A feed above its floor gains speech time, one below loses it; it
+ * starts speaking after SPEAKING_ON_MS of speech and stops when it has none left. The active
+ * speaker only changes to a speaking feed whose speech time has exceeded that of the current
+ * one by SWITCH_MARGIN_MS for SWITCH_HOLD_MS, and never within MIN_HOLD_MS of the last change,
+ * so crosstalk and coughs do not move the layout. A silent room keeps the last speaker.
+ *
+ * <p>Meant to be ticked at 10 to 20 Hz. A feed's slot is allocated when it is first seen,
+ * nothing is allocated per tick or per level. Not thread-safe: use from one thread.
+ */
+public class ActiveSpeakerDetector {
+  public interface Listener {
+    void onSpeakingChanged(long id, boolean speaking);
+    // |previousId| is JanusId.NONE for the first speaker or when the previous one left.
+    void onActiveSpeakerChanged(long id, long previousId);
+  }
+
+  // Smoothing factors per tick for a rising and a falling level.
+  private static final float ATTACK = 0.5f;
+  private static final float RELEASE = 0.1f;
+  // Share of the distance to the level the floor rises by per tick; it falls at once.
+  private static final float FLOOR_RISE = 0.005f;
+  // Linear level above the floor, and absolute, that counts as speech.
+  private static final float SPEECH_ABOVE_FLOOR = 0.03f;
+  private static final float SPEECH_MIN_LEVEL = 0.02f;
+  private static final int MAX_SPEECH_MS = 2000;
+  private static final int SPEAKING_ON_MS = 300;
+  private static final int SWITCH_MARGIN_MS = 500;
+  private static final int SWITCH_HOLD_MS = 400;
+  private static final int MIN_HOLD_MS = 1500;
+  // Longest gap between ticks that is counted, so a stalled thread does not jump the scores.
+  private static final int MAX_TICK_MS = 200;
+
+  private static final class Slot {
+    final long id;
+    float statLevel;
+    float talkingLevel;
+    boolean talking;
+    float level;
+    float floor;
+    int speechMs;
+    boolean speaking;
+
+    Slot(long id) {
+      this.id = id;
+    }
+  }
+
+  private final Listener listener;
+  private final LongHashMap<Slot> slotsById = new LongHashMap<>();
+  private Slot[] slots = new Slot[8];
+  private int count;
+  private long activeId = JanusId.NONE;
+  private long activeSinceMs;
+  private long pendingId = JanusId.NONE;
+  private long pendingSinceMs;
+  private long lastTickMs;
+
+  public ActiveSpeakerDetector(Listener listener) {
+    this.listener = listener;
+  }
+
+  // Linear audio level of |id| from its receive statistics, 0 to 1.
+  public void setLevel(long id, float level) {
+    slot(id).statLevel = level;
+  }
+
+  // A Janus talking or stopped-talking event about |id|, with its average level.
+  public void setTalking(long id, boolean talking, float level) {
+    Slot slot = slot(id);
+    slot.talking = talking;
+    slot.talkingLevel = level;
+  }
+
+  public void tick(long nowMs) {
+    int elapsedMs = lastTickMs == 0 ? 0 : (int) Math.min(nowMs - lastTickMs, MAX_TICK_MS);
+    lastTickMs = nowMs;
+
+    Slot best = null;
+    for (int i = 0; i < count; i++) {
+      Slot slot = slots[i];
+      float input = slot.talking ? Math.max(slot.statLevel, slot.talkingLevel) : slot.statLevel;
+      slot.level += (input > slot.level ? ATTACK : RELEASE) * (input - slot.level);
+      if (slot.level < slot.floor) {
+        slot.floor = slot.level;
+      } else {
+        slot.floor += FLOOR_RISE * (slot.level - slot.floor);
+      }
+
+      boolean speech = slot.talking
+          || (slot.level > SPEECH_MIN_LEVEL && slot.level > slot.floor + SPEECH_ABOVE_FLOOR);
+      slot.speechMs = speech ? Math.min(slot.speechMs + elapsedMs, MAX_SPEECH_MS)
+                             : Math.max(slot.speechMs - elapsedMs, 0);
+      boolean speaking = slot.speaking ? slot.speechMs > 0 : slot.speechMs >= SPEAKING_ON_MS;
+      if (speaking != slot.speaking) {
+        slot.speaking = speaking;
+        listener.onSpeakingChanged(slot.id, speaking);
+      }
+
+      if (speaking && (best == null || slot.speechMs > best.speechMs
+              || (slot.speechMs == best.speechMs && slot.level > best.level))) {
+        best = slot;
+      }
+    }
+    elect(best, nowMs);
+  }
+
+  public long activeSpeaker() {
+    return activeId;
+  }
+
+  public boolean isSpeaking(long id) {
+    Slot slot = slotsById.get(id);
+    return slot != null && slot.speaking;
+  }
+
+  public void remove(long id) {
+    Slot slot = slotsById.remove(id);
+    if (slot == null) return;
+    for (int i = 0; i < count; i++) {
+      if (slots[i] == slot) {
+        slots[i] = slots[--count];
+        slots[count] = null;
+        break;
+      }
+    }
+    if (pendingId == id) pendingId = JanusId.NONE;
+    if (activeId == id) activeId = JanusId.NONE;
+  }
+
+  public void clear() {
+    slotsById.clear();
+    Arrays.fill(slots, 0, count, null);
+    count = 0;
+    activeId = pendingId = JanusId.NONE;
+    lastTickMs = 0;
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  private Slot slot(long id) {
+    Slot slot = slotsById.get(id);
+    if (slot == null) {
+      slot = new Slot(id);
+      slotsById.put(id, slot);
+      if (count == slots.length) slots = Arrays.copyOf(slots, count * 2);
+      slots[count++] = slot;
+    }
+    return slot;
+  }
+
+  private void elect(Slot best, long nowMs) {
+    if (best == null || best.id == activeId) {
+      pendingId = JanusId.NONE;
+      return;
+    }
+    Slot active = slotsById.get(activeId);
+    boolean louder = active == null || !active.speaking
+        || best.speechMs >= active.speechMs + SWITCH_MARGIN_MS;
+    if (!louder) {
+      pendingId = JanusId.NONE;
+      return;
+    }
+    if (pendingId != best.id) {
+      pendingId = best.id;
+      pendingSinceMs = nowMs;
+    }
+    if (active != null
+        && (nowMs - pendingSinceMs < SWITCH_HOLD_MS || nowMs - activeSinceMs < MIN_HOLD_MS)) {
+      return;
+    }
+
+    long previousId = activeId;
+    activeId = best.id;
+    activeSinceMs = nowMs;
+    pendingId = JanusId.NONE;
+    listener.onActiveSpeakerChanged(activeId, previousId);
+  }
+}
@@ -411,6 +411,33 @@ public class ConnectActivity extends Activity {
         VideoRoomActivity.EXTRA_ENABLE_RTCEVENTLOG, R.string.pref_enable_rtceventlog_default,
         useValuesFromIntent);
 
+    // Check multistream subscriptions.
+    boolean multistream = sharedPrefGetBoolean(R.string.pref_multistream_key,
+        VideoRoomActivity.EXTRA_MULTISTREAM, R.string.pref_multistream_default, useValuesFromIntent);
+
+    // Check signaling payload logging.
+    boolean logSignaling = sharedPrefGetBoolean(R.string.pref_log_signaling_key,
+        VideoRoomActivity.EXTRA_LOG_SIGNALING, R.string.pref_log_signaling_default, useValuesFromIntent);
+
+    // Check pausing of off-screen video.
+    boolean pauseOffscreenVideo = sharedPrefGetBoolean(R.string.pref_pause_offscreen_video_key,
+        VideoRoomActivity.EXTRA_PAUSE_OFFSCREEN_VIDEO, R.string.pref_pause_offscreen_video_default,
+        useValuesFromIntent);
+
+    // Check simulcast.
+    boolean simulcast = sharedPrefGetBoolean(R.string.pref_simulcast_key,
+        VideoRoomActivity.EXTRA_SIMULCAST, R.string.pref_simulcast_default, useValuesFromIntent);
+
+    // Check following of the active speaker.
+    boolean followSpeaker = sharedPrefGetBoolean(R.string.pref_follow_speaker_key,
+        VideoRoomActivity.EXTRA_FOLLOW_SPEAKER, R.string.pref_follow_speaker_default,
+        useValuesFromIntent);
+
+    // Check drawing of the small videos into one surface.
+    boolean compositedGrid = sharedPrefGetBoolean(R.string.pref_composited_grid_key,
+        VideoRoomActivity.EXTRA_COMPOSITED_GRID, R.string.pref_composited_grid_default,
+        useValuesFromIntent);
+
     boolean useLegacyAudioDevice = sharedPrefGetBoolean(R.string.pref_use_legacy_audio_device_key,
         VideoRoomActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, R.string.pref_use_legacy_audio_device_default,
         useValuesFromIntent);
@@ -485,6 +512,12 @@ public class ConnectActivity extends Activity {
       intent.putExtra(VideoRoomActivity.EXTRA_DISPLAY_HUD, displayHud);
       intent.putExtra(VideoRoomActivity.EXTRA_TRACING, tracing);
       intent.putExtra(VideoRoomActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
+      intent.putExtra(VideoRoomActivity.EXTRA_MULTISTREAM, multistream);
+      intent.putExtra(VideoRoomActivity.EXTRA_LOG_SIGNALING, logSignaling);
+      intent.putExtra(VideoRoomActivity.EXTRA_PAUSE_OFFSCREEN_VIDEO, pauseOffscreenVideo);
+      intent.putExtra(VideoRoomActivity.EXTRA_SIMULCAST, simulcast);
+      intent.putExtra(VideoRoomActivity.EXTRA_FOLLOW_SPEAKER, followSpeaker);
+      intent.putExtra(VideoRoomActivity.EXTRA_COMPOSITED_GRID, compositedGrid);
       intent.putExtra(VideoRoomActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(VideoRoomActivity.EXTRA_RUNTIME, runTimeMs);
       intent.putExtra(VideoRoomActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, useLegacyAudioDevice);
@@ -18,11 +18,13 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
+import android.support.annotation.Nullable;
+import java.util.List;
 
-import org.webrtc.StatsReport;
-
-import java.util.HashMap;
-import java.util.Map;
+import org.appspot.apprtc.janus.JanusId;
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.EglRenderer;
+import org.webrtc.SurfaceViewRenderer;
 
 /**
  * Fragment for HUD statistics display.
@@ -38,6 +40,7 @@ public class HudFragment extends Fragment {
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  @Nullable private List<SurfaceViewRenderer> renderers;
 
   @Override
   public View onCreateView(
@@ -88,6 +91,11 @@ public class HudFragment extends Fragment {
     super.onStop();
   }
 
+  // Tiles whose render statistics are shown.
+  public void setRenderers(List<SurfaceViewRenderer> renderers) {
+    this.renderers = renderers;
+  }
+
   public void setCpuMonitor(CpuMonitor cpuMonitor) {
     this.cpuMonitor = cpuMonitor;
   }
@@ -103,91 +111,76 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
+  // Rebuilt in place on every update.
+  private final StringBuilder encoderStat = new StringBuilder(128);
+  private final StringBuilder bweStat = new StringBuilder(256);
+  private final StringBuilder connectionStat = new StringBuilder(256);
+  private final StringBuilder videoSendStat = new StringBuilder(256);
+  private final StringBuilder videoRecvStat = new StringBuilder(1024);
+  @Nullable private RtcStatsEngine.Feed publisherFeed;
+
+  private final LongHashMap.Visitor<RtcStatsEngine.Feed> feedAppender = (handleId, feed) -> {
+    if (feed.videoOut.present) {
+      // Send video statistics.
+      publisherFeed = feed;
+      appendId(videoSendStat, handleId).append(' ');
+      appendSize(videoSendStat, feed.videoTrack).append(' ')
+          .append((int) feed.videoOut.framesPerSecond).append("fps ")
+          .append(feed.videoOut.bitrateKbps).append("kbps nack=")
+          .append(feed.videoOut.nackCount).append(" pli=")
+          .append(feed.videoOut.pliCount).append('\n');
+    }
+    if (feed.videoIn.present) {
+      // Receive video statistics.
+      appendId(videoRecvStat, handleId).append(' ');
+      appendSize(videoRecvStat, feed.videoTrack).append(' ')
+          .append((int) feed.videoIn.framesPerSecond).append("fps ")
+          .append(feed.videoIn.bitrateKbps).append("kbps loss=")
+          .append((int) feed.videoIn.lossPercent).append("% jitter=")
+          .append(feed.videoIn.jitterMs).append("ms freezes=")
+          .append(feed.freezeCount()).append('\n');
+    }
+    if (feed.candidatePair.present) {
+      // Connection and BWE statistics of the pair in use.
+      appendId(connectionStat, handleId).append(" rtt=")
+          .append(feed.candidatePair.rttMs).append("ms\n");
+      appendId(bweStat, handleId).append(" out=")
+          .append(feed.candidatePair.availableOutgoingKbps).append("kbps in=")
+          .append(feed.candidatePair.availableIncomingKbps).append("kbps\n");
     }
-    return reportMap;
+  };
+
+  private static StringBuilder appendId(StringBuilder builder, long handleId) {
+    return handleId >= 0 ? builder.append(handleId) : builder.append(JanusId.toString(handleId));
+  }
+
+  private static StringBuilder appendSize(StringBuilder builder, RtcStatsEngine.Track track) {
+    return builder.append(track.frameWidth).append('x').append(track.frameHeight);
   }
 
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  public void updateEncoderStatistics(final RtcStatsEngine stats) {
     if (!isRunning || !displayHud) {
       return;
     }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
-    }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
-
-    if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
-      }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
-      }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+    encoderStat.setLength(0);
+    bweStat.setLength(0);
+    connectionStat.setLength(0);
+    videoSendStat.setLength(0);
+    videoRecvStat.setLength(0);
+    publisherFeed = null;
+
+    stats.forEach(feedAppender);
+    hudViewBwe.setText(bweStat);
+    hudViewConnection.setText(connectionStat);
+    hudViewVideoSend.setText(videoSendStat);
+    hudViewVideoRecv.setText(videoRecvStat);
+
+    if (videoCallEnabled && publisherFeed != null) {
+      encoderStat.append("Fps:  ").append((int) publisherFeed.videoOut.framesPerSecond).append("\n");
+      encoderStat.append("Send BR: ").append(publisherFeed.videoOut.bitrateKbps).append("kbps\n");
+      if (publisherFeed.candidatePair.present) {
+        encoderStat.append("Available BR: ")
+            .append(publisherFeed.candidatePair.availableOutgoingKbps).append("kbps\n");
       }
     }
 
@@ -199,6 +192,17 @@ public class HudFragment extends Fragment {
           .append(". Freq: ")
           .append(cpuMonitor.getFrequencyScaleAverage());
     }
-    encoderStatView.setText(encoderStat.toString());
+    if (renderers != null) {
+      for (int i = 0; i < renderers.size(); i++) {
+        EglRenderer.RenderStats render = renderers.get(i).getRenderStats();
+        if (render == null || render.framesRendered == 0) {
+          continue;
+        }
+        encoderStat.append("\nTile ").append(i).append(": ")
+            .append(render.framesRendered * 1000 / Math.max(render.durationMs, 1)).append("fps ")
+            .append(render.averageRenderTimeUs).append("us");
+      }
+    }
+    encoderStatView.setText(encoderStat);
   }
 }
@@ -0,0 +1,161 @@
+package org.appspot.apprtc;
+
+import android.support.annotation.Nullable;
+
+import org.appspot.apprtc.util.LatencyHistogram;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded, prioritized queue of outgoing signaling messages.
+ *
+ * <p>Messages are ordered by priority first and submission order second: session control
+ * (keepalive, hangup, detach, destroy, claim) goes ahead of regular requests, which go
+ * ahead of trickle. Only one keepalive is queued at a time. When the queue is full a new
+ * message evicts the oldest message of a lower priority, or is rejected if there is none.
+ * Depth, drops and the time messages spent queued are recorded.
+ *
+ * <p>Not thread-safe: use from the WebSocket looper thread, the metrics may be read anywhere.
+ */
+public class OutboundMessageQueue {
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_REQUEST = 1;
+    public static final int PRIORITY_TRICKLE = 2;
+    private static final int PRIORITIES = 3;
+    private static final String JANUS_KEY = "\"janus\":\"";
+
+    private static final class Entry {
+        final String message;
+        final long queuedNanos;
+        final boolean keepAlive;
+
+        Entry(String message, long queuedNanos, boolean keepAlive) {
+            this.message = message;
+            this.queuedNanos = queuedNanos;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Entry>[] queues = new ArrayDeque[PRIORITIES];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final int capacity;
+    private int size;
+    private boolean keepAliveQueued;
+    private volatile int maxDepth;
+    private volatile long dropped;
+    private volatile long coalesced;
+
+    public OutboundMessageQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        for (int i = 0; i < PRIORITIES; i++) queues[i] = new ArrayDeque<>();
+    }
+
+    // The priority of a Janus request, from its "janus" verb.
+    public static int priorityOf(String message) {
+        int index = message.indexOf(JANUS_KEY);
+        if (index < 0) return PRIORITY_REQUEST;
+        index += JANUS_KEY.length();
+        if (verbAt(message, index, "trickle")) return PRIORITY_TRICKLE;
+        if (verbAt(message, index, "keepalive") || verbAt(message, index, "hangup")
+                || verbAt(message, index, "detach") || verbAt(message, index, "destroy")
+                || verbAt(message, index, "claim")) {
+            return PRIORITY_CONTROL;
+        }
+        return PRIORITY_REQUEST;
+    }
+
+    // Returns false if the message was rejected because the queue is full.
+    public boolean offer(String message) {
+        int priority = priorityOf(message);
+        boolean keepAlive = priority == PRIORITY_CONTROL
+                && verbAt(message, message.indexOf(JANUS_KEY) + JANUS_KEY.length(), "keepalive");
+        if (keepAlive && keepAliveQueued) {
+            // The one already queued keeps the session alive just as well.
+            coalesced++;
+            return true;
+        }
+        if (size == capacity && !evictBelow(priority)) {
+            dropped++;
+            return false;
+        }
+        queues[priority].add(new Entry(message, System.nanoTime(), keepAlive));
+        if (keepAlive) keepAliveQueued = true;
+        size++;
+        if (size > maxDepth) maxDepth = size;
+        return true;
+    }
+
+    // The next message to write, its queueing time is recorded.
+    @Nullable
+    public String poll() {
+        for (ArrayDeque<Entry> queue : queues) {
+            Entry entry = queue.poll();
+            if (entry != null) {
+                size--;
+                if (entry.keepAlive) keepAliveQueued = false;
+                latency.record((System.nanoTime() - entry.queuedNanos) / 1000000);
+                return entry.message;
+            }
+        }
+        return null;
+    }
+
+    // Drops everything queued, counted as dropped.
+    public void clear() {
+        dropped += size;
+        for (ArrayDeque<Entry> queue : queues) queue.clear();
+        size = 0;
+        keepAliveQueued = false;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int depth() {
+        return size;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    public long coalesced() {
+        return coalesced;
+    }
+
+    // Time from offer to poll.
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + size + " maxDepth=" + maxDepth + " dropped=" + dropped
+                + " coalesced=" + coalesced + " wait " + latency;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private boolean evictBelow(int priority) {
+        for (int i = PRIORITIES - 1; i > priority; i--) {
+            Entry entry = queues[i].poll();
+            if (entry != null) {
+                size--;
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean verbAt(String message, int index, String verb) {
+        return message.startsWith(verb, index) && message.startsWith("\"", index + verb.length());
+    }
+}
@@ -18,30 +18,30 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 //import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.RecordedAudioToFileController;
 import org.appspot.apprtc.janus.JanusConnection;
 import org.appspot.apprtc.janus.JanusConnection2;
+import org.appspot.apprtc.janus.JanusId;
+import org.appspot.apprtc.util.LaneExecutor;
+import org.appspot.apprtc.util.LongHashMap;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
@@ -67,8 +67,6 @@ import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SoftwareVideoDecoderFactory;
 import org.webrtc.SoftwareVideoEncoderFactory;
-import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoDecoderFactory;
@@ -81,14 +79,14 @@ import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioRecordErrorCallback;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback;
 
-import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoFrame;
 
 /**
  * Peer connection client implementation.
  *
- * <p>All public methods are routed to local looper thread.
- * All PeerConnectionEvents callbacks are invoked from the same looper thread.
+ * <p>All public methods are routed to local looper threads: factory, capture and audio work
+ * to one global thread, the work of each peer connection to the serial lane of its handle.
+ * PeerConnectionEvents callbacks of a handle are invoked from its lane.
  * This class is a singleton.
  */
 public class PeerConnectionClient2 {
@@ -103,6 +101,8 @@ public class PeerConnectionClient2 {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
+  private static final String MEDIA_AUDIO = "audio";
+  private static final String MEDIA_VIDEO = "video";
   private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
@@ -118,16 +118,31 @@ public class PeerConnectionClient2 {
   private static final int HD_VIDEO_WIDTH = 352;
   private static final int HD_VIDEO_HEIGHT = 288;
   private static final int BPS_IN_KBPS = 1000;
+  private static final String[] SIMULCAST_RIDS = {"h", "m", "l"};
+  private static final double[] SIMULCAST_SCALES = {1, 2, 4};
+  private static final int[] SIMULCAST_MAX_KBPS = {900, 300, 100};
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
   // created on the same thread as previously destroyed factory.
   private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Threads shared by the per handle lanes.
+  private static final int LANE_THREADS =
+      Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  // How long close() waits for the connections to be disposed on their lanes.
+  private static final long CLOSE_TIMEOUT_MS = 5000;
+
+  // Operations of one peer connection run in order on the lane of its handle, lanes of
+  // different handles run in parallel. Handle work queued while global work is pending goes
+  // through the global thread first, so it still runs after that global work.
+  private final LaneExecutor lanes = new LaneExecutor("PCLane", LANE_THREADS);
+  private final Object barrier = new Object();
+  private int globalPending;
 
   //private final PCObserver pcObserver = new PCObserver();
   //private final SDPObserver sdpObserver = new SDPObserver();
-  private final Timer statsTimer = new Timer();
+  private final StatsScheduler statsScheduler;
   private final EglBase rootEglBase;
   private final Context appContext;
   private final PeerConnectionParameters peerConnectionParameters;
@@ -137,17 +152,24 @@ public class PeerConnectionClient2 {
   private PeerConnectionFactory factory;
   //@Nullable
   //private PeerConnection peerConnection;
+  // Keyed by Janus handle id and touched from every lane, guarded by their own monitor.
   @Nullable
-  private ConcurrentHashMap<BigInteger,JanusConnection2> peerConnectionMap;
+  private LongHashMap<JanusConnection2> peerConnectionMap;
   @Nullable
-  private ConcurrentHashMap<BigInteger,proxyVideoSinks> videoSinkMap;
+  private LongHashMap<proxyVideoSinks> videoSinkMap;
+  // Multistream subscribers: feed of each audio and video mid, the remote video track of each feed, and the
+  // feed of each receiver track id. All are guarded by the subscriberStreams monitor.
+  private final LongHashMap<Map<String, Long>> subscriberStreams = new LongHashMap<>();
+  private final LongHashMap<VideoTrack> feedTracks = new LongHashMap<>();
+  private final HashMap<String, Long> streamFeeds = new HashMap<>();
+  private final SdpRewriteCache sdpRewrites = new SdpRewriteCache();
   @Nullable
   private AudioSource audioSource;
   @Nullable private SurfaceTextureHelper surfaceTextureHelper;
   @Nullable private VideoSource videoSource;
   private boolean preferIsac;
   private boolean videoCapturerStopped;
-  private boolean isError;
+  private volatile boolean isError;
   @Nullable
   private VideoSink localSink;
   @Nullable private List<VideoSink> remoteSinks;
@@ -157,11 +179,6 @@ public class PeerConnectionClient2 {
   private int videoFps;
   private MediaConstraints audioConstraints;
   private MediaConstraints sdpMediaConstraints;
-  // Queued remote ICE candidates are consumed only after both local and
-  // remote descriptions are set. Similarly local ICE candidates are sent to
-  // remote peer after both local and remote description are set.
-  @Nullable
-  private List<IceCandidate> queuedRemoteCandidates;
   private boolean isInitiator;
   @Nullable
   private SessionDescription localSdp; // either offer or answer SDP
@@ -172,9 +189,11 @@ public class PeerConnectionClient2 {
   @Nullable
   private VideoTrack localVideoTrack;
   @Nullable
-  private VideoTrack remoteVideoTrack;
+  private volatile VideoTrack remoteVideoTrack;
   @Nullable
   private RtpSender localVideoSender;
+  // Publish the camera as three simulcast encodings instead of one.
+  private volatile boolean simulcast;
   // enableAudio is set to true if audio should be sent.
   private boolean enableAudio = false;
   @Nullable
@@ -277,29 +296,30 @@ public class PeerConnectionClient2 {
     /**
      * Callback fired once local SDP is created and set.
      */
-    void onLocalDescription(final SessionDescription sdp, final BigInteger handleId);
+    void onLocalDescription(final SessionDescription sdp, final long handleId);
 
     /**
-     * Callback fired once local Ice candidate is generated.
+     * Callback fired once local Ice candidate is generated, with a null candidate once gathering
+     * is complete.
      */
-    void onIceCandidate(final IceCandidate candidate, final BigInteger handleId);
+    void onIceCandidate(final IceCandidate candidate, final long handleId);
 
     /**
      * Callback fired once local ICE candidates are removed.
      */
-    void onIceCandidatesRemoved(final IceCandidate[] candidates, final BigInteger handleId);
+    void onIceCandidatesRemoved(final IceCandidate[] candidates, final long handleId);
 
     /**
      * Callback fired once connection is established (IceConnectionState is
      * CONNECTED).
      */
-    void onIceConnected(final BigInteger handleId);
+    void onIceConnected(final long handleId);
 
     /**
      * Callback fired once connection is disconnected (IceConnectionState is
      * DISCONNECTED).
      */
-    void onIceDisconnected(final BigInteger handleId);
+    void onIceDisconnected(final long handleId);
 
     /**
      * Callback fired once DTLS connection is established (PeerConnectionState
@@ -319,17 +339,17 @@ public class PeerConnectionClient2 {
     void onPeerConnectionClosed();
 
     /**
-     * Callback fired once peer connection statistics is ready.
+     * Callback fired once the statistics of all handles with stats enabled are ready.
      */
-    void onPeerConnectionStatsReady(final StatsReport[] reports, final BigInteger handleId);
+    void onPeerConnectionStatsReady(final StatsScheduler.Snapshot snapshot);
 
     /**
      * Callback fired once peer connection error happened.
      */
     void onPeerConnectionError(final String description);
 
-    void onLocalRender(final BigInteger handleId);
-    void onRemoteRender(final BigInteger handleId);
+    void onLocalRender(final long handleId);
+    void onRemoteRender(final long handleId);
   }
 
   public static class proxyVideoSinks implements VideoSink {
@@ -363,13 +383,14 @@ public class PeerConnectionClient2 {
     this.events = events;
     this.peerConnectionParameters = peerConnectionParameters;
     this.dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
-	this.peerConnectionMap=new ConcurrentHashMap<>();
-    this.videoSinkMap=new ConcurrentHashMap<>();
+	this.peerConnectionMap=new LongHashMap<>();
+    this.videoSinkMap=new LongHashMap<>();
+    this.statsScheduler = new StatsScheduler(this ::pollStats, events::onPeerConnectionStatsReady);
 
     Log.d(TAG, "Preferred video codec: " + getSdpVideoCodecName(peerConnectionParameters));
 
     final String fieldTrials = getFieldTrials(peerConnectionParameters);
-    executor.execute(() -> {
+    executeGlobal(() -> {
       Log.d(TAG, "Initialize WebRTC. Field trials: " + fieldTrials);
       PeerConnectionFactory.initialize(
           PeerConnectionFactory.InitializationOptions.builder(appContext)
@@ -386,10 +407,10 @@ public class PeerConnectionClient2 {
     if (factory != null) {
       throw new IllegalStateException("PeerConnectionFactory has already been constructed");
     }
-    executor.execute(() -> createPeerConnectionFactoryInternal(options));
+    executeGlobal(() -> createPeerConnectionFactoryInternal(options));
   }
 
-  public void createPeerConnection(final VideoCapturer videoCapturer, final BigInteger handleId) {
+  public void createPeerConnection(final VideoCapturer videoCapturer, final long handleId) {
     if (peerConnectionParameters.videoCallEnabled && videoCapturer == null) {
       Log.w(TAG, "Video call enabled but no video capturer provided.");
     }
@@ -401,7 +422,8 @@ public class PeerConnectionClient2 {
 
     this.videoCapturer = videoCapturer;
     //this.signalingParameters = signalingParameters;
-    executor.execute(() -> {
+    // The publisher creates the shared capture and audio tracks, so it is global work.
+    executeGlobal(() -> {
       try {
         createMediaConstraintsInternal();
         createPeerConnectionInternal(handleId);
@@ -414,7 +436,54 @@ public class PeerConnectionClient2 {
   }
 
   public void close() {
-    executor.execute(this ::closeInternal);
+    executeGlobal(this ::closeInternal);
+  }
+
+  // Queue depth and wait time of the lane of every live handle.
+  public List<LaneExecutor.Lane> getLanes() {
+    return lanes.lanes();
+  }
+
+  // Global work: factory, capture, audio and teardown.
+  private void executeGlobal(final Runnable task) {
+    synchronized (barrier) {
+      globalPending++;
+    }
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        synchronized (barrier) {
+          globalPending--;
+        }
+      }
+    });
+  }
+
+  // Work of the peer connection of |handleId|, in order with its other work.
+  private void execute(final long handleId, final Runnable task) {
+    final LaneExecutor.Lane lane = lanes.lane(handleId);
+    synchronized (barrier) {
+      if (globalPending > 0) {
+        executeGlobal(() -> lane.execute(task));
+        return;
+      }
+    }
+    lane.execute(task);
+  }
+
+  @Nullable
+  private JanusConnection2 connection(long handleId) {
+    synchronized (peerConnectionMap) {
+      return peerConnectionMap.get(handleId);
+    }
+  }
+
+  @Nullable
+  private proxyVideoSinks videoSink(long handleId) {
+    synchronized (videoSinkMap) {
+      return videoSinkMap.get(handleId);
+    }
   }
 
   private boolean isVideoCallEnabled() {
@@ -581,15 +650,12 @@ public class PeerConnectionClient2 {
         "OfferToReceiveVideo", Boolean.toString(isVideoCallEnabled())));
   }
 
-  private void createPeerConnectionInternal(final BigInteger handleId) {
+  private void createPeerConnectionInternal(final long handleId) {
     if (factory == null || isError) {
       Log.e(TAG, "Peerconnection factory is not created");
       return;
     }
     Log.d(TAG, "Create peer connection.");
-
-    queuedRemoteCandidates = new ArrayList<>();
-
     Log.d(TAG, "createPeerConnectioning...");
 
     PeerConnection peerConnection=createPeerConnection(handleId, true);
@@ -628,7 +694,13 @@ public class PeerConnectionClient2 {
 
     List<String> mediaStreamLabels = Collections.singletonList("ARDAMS");
     if (isVideoCallEnabled()) {
-      peerConnection.addTrack(createVideoTrack(videoCapturer, handleId), mediaStreamLabels);
+      VideoTrack videoTrack = createVideoTrack(videoCapturer, handleId);
+      if (simulcast) {
+        peerConnection.addTransceiver(videoTrack, new RtpTransceiver.RtpTransceiverInit(
+            RtpTransceiver.RtpTransceiverDirection.SEND_RECV, mediaStreamLabels, simulcastEncodings()));
+      } else {
+        peerConnection.addTrack(videoTrack, mediaStreamLabels);
+      }
       events.onLocalRender(handleId);
       // We can add the renderers right away because we don't need to wait for an
       // answer to get the remote track.
@@ -664,7 +736,7 @@ public class PeerConnectionClient2 {
     Log.d(TAG, "Peer connection created.");
   }
 
-  private PeerConnection createPeerConnection(final BigInteger handleId, final boolean type) {
+  private PeerConnection createPeerConnection(final long handleId, final boolean type) {
     Log.d(TAG, "Create peer connection.");
     //PeerConnection.IceServer iceServer = new PeerConnection.IceServer("stun:stun.freeswitch.org");
     PeerConnection.IceServer iceServer = new PeerConnection.IceServer("turn:192.168.100.169:3478", "dds", "123456");
@@ -696,9 +768,14 @@ public class PeerConnectionClient2 {
     janusConnection.sdpObserver = sdpObserver;
     janusConnection.peerConnection = peerConnection;
     janusConnection.type = type;
+    janusConnection.queuedRemoteCandidates = new ArrayList<>();
     Log.d(TAG,"We are putting handleId="+handleId);
-    peerConnectionMap.put(handleId, janusConnection);
-    videoSinkMap.put(handleId, new proxyVideoSinks());
+    synchronized (peerConnectionMap) {
+      peerConnectionMap.put(handleId, janusConnection);
+    }
+    synchronized (videoSinkMap) {
+      videoSinkMap.put(handleId, new proxyVideoSinks());
+    }
     pcObserver.setConnection(janusConnection);
     sdpObserver.setConnection(janusConnection);
     Log.d(TAG, "Peer connection created.");
@@ -730,7 +807,7 @@ public class PeerConnectionClient2 {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    statsScheduler.close();
     if (dataChannel != null) {
       dataChannel.dispose();
       dataChannel = null;
@@ -741,25 +818,46 @@ public class PeerConnectionClient2 {
       rtcEventLog = null;
     }
 
-    if (peerConnectionMap != null) {
-      for(JanusConnection2 conn : peerConnectionMap.values()) {
+    // Each connection is disposed on its own lane, behind the work already queued there,
+    // and the factory goes only once all of them are gone. A lane closed by dispose() in the
+    // meantime drops the task, its connection is disposed there.
+    List<JanusConnection2> connections;
+    synchronized (peerConnectionMap) {
+      connections = peerConnectionMap.values();
+    }
+    final CountDownLatch disposed = new CountDownLatch(connections.size());
+    for (final JanusConnection2 conn : connections) {
+      boolean queued = lanes.lane(conn.handleId).submit(() -> {
         if (conn.peerConnection != null) {
           conn.peerConnection.dispose();
           conn.peerConnection = null;
         }
+        disposed.countDown();
+      });
+      if (!queued) disposed.countDown();
+    }
+    try {
+      if (!disposed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        Log.w(TAG, disposed.getCount() + " peer connections not disposed in "
+            + CLOSE_TIMEOUT_MS + " ms");
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    lanes.shutdown();
 
-    peerConnectionMap.clear();
+    synchronized (peerConnectionMap) {
+      peerConnectionMap.clear();
+    }
 
-    if(videoSinkMap != null) {
+    synchronized (videoSinkMap) {
       for(proxyVideoSinks sink : videoSinkMap.values()) {
         if (sink != null) {
           sink.reset();
         }
       }
+      videoSinkMap.clear();
     }
-    videoSinkMap.clear();
 
     Log.d(TAG, "Closing audio source.");
     if (audioSource != null) {
@@ -809,42 +907,42 @@ public class PeerConnectionClient2 {
     return isVideoCallEnabled() && videoWidth * videoHeight >= 1280 * 720;
   }
 
-  @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
-  private void getStats(final BigInteger handleId) {
-    PeerConnection peerConnection=peerConnectionMap.get(handleId).peerConnection;
-	if (peerConnection == null || isError) {
-      return;
-    }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports, handleId);
+  // Runs on the lane of the handle, so the connection cannot be disposed meanwhile.
+  private void pollStats(final long handleId, final StatsScheduler.Batch batch) {
+    execute(handleId, () -> {
+      JanusConnection2 connection = connection(handleId);
+      PeerConnection peerConnection = connection != null ? connection.peerConnection : null;
+      if (peerConnection == null || isError) {
+        batch.deliver(handleId, null);
+        return;
       }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
-    }
+      peerConnection.getStats(report -> batch.deliver(handleId, report));
+    });
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs, final BigInteger handleId) {
+  // Statistics of all enabled handles are polled together, |periodMs| is the shortest interval.
+  public void enableStatsEvents(boolean enable, int periodMs, final long handleId) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats(handleId));
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
+      statsScheduler.setPeriod(periodMs);
+      statsScheduler.add(handleId);
     } else {
-      statsTimer.cancel();
+      statsScheduler.remove(handleId);
     }
   }
 
+  // Whether StatsScheduler consumer |consumer| needs the statistics, they are polled less often
+  // while none does.
+  public void setStatsConsumer(int consumer, boolean active) {
+    statsScheduler.setConsumer(consumer, active);
+  }
+
+  // Takes effect for publishers created afterwards.
+  public void setSimulcast(boolean enable) {
+    simulcast = enable;
+  }
+
   public void setAudioEnabled(final boolean enable) {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       enableAudio = enable;
       if (localAudioTrack != null) {
         localAudioTrack.setEnabled(enableAudio);
@@ -853,7 +951,7 @@ public class PeerConnectionClient2 {
   }
 
   public void setVideoEnabled(final boolean enable) {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       renderVideo = enable;
       if (localVideoTrack != null) {
         localVideoTrack.setEnabled(renderVideo);
@@ -864,10 +962,10 @@ public class PeerConnectionClient2 {
     });
   }
 
-  public void createOffer(final BigInteger handleId) {
-    executor.execute(() -> {
+  public void createOffer(final long handleId) {
+    execute(handleId, () -> {
       Log.d(TAG,"peerConnectionMap get handleId="+handleId);
-      JanusConnection2 connection = peerConnectionMap.get(handleId);
+      JanusConnection2 connection = connection(handleId);
       PeerConnection peerConnection=connection.peerConnection;
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC Create OFFER");
@@ -877,13 +975,19 @@ public class PeerConnectionClient2 {
     });
   }
 
-  public void subscriberHandleRemoteJsep(final BigInteger handleId,final SessionDescription sdp) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = createPeerConnection(handleId, false);
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+  public void subscriberHandleRemoteJsep(final long handleId,final SessionDescription sdp) {
+    execute(handleId, () -> {
+      // A multistream subscriber renegotiates on its existing connection.
+      JanusConnection2 existing = connection(handleId);
+      if (existing != null && existing.peerConnection != null) {
+        existing.sdpObserver.renegotiate();
+      }
+      PeerConnection peerConnection = existing != null && existing.peerConnection != null
+          ? existing.peerConnection : createPeerConnection(handleId, false);
+      JanusConnection2 connection = connection(handleId);
+      SDPObserver sdpObserver = connection.sdpObserver;
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC create ANSWER");
-        JanusConnection2 connection = peerConnectionMap.get(handleId);
         peerConnection.setRemoteDescription(sdpObserver, sdp);
         peerConnection.createAnswer(connection.sdpObserver, sdpMediaConstraints);
       }
@@ -900,13 +1004,15 @@ public class PeerConnectionClient2 {
     });
   }*/
 
-  public void addRemoteIceCandidate(final IceCandidate candidate, final BigInteger handleId) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = createPeerConnection(handleId, false);
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+  public void addRemoteIceCandidate(final IceCandidate candidate, final long handleId) {
+    execute(handleId, () -> {
+      JanusConnection2 existing = connection(handleId);
+      PeerConnection peerConnection = existing != null && existing.peerConnection != null
+          ? existing.peerConnection : createPeerConnection(handleId, false);
+      JanusConnection2 connection = connection(handleId);
       if (peerConnection != null && !isError) {
-        if (queuedRemoteCandidates != null) {
-          queuedRemoteCandidates.add(candidate);
+        if (connection.queuedRemoteCandidates != null) {
+          connection.queuedRemoteCandidates.add(candidate);
         } else {
           peerConnection.addIceCandidate(candidate);
         }
@@ -914,10 +1020,9 @@ public class PeerConnectionClient2 {
     });
   }
 
-  public void removeRemoteIceCandidates(final IceCandidate[] candidates, final BigInteger handleId) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+  public void removeRemoteIceCandidates(final IceCandidate[] candidates, final long handleId) {
+    execute(handleId, () -> {
+      PeerConnection peerConnection = connection(handleId).peerConnection;
       if (peerConnection == null || isError) {
         return;
       }
@@ -928,50 +1033,87 @@ public class PeerConnectionClient2 {
     });
   }
 
-  public void setRemoteDescription(final BigInteger handleId, final SessionDescription sdp) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+  public void setRemoteDescription(final long handleId, final SessionDescription sdp) {
+    execute(handleId, () -> {
+      JanusConnection2 connection = connection(handleId);
+      PeerConnection peerConnection = connection.peerConnection;
+      SDPObserver sdpObserver = connection.sdpObserver;
       if (peerConnection == null || isError) {
         return;
       }
-      String sdpDescription = sdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdpDescription = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-      }
+      String sdpDescription = mungeDescription(sdp.description, true);
       Log.d(TAG, "Set remote SDP.");
       SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
     });
   }
 
-  public void setVideoRender(BigInteger handleId, SurfaceViewRenderer videoRender) {
-    executor.execute(() -> {
-      videoSinkMap.get(handleId).setTarget(videoRender);
+  // Multistream subscriber |handleId| now carries the feeds in |feedsByMid|.
+  public void setSubscriberStreams(final long handleId, final Map<String, Long> feedsByMid) {
+    execute(handleId, () -> {
+      synchronized (subscriberStreams) {
+        subscriberStreams.put(handleId, feedsByMid);
+      }
     });
   }
-  public void dispose(BigInteger handleId) {
-    executor.execute(() -> {
-      videoSinkMap.remove(handleId);
-      JanusConnection2 conn = peerConnectionMap.get(handleId);
-      if (conn.peerConnection != null) {
-        conn.peerConnection.dispose();
-        conn.peerConnection = null;
+
+  // The feed a received stream of |handleId| carries, by the mid of its transceiver or the id of
+  // its receiver track: |handleId| itself unless it is a multistream subscriber, JanusId.NONE for
+  // a stream of no known feed. Any thread.
+  public long streamFeed(long handleId, @Nullable String mid, @Nullable String trackId) {
+    synchronized (subscriberStreams) {
+      Map<String, Long> feeds = subscriberStreams.get(handleId);
+      if (feeds == null) return handleId;
+      Long feedId = mid != null ? feeds.get(mid) : null;
+      if (feedId == null && trackId != null) feedId = streamFeeds.get(trackId);
+      return feedId != null ? feedId : JanusId.NONE;
+    }
+  }
+
+  public void setVideoRender(long handleId, @Nullable VideoSink videoRender) {
+    execute(handleId, () -> {
+      proxyVideoSinks sink = videoSink(handleId);
+      if (sink != null) sink.setTarget(videoRender);
+    });
+  }
+  public void dispose(long handleId) {
+    statsScheduler.remove(handleId);
+    execute(handleId, () -> {
+      proxyVideoSinks sink;
+      synchronized (videoSinkMap) {
+        sink = videoSinkMap.remove(handleId);
+      }
+      // A feed of a multistream subscriber only has a sink on its track.
+      VideoTrack track;
+      synchronized (subscriberStreams) {
+        track = feedTracks.remove(handleId);
+        Map<String, Long> feeds = subscriberStreams.remove(handleId);
+        Iterator<Long> streams = streamFeeds.values().iterator();
+        while (streams.hasNext()) {
+          Long feedId = streams.next();
+          if (feedId == handleId || (feeds != null && feeds.containsValue(feedId))) {
+            streams.remove();
+          }
+        }
+      }
+      if (track != null && sink != null) track.removeSink(sink);
+      JanusConnection2 conn = connection(handleId);
+      if (conn != null) {
+        if (conn.peerConnection != null) {
+          conn.peerConnection.dispose();
+          conn.peerConnection = null;
+        }
+        synchronized (peerConnectionMap) {
+          peerConnectionMap.remove(handleId);
+        }
       }
-      peerConnectionMap.remove(handleId);
+      // Later work for the handle, like late observer callbacks, is dropped by the closed lane.
+      lanes.close(handleId);
     });
   }
 
   public void stopVideoSource() {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       if (videoCapturer != null && !videoCapturerStopped) {
         Log.d(TAG, "Stop video source.");
         try {
@@ -984,7 +1126,7 @@ public class PeerConnectionClient2 {
   }
 
   public void startVideoSource() {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       if (videoCapturer != null && videoCapturerStopped) {
         Log.d(TAG, "Restart video source.");
         videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
@@ -993,10 +1135,9 @@ public class PeerConnectionClient2 {
     });
   }
 
-  public void setVideoMaxBitrate(@Nullable final Integer maxBitrateKbps, final BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-    SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
-    executor.execute(() -> {
+  public void setVideoMaxBitrate(@Nullable final Integer maxBitrateKbps, final long handleId) {
+    execute(handleId, () -> {
+      PeerConnection peerConnection = connection(handleId).peerConnection;
       if (peerConnection == null || localVideoSender == null || isError) {
         return;
       }
@@ -1013,6 +1154,8 @@ public class PeerConnectionClient2 {
       }
 
       for (RtpParameters.Encoding encoding : parameters.encodings) {
+        // With simulcast only the full resolution layer is capped, the others keep their limits.
+        if (parameters.encodings.size() > 1 && !SIMULCAST_RIDS[0].equals(encoding.rid)) continue;
         // Null value means no limit.
         encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
       }
@@ -1025,7 +1168,7 @@ public class PeerConnectionClient2 {
 
   private void reportError(final String errorMessage) {
     Log.e(TAG, "Peerconnection error: " + errorMessage);
-    executor.execute(() -> {
+    executeGlobal(() -> {
       if (!isError) {
         events.onPeerConnectionError(errorMessage);
         isError = true;
@@ -1042,7 +1185,7 @@ public class PeerConnectionClient2 {
   }
 
   @Nullable
-  private VideoTrack createVideoTrack(VideoCapturer capturer, BigInteger handleId) {
+  private VideoTrack createVideoTrack(VideoCapturer capturer, long handleId) {
     surfaceTextureHelper =
         SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext());
     videoSource = factory.createVideoSource(capturer.isScreencast());
@@ -1051,12 +1194,25 @@ public class PeerConnectionClient2 {
 
     localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
     localVideoTrack.setEnabled(renderVideo);
-    localVideoTrack.addSink(videoSinkMap.get(handleId));
+    localVideoTrack.addSink(videoSink(handleId));
     return localVideoTrack;
   }
 
-  private void findVideoSender(final BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
+  // Highest resolution first. Janus numbers the substreams from the lowest, the rids are
+  // the ones janus.js uses.
+  private static List<RtpParameters.Encoding> simulcastEncodings() {
+    List<RtpParameters.Encoding> encodings = new ArrayList<>(SIMULCAST_RIDS.length);
+    for (int i = 0; i < SIMULCAST_RIDS.length; i++) {
+      RtpParameters.Encoding encoding =
+          new RtpParameters.Encoding(SIMULCAST_RIDS[i], true, SIMULCAST_SCALES[i]);
+      encoding.maxBitrateBps = SIMULCAST_MAX_KBPS[i] * BPS_IN_KBPS;
+      encodings.add(encoding);
+    }
+    return encodings;
+  }
+
+  private void findVideoSender(final long handleId) {
+    PeerConnection peerConnection = connection(handleId).peerConnection;
     for (RtpSender sender : peerConnection.getSenders()) {
       if (sender.track() != null) {
         String trackType = sender.track().kind();
@@ -1069,8 +1225,8 @@ public class PeerConnectionClient2 {
   }
 
   // Returns the remote VideoTrack, assuming there is only one.
-  private @Nullable VideoTrack getRemoteVideoTrack(BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
+  private @Nullable VideoTrack getRemoteVideoTrack(long handleId) {
+    PeerConnection peerConnection = connection(handleId).peerConnection;
     for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
       MediaStreamTrack track = transceiver.getReceiver().track();
       if (track instanceof VideoTrack) {
@@ -1108,158 +1264,42 @@ public class PeerConnectionClient2 {
     return fieldTrials;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-    }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
-    }
-    return -1;
+  // Codec preference, and the opus start bitrate for a remote description. The subscribers of
+  // a room get descriptions of one structure, all but the first are rewritten from the cache.
+  private String mungeDescription(String sdpDescription, final boolean remote) {
+    final boolean videoCallEnabled = isVideoCallEnabled();
+    int variant = (remote ? 1 : 0) | (videoCallEnabled ? 2 : 0);
+    return sdpRewrites.rewrite(
+        sdpDescription, variant, sdp -> mungeDescription(sdp, remote, videoCallEnabled));
   }
 
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
+  private void mungeDescription(SdpModel sdp, boolean remote, boolean videoCallEnabled) {
+    if (preferIsac && !sdp.preferCodec(MEDIA_AUDIO, AUDIO_CODEC_ISAC)) {
+      Log.w(TAG, "No payload types with name " + AUDIO_CODEC_ISAC);
     }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
-    }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
-  }
-
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
+    if (videoCallEnabled) {
+      String codec = getSdpVideoCodecName(peerConnectionParameters);
+      if (!sdp.preferCodec(MEDIA_VIDEO, codec)) {
+        Log.w(TAG, "No payload types with name " + codec);
       }
     }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
-    }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
+    if (remote && peerConnectionParameters.audioStartBitrate > 0) {
+      String bitrate = Integer.toString(peerConnectionParameters.audioStartBitrate * 1000);
+      if (!sdp.setCodecParameter(
+              MEDIA_AUDIO, AUDIO_CODEC_OPUS, AUDIO_CODEC_PARAM_BITRATE, bitrate)) {
+        Log.w(TAG, "No rtpmap for " + AUDIO_CODEC_OPUS + " codec");
+      }
     }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
   }
 
-  private void drainCandidates(BigInteger handleId) {
-	PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-    if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-      for (IceCandidate candidate : queuedRemoteCandidates) {
-        peerConnection.addIceCandidate(candidate);
+  private void drainCandidates(long handleId) {
+    JanusConnection2 connection = connection(handleId);
+    if (connection != null && connection.queuedRemoteCandidates != null) {
+      Log.d(TAG, "Add " + connection.queuedRemoteCandidates.size() + " remote candidates");
+      for (IceCandidate candidate : connection.queuedRemoteCandidates) {
+        connection.peerConnection.addIceCandidate(candidate);
       }
-      queuedRemoteCandidates = null;
+      connection.queuedRemoteCandidates = null;
     }
   }
 
@@ -1279,11 +1319,11 @@ public class PeerConnectionClient2 {
   }
 
   public void switchCamera() {
-    executor.execute(this ::switchCameraInternal);
+    executeGlobal(this ::switchCameraInternal);
   }
 
   public void changeCaptureFormat(final int width, final int height, final int framerate) {
-    executor.execute(() -> changeCaptureFormatInternal(width, height, framerate));
+    executeGlobal(() -> changeCaptureFormatInternal(width, height, framerate));
   }
 
   private void changeCaptureFormatInternal(int width, int height, int framerate) {
@@ -1307,12 +1347,13 @@ public class PeerConnectionClient2 {
     }
     @Override
     public void onIceCandidate(final IceCandidate candidate) {
-      executor.execute(() -> events.onIceCandidate(candidate, connection.handleId));
+      execute(connection.handleId, () -> events.onIceCandidate(candidate, connection.handleId));
     }
 
     @Override
     public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-      executor.execute(() -> events.onIceCandidatesRemoved(candidates, connection.handleId));
+      execute(connection.handleId,
+          () -> events.onIceCandidatesRemoved(candidates, connection.handleId));
     }
 
     @Override
@@ -1322,7 +1363,7 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
-      executor.execute(() -> {
+      execute(connection.handleId, () -> {
         Log.d(TAG, "IceConnectionState: " + newState);
         if (newState == IceConnectionState.CONNECTED) {
           events.onIceConnected(connection.handleId);
@@ -1336,7 +1377,7 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onConnectionChange(final PeerConnection.PeerConnectionState newState) {
-      executor.execute(() -> {
+      execute(connection.handleId, () -> {
         Log.d(TAG, "PeerConnectionState: " + newState);
         if (newState == PeerConnectionState.CONNECTED) {
           events.onConnected();
@@ -1351,6 +1392,10 @@ public class PeerConnectionClient2 {
     @Override
     public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
       Log.d(TAG, "IceGatheringState: " + newState);
+      if (newState == PeerConnection.IceGatheringState.COMPLETE) {
+        // A null candidate marks the end of gathering, so signaling can flush its batch.
+        execute(connection.handleId, () -> events.onIceCandidate(null, connection.handleId));
+      }
     }
 
     @Override
@@ -1360,10 +1405,14 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onAddStream(final MediaStream stream) {
-      executor.execute(new Runnable() {
+      execute(connection.handleId, new Runnable() {
         @Override
         public void run() {
-          if (peerConnection == null || isError) {
+          boolean multistream;
+          synchronized (subscriberStreams) {
+            multistream = subscriberStreams.containsKey(connection.handleId);
+          }
+          if (peerConnection == null || isError || multistream) {
             return;
           }
           Log.d(TAG, "==onAddStream tracks size:"+stream.videoTracks.size());
@@ -1371,7 +1420,7 @@ public class PeerConnectionClient2 {
             remoteVideoTrack = stream.videoTracks.get(0);
             remoteVideoTrack.setEnabled(true);
             connection.videoTrack = remoteVideoTrack;
-            connection.videoTrack.addSink(videoSinkMap.get(connection.handleId));
+            connection.videoTrack.addSink(videoSink(connection.handleId));
             events.onRemoteRender(connection.handleId);
           }
         }
@@ -1424,6 +1473,49 @@ public class PeerConnectionClient2 {
     public void onAddTrack(final RtpReceiver receiver, final MediaStream[] mediaStreams) {
       Log.d(TAG, "==onAddTrack mediaStreams size:"+mediaStreams.length);
     }
+
+    // Multistream subscribers render each video transceiver as the feed janus mapped to its mid,
+    // and remember the feed of each receiver track for the stats of its stream.
+    @Override
+    public void onTrack(final RtpTransceiver transceiver) {
+      final String mid = transceiver.getMid();
+      final MediaStreamTrack track = transceiver.getReceiver().track();
+      execute(connection.handleId, () -> {
+        Map<String, Long> feeds;
+        synchronized (subscriberStreams) {
+          feeds = subscriberStreams.get(connection.handleId);
+        }
+        if (feeds == null || track == null || isError) {
+          return;
+        }
+        Long feedId = feeds.get(mid);
+        if (feedId == null) {
+          Log.w(TAG, "No feed for mid " + mid + " of handle " + connection.handleId);
+          return;
+        }
+        synchronized (subscriberStreams) {
+          streamFeeds.put(track.id(), feedId);
+        }
+        if (!(track instanceof VideoTrack)) return;
+        proxyVideoSinks sink;
+        synchronized (videoSinkMap) {
+          sink = videoSinkMap.get(feedId);
+          if (sink == null) {
+            sink = new proxyVideoSinks();
+            videoSinkMap.put(feedId, sink);
+          }
+        }
+        VideoTrack videoTrack = (VideoTrack) track;
+        VideoTrack previous;
+        synchronized (subscriberStreams) {
+          previous = feedTracks.put(feedId, videoTrack);
+        }
+        if (previous != null) previous.removeSink(sink);
+        videoTrack.setEnabled(true);
+        videoTrack.addSink(sink);
+        events.onRemoteRender(feedId);
+      });
+    }
   }
 
   // Implementation detail: handle offer creation/signaling and answer setting,
@@ -1431,9 +1523,15 @@ public class PeerConnectionClient2 {
   public class SDPObserver implements SdpObserver {
     private PeerConnection peerConnection;
     private SDPObserver sdpObserver;
-    private BigInteger handleId;
+    private long handleId;
     private SessionDescription localSdp;
     private boolean type;
+    private boolean settingLocal;
+    // Allows another offer/answer round on the same connection.
+    public void renegotiate() {
+      localSdp = null;
+    }
+
     public void setConnection(JanusConnection2 connection) {
       this.peerConnection = connection.peerConnection;
       this.sdpObserver = connection.sdpObserver;
@@ -1446,19 +1544,13 @@ public class PeerConnectionClient2 {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
+      String sdpDescription = mungeDescription(origSdp.description, false);
       final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
       localSdp = sdp;
-      executor.execute(() -> {
+      execute(handleId, () -> {
         if (peerConnection != null && !isError) {
           Log.d(TAG, "Set local SDP from " + sdp.type);
+          settingLocal = true;
           peerConnection.setLocalDescription(sdpObserver, sdp);
         }
       });
@@ -1466,7 +1558,7 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onSetSuccess() {
-      executor.execute(() -> {
+      execute(handleId, () -> {
         if (peerConnection == null || isError) {
           return;
         }
@@ -1486,9 +1578,10 @@ public class PeerConnectionClient2 {
         } else {
           // For answering peer connection we set remote SDP and then
           // create answer and set local SDP.
-          if (peerConnection.getLocalDescription() != null) {
+          if (settingLocal) {
             // We've just set our local SDP so time to send it, drain
             // remote and send local ICE candidates.
+            settingLocal = false;
             Log.d(TAG, "Local SDP set succesfully");
             events.onLocalDescription(localSdp, handleId);
             drainCandidates(handleId);
@@ -0,0 +1,432 @@
+package org.appspot.apprtc;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Map;
+import org.appspot.apprtc.janus.JanusId;
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Turns StatsScheduler snapshots into typed per-handle records with per-interval deltas.
+ *
+ * <p>Every handle owns one preallocated Feed whose records are overwritten in place on each
+ * snapshot: cumulative counters are read from the RTCStats members into primitives, and the
+ * rates of the interval since the previous report (bitrate, frame rate, loss, jitter, RTT,
+ * freezes) are derived from them. Nothing is allocated per tick once a handle has been seen.
+ *
+ * <p>A multistream subscriber receives every remote feed on one connection. Its inbound-rtp
+ * and track records are told apart by StreamFeeds and go to a Feed of their own per remote
+ * feed, keyed by the feed id; the Feed of the handle keeps the connection-wide records.
+ *
+ * <p>Not thread-safe: update and read on one thread.
+ */
+public class RtcStatsEngine {
+  /**
+   * Tells which feed a received stream of a handle carries.
+   */
+  public interface StreamFeeds {
+    // The feed of the stream with transceiver |mid| or receiver track |trackIdentifier| on
+    // |handleId|, either may be null: |handleId| itself where the handle carries a single feed,
+    // JanusId.NONE for a stream of no known feed.
+    long feedOf(long handleId, @Nullable String mid, @Nullable String trackIdentifier);
+  }
+
+  /**
+   * outbound-rtp of one kind, summed over the streams of that kind on the connection: the
+   * simulcast layers of a video sender.
+   */
+  public static final class OutboundRtp {
+    public boolean present;
+    public int streams;
+    // Cumulative. framesEncoded is the most of any stream, the layers encode the same frames.
+    public long bytesSent;
+    public long packetsSent;
+    public long framesEncoded;
+    public long nackCount;
+    public long pliCount;
+    // Over the last interval.
+    public int bitrateKbps;
+    public float packetsPerSecond;
+    public float framesPerSecond;
+
+    private long lastBytesSent;
+    private long lastPacketsSent;
+    private long lastFramesEncoded;
+
+    private void add(Map<String, Object> members) {
+      if (!present) {
+        present = true;
+        streams = 0;
+        bytesSent = packetsSent = framesEncoded = nackCount = pliCount = 0;
+      }
+      streams++;
+      bytesSent += longMember(members, "bytesSent");
+      packetsSent += longMember(members, "packetsSent");
+      framesEncoded = Math.max(framesEncoded, longMember(members, "framesEncoded"));
+      nackCount += longMember(members, "nackCount");
+      pliCount += longMember(members, "pliCount");
+    }
+
+    private void delta(double seconds, boolean first) {
+      // A layer going away lowers the sums, that interval reads as 0.
+      if (!first && seconds > 0) {
+        bitrateKbps = (int) (Math.max(0, bytesSent - lastBytesSent) * 8 / seconds / 1000);
+        packetsPerSecond = (float) (Math.max(0, packetsSent - lastPacketsSent) / seconds);
+        framesPerSecond = (float) (Math.max(0, framesEncoded - lastFramesEncoded) / seconds);
+      }
+      lastBytesSent = bytesSent;
+      lastPacketsSent = packetsSent;
+      lastFramesEncoded = framesEncoded;
+    }
+  }
+
+  /**
+   * inbound-rtp of one kind, the first stream of that kind on the connection or, for a
+   * multistream subscriber, of that kind of the feed.
+   */
+  public static final class InboundRtp {
+    public boolean present;
+    // Cumulative.
+    public long bytesReceived;
+    public long packetsReceived;
+    public long packetsLost;
+    public long framesDecoded;
+    public double jitterSeconds;
+    public double totalDecodeSeconds;
+    public double totalAudioEnergy;
+    public double totalSamplesDuration;
+    // Over the last interval.
+    public int bitrateKbps;
+    public float framesPerSecond;
+    // 0 where the decode time is not reported.
+    public float decodeMsPerFrame;
+    public float lossPercent;
+    public int jitterMs;
+    // An interval with packets but no decoded frame starts a freeze.
+    public boolean frozen;
+    public int freezeCount;
+    // Audio only, linear 0 to 1: the RMS level over the last interval from the audio energy,
+    // or the last level reported where the energy is not.
+    public float audioLevel;
+
+    private long lastBytesReceived;
+    private long lastPacketsReceived;
+    private long lastPacketsLost;
+    private long lastFramesDecoded;
+    private double lastTotalDecodeSeconds;
+    private double lastTotalAudioEnergy;
+    private double lastTotalSamplesDuration;
+    private double reportedAudioLevel;
+
+    private void read(Map<String, Object> members) {
+      present = true;
+      bytesReceived = longMember(members, "bytesReceived");
+      packetsReceived = longMember(members, "packetsReceived");
+      packetsLost = longMember(members, "packetsLost");
+      framesDecoded = longMember(members, "framesDecoded");
+      jitterSeconds = doubleMember(members, "jitter");
+      totalDecodeSeconds = doubleMember(members, "totalDecodeTime");
+      readAudio(members);
+    }
+
+    // Levels are on inbound-rtp in newer WebRTC versions, on the receiving track in older ones.
+    private void readAudio(Map<String, Object> members) {
+      if (members.containsKey("totalAudioEnergy")) {
+        totalAudioEnergy = doubleMember(members, "totalAudioEnergy");
+        totalSamplesDuration = doubleMember(members, "totalSamplesDuration");
+      }
+      if (members.containsKey("audioLevel")) {
+        reportedAudioLevel = doubleMember(members, "audioLevel");
+      }
+    }
+
+    private void delta(double seconds, boolean first, boolean video) {
+      jitterMs = (int) (jitterSeconds * 1000);
+      if (!first && seconds > 0) {
+        long bytes = bytesReceived - lastBytesReceived;
+        long packets = packetsReceived - lastPacketsReceived;
+        long lost = packetsLost - lastPacketsLost;
+        long frames = framesDecoded - lastFramesDecoded;
+        bitrateKbps = (int) (bytes * 8 / seconds / 1000);
+        framesPerSecond = (float) (frames / seconds);
+        lossPercent = packets + lost > 0 ? Math.max(0, lost) * 100f / (packets + lost) : 0;
+        decodeMsPerFrame =
+            frames > 0 ? (float) ((totalDecodeSeconds - lastTotalDecodeSeconds) * 1000 / frames) : 0;
+        boolean stalled = video && packets > 0 && frames == 0;
+        if (stalled && !frozen) {
+          freezeCount++;
+        }
+        frozen = stalled;
+      }
+      if (!video) {
+        double duration = totalSamplesDuration - lastTotalSamplesDuration;
+        audioLevel = !first && duration > 0
+            ? (float) Math.sqrt(Math.max(0, totalAudioEnergy - lastTotalAudioEnergy) / duration)
+            : (float) reportedAudioLevel;
+        lastTotalAudioEnergy = totalAudioEnergy;
+        lastTotalSamplesDuration = totalSamplesDuration;
+      }
+      lastBytesReceived = bytesReceived;
+      lastPacketsReceived = packetsReceived;
+      lastPacketsLost = packetsLost;
+      lastFramesDecoded = framesDecoded;
+      lastTotalDecodeSeconds = totalDecodeSeconds;
+    }
+  }
+
+  /**
+   * The nominated, succeeded candidate-pair.
+   */
+  public static final class CandidatePair {
+    public boolean present;
+    public int rttMs;
+    public int availableOutgoingKbps;
+    public int availableIncomingKbps;
+
+    private void read(Map<String, Object> members) {
+      present = true;
+      rttMs = (int) (doubleMember(members, "currentRoundTripTime") * 1000);
+      availableOutgoingKbps = (int) (doubleMember(members, "availableOutgoingBitrate") / 1000);
+      availableIncomingKbps = (int) (doubleMember(members, "availableIncomingBitrate") / 1000);
+    }
+  }
+
+  /**
+   * The video track, local for a publisher and remote for a subscriber.
+   */
+  public static final class Track {
+    public boolean present;
+    public boolean remoteSource;
+    public int frameWidth;
+    public int frameHeight;
+    public long framesDropped;
+    // Reported by the track where available, -1 otherwise.
+    public long freezeCount;
+    // Frames dropped over the last interval.
+    public long framesDroppedDelta;
+
+    private long lastFramesDropped;
+
+    private void read(Map<String, Object> members) {
+      present = true;
+      remoteSource = Boolean.TRUE.equals(members.get("remoteSource"));
+      frameWidth = (int) longMember(members, "frameWidth");
+      frameHeight = (int) longMember(members, "frameHeight");
+      framesDropped = longMember(members, "framesDropped");
+      Object freezes = members.get("freezeCount");
+      freezeCount = freezes instanceof Number ? ((Number) freezes).longValue() : -1;
+    }
+
+    private void delta(boolean first) {
+      framesDroppedDelta = first ? 0 : Math.max(0, framesDropped - lastFramesDropped);
+      lastFramesDropped = framesDropped;
+    }
+  }
+
+  /**
+   * Records of one handle, or of one feed of a multistream subscriber.
+   */
+  public static final class Feed {
+    // The feed id for a feed of a multistream subscriber.
+    public final long handleId;
+    // The handle whose connection carries the feed, |handleId| for a handle.
+    public final long connectionHandleId;
+    public final OutboundRtp videoOut = new OutboundRtp();
+    public final OutboundRtp audioOut = new OutboundRtp();
+    public final InboundRtp videoIn = new InboundRtp();
+    public final InboundRtp audioIn = new InboundRtp();
+    public final CandidatePair candidatePair = new CandidatePair();
+    public final Track videoTrack = new Track();
+    // Report timestamp, and the interval the deltas cover.
+    public long timestampUs;
+    public int intervalMs;
+
+    private long generation;
+    private boolean first;
+    private double seconds;
+
+    private Feed(long handleId, long connectionHandleId) {
+      this.handleId = handleId;
+      this.connectionHandleId = connectionHandleId;
+    }
+
+    // Freezes of the received video, from the track when it counts them.
+    public long freezeCount() {
+      return videoTrack.present && videoTrack.freezeCount >= 0 ? videoTrack.freezeCount
+                                                                : videoIn.freezeCount;
+    }
+
+    // Starts a report taken at |nowUs|, records missing from it are not present.
+    private void begin(long nowUs) {
+      first = timestampUs == 0;
+      seconds = (nowUs - timestampUs) / 1e6;
+      intervalMs = first ? 0 : (int) (seconds * 1000);
+      timestampUs = nowUs;
+
+      videoOut.present = audioOut.present = false;
+      videoIn.present = audioIn.present = false;
+      candidatePair.present = videoTrack.present = false;
+    }
+
+    private void finish() {
+      videoOut.delta(seconds, first);
+      audioOut.delta(seconds, first);
+      videoIn.delta(seconds, first, true);
+      audioIn.delta(seconds, first, false);
+      if (videoTrack.present) videoTrack.delta(first);
+    }
+  }
+
+  @Nullable private final StreamFeeds streamFeeds;
+  private final LongHashMap<Feed> feeds = new LongHashMap<>();
+  // Feeds of multistream streams in the report being read.
+  private final ArrayList<Feed> streams = new ArrayList<>();
+  private long generation;
+  private int current;
+
+  // Without |streamFeeds| every handle is one feed.
+  public RtcStatsEngine(@Nullable StreamFeeds streamFeeds) {
+    this.streamFeeds = streamFeeds;
+  }
+
+  // Folds |snapshot| into the feeds; handles and streams missing from it are forgotten.
+  public void update(StatsScheduler.Snapshot snapshot) {
+    generation++;
+    current = 0;
+    for (int i = 0; i < snapshot.size(); i++) {
+      long handleId = snapshot.handleId(i);
+      Feed feed = feeds.get(handleId);
+      if (feed == null) {
+        feed = new Feed(handleId, handleId);
+        feeds.put(handleId, feed);
+      }
+      RTCStatsReport report = snapshot.report(i);
+      long nowUs = (long) report.getTimestampUs();
+      feed.generation = generation;
+      current++;
+      feed.begin(nowUs);
+      read(feed, report, nowUs);
+      feed.finish();
+      for (int j = 0; j < streams.size(); j++) streams.get(j).finish();
+      streams.clear();
+    }
+    if (feeds.size() > current) {
+      for (Feed feed : feeds.values()) {
+        if (feed.generation != generation) feeds.remove(feed.handleId);
+      }
+    }
+  }
+
+  @Nullable
+  public Feed feed(long handleId) {
+    return feeds.get(handleId);
+  }
+
+  public void forEach(LongHashMap.Visitor<Feed> visitor) {
+    feeds.forEach(visitor);
+  }
+
+  public int size() {
+    return feeds.size();
+  }
+
+  public void clear() {
+    feeds.clear();
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  private void read(Feed feed, RTCStatsReport report, long nowUs) {
+    Map<String, RTCStats> statsMap = report.getStatsMap();
+    for (RTCStats stats : statsMap.values()) {
+      Map<String, Object> members = stats.getMembers();
+      switch (stats.getType()) {
+        case "outbound-rtp":
+          (isVideo(members) ? feed.videoOut : feed.audioOut).add(members);
+          break;
+        case "inbound-rtp": {
+          Feed target =
+              streamFeed(feed, nowUs, members.get("mid"), trackIdentifier(statsMap, members));
+          if (target == null) break;
+          InboundRtp record = isVideo(members) ? target.videoIn : target.audioIn;
+          if (!record.present) record.read(members);
+          break;
+        }
+        case "candidate-pair":
+          if (!feed.candidatePair.present && Boolean.TRUE.equals(members.get("nominated"))
+              && "succeeded".equals(members.get("state"))) {
+            feed.candidatePair.read(members);
+          }
+          break;
+        case "track": {
+          Feed target = streamFeed(feed, nowUs, null, members.get("trackIdentifier"));
+          if (target == null) break;
+          if (isVideo(members)) {
+            if (!target.videoTrack.present) target.videoTrack.read(members);
+          } else if (Boolean.TRUE.equals(members.get("remoteSource"))) {
+            target.audioIn.readAudio(members);
+          }
+          break;
+        }
+        default:
+          break;
+      }
+    }
+  }
+
+  // The Feed a received stream of |feed| goes to, null if it carries no known feed.
+  @Nullable
+  private Feed streamFeed(
+      Feed feed, long nowUs, @Nullable Object mid, @Nullable Object trackIdentifier) {
+    if (streamFeeds == null) return feed;
+    long feedId = streamFeeds.feedOf(feed.handleId, mid instanceof String ? (String) mid : null,
+        trackIdentifier instanceof String ? (String) trackIdentifier : null);
+    if (feedId == feed.handleId) return feed;
+    if (feedId == JanusId.NONE) return null;
+
+    Feed stream = feeds.get(feedId);
+    if (stream == null) {
+      stream = new Feed(feedId, feed.handleId);
+      feeds.put(feedId, stream);
+    }
+    if (stream.generation != generation) {
+      stream.generation = generation;
+      current++;
+      stream.begin(nowUs);
+      streams.add(stream);
+    }
+    return stream;
+  }
+
+  // ----------------------------------------------------------------------------
+  // Member access
+  // ----------------------------------------------------------------------------
+  // The id of the receiver track an inbound-rtp record refers to, on versions without "mid".
+  @Nullable
+  private static Object trackIdentifier(
+      Map<String, RTCStats> statsMap, Map<String, Object> members) {
+    Object trackId = members.get("trackId");
+    RTCStats track = trackId instanceof String ? statsMap.get(trackId) : null;
+    return track != null ? track.getMembers().get("trackIdentifier") : null;
+  }
+
+  private static boolean isVideo(Map<String, Object> members) {
+    Object kind = members.get("kind");
+    if (kind == null) kind = members.get("mediaType");
+    return "video".equals(kind);
+  }
+
+  // Integer, Long and BigInteger members alike, 0 when absent.
+  private static long longMember(Map<String, Object> members, String name) {
+    Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  private static double doubleMember(Map<String, Object> members, String name) {
+    Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).doubleValue() : 0;
+  }
+}
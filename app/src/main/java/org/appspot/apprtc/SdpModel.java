@@ -0,0 +1,378 @@
+package org.appspot.apprtc;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A session description parsed into its media sections, for munging before it is applied.
+ *
+ * <p>parse() reads the description in one pass. Every media section keeps its lines in
+ * order, together with the payload types of its m= line and the codecs of its rtpmap lines,
+ * so an edit touches only the lines it changes; removed lines are left as holes until
+ * toString() writes the whole description once. Lines the model does not understand are
+ * written back unchanged.
+ *
+ * <p>Not thread-safe.
+ */
+public final class SdpModel {
+  private static final String CRLF = "\r\n";
+  private static final String RTPMAP = "a=rtpmap:";
+  private static final String FMTP = "a=fmtp:";
+  private static final String RTCP_FB = "a=rtcp-fb:";
+  private static final String EXTMAP = "a=extmap:";
+  private static final String BANDWIDTH_AS = "b=AS:";
+  private static final String BANDWIDTH_TIAS = "b=TIAS:";
+
+  /**
+   * A payload type of a media section, from its a=rtpmap line.
+   */
+  public static final class Codec {
+    public final String payloadType;
+    public final String name;
+    public final int clockRate;
+    private final int rtpmapLine;
+    private int fmtpLine = -1;
+    // a=fmtp line of a codec that had none, written after its rtpmap.
+    @Nullable private String addedFmtp;
+    @Nullable private String associatedPayloadType;
+
+    private Codec(String payloadType, String name, int clockRate, int rtpmapLine) {
+      this.payloadType = payloadType;
+      this.name = name;
+      this.clockRate = clockRate;
+      this.rtpmapLine = rtpmapLine;
+    }
+
+    // Payload type an rtx codec retransmits, null for other codecs.
+    @Nullable
+    public String associatedPayloadType() {
+      return associatedPayloadType;
+    }
+  }
+
+  /**
+   * One m= section and the lines up to the next one.
+   */
+  public static final class Media {
+    // audio, video or application.
+    public final String kind;
+    // m=<media> <port> <proto>, the formats follow.
+    private final String header;
+    private final ArrayList<String> formats = new ArrayList<>();
+    private final ArrayList<Codec> codecs = new ArrayList<>();
+    // Lines after the m= line, null where removed, and the payload type each belongs to.
+    private final ArrayList<String> lines = new ArrayList<>();
+    private final ArrayList<String> linePayloadTypes = new ArrayList<>();
+    // Bandwidth lines are kept apart and written before line |bandwidthLine|; 0 when absent.
+    private int asKbps;
+    private long tiasBps;
+    private int bandwidthLine;
+    private boolean fmtpAdded;
+
+    private Media(String mLine) {
+      int kindEnd = mLine.indexOf(' ');
+      int portEnd = kindEnd < 0 ? -1 : mLine.indexOf(' ', kindEnd + 1);
+      int protoEnd = portEnd < 0 ? -1 : mLine.indexOf(' ', portEnd + 1);
+      kind = mLine.substring(2, kindEnd < 0 ? mLine.length() : kindEnd);
+      if (protoEnd < 0) {
+        header = mLine;
+        return;
+      }
+      header = mLine.substring(0, protoEnd);
+      int start = protoEnd + 1;
+      while (start < mLine.length()) {
+        int end = mLine.indexOf(' ', start);
+        if (end < 0) end = mLine.length();
+        if (end > start) formats.add(mLine.substring(start, end));
+        start = end + 1;
+      }
+    }
+
+    public List<String> formats() {
+      return formats;
+    }
+
+    public List<Codec> codecs() {
+      return codecs;
+    }
+
+    @Nullable
+    public Codec codec(String payloadType) {
+      for (int i = 0; i < codecs.size(); i++) {
+        if (codecs.get(i).payloadType.equals(payloadType)) return codecs.get(i);
+      }
+      return null;
+    }
+
+    // Moves the payload types named |name| to the front of the m= line; false if there are none.
+    public boolean preferCodec(String name) {
+      int front = 0;
+      for (int i = 0; i < codecs.size(); i++) {
+        Codec codec = codecs.get(i);
+        if (!codec.name.equalsIgnoreCase(name)) continue;
+        int index = formats.indexOf(codec.payloadType);
+        if (index < 0) continue;
+        formats.remove(index);
+        formats.add(front++, codec.payloadType);
+      }
+      return front > 0;
+    }
+
+    // Sets |key| in the a=fmtp line of every payload type named |name|, adding the line where
+    // there is none; false if there are no such payload types.
+    public boolean setCodecParameter(String name, String key, String value) {
+      boolean found = false;
+      for (int i = 0; i < codecs.size(); i++) {
+        Codec codec = codecs.get(i);
+        if (!codec.name.equalsIgnoreCase(name)) continue;
+        found = true;
+        if (codec.fmtpLine >= 0) {
+          lines.set(codec.fmtpLine, withParameter(lines.get(codec.fmtpLine), key, value));
+        } else if (codec.addedFmtp != null) {
+          codec.addedFmtp = withParameter(codec.addedFmtp, key, value);
+        } else {
+          codec.addedFmtp = FMTP + codec.payloadType + " " + key + "=" + value;
+          fmtpAdded = true;
+        }
+      }
+      return found;
+    }
+
+    // Session bandwidth of the section as b=AS and b=TIAS, 0 to remove both.
+    public void setBandwidth(int kbps) {
+      asKbps = kbps;
+      tiasBps = kbps * 1000L;
+    }
+
+    public int bandwidthKbps() {
+      return asKbps > 0 ? asKbps : (int) (tiasBps / 1000);
+    }
+
+    // Removes the payload types named |name| (red, ulpfec, flexfec-03, ...) with their rtx
+    // payload types and every line of them; returns how many payload types went.
+    public int removeCodec(String name) {
+      ArrayList<String> removed = new ArrayList<>();
+      for (int i = 0; i < codecs.size(); i++) {
+        if (codecs.get(i).name.equalsIgnoreCase(name)) removed.add(codecs.get(i).payloadType);
+      }
+      if (removed.isEmpty()) return 0;
+      for (int i = 0; i < codecs.size(); i++) {
+        Codec codec = codecs.get(i);
+        if (codec.associatedPayloadType != null && removed.contains(codec.associatedPayloadType)) {
+          removed.add(codec.payloadType);
+        }
+      }
+      for (int i = codecs.size() - 1; i >= 0; i--) {
+        if (removed.contains(codecs.get(i).payloadType)) codecs.remove(i);
+      }
+      formats.removeAll(removed);
+      for (int i = 0; i < lines.size(); i++) {
+        String payloadType = linePayloadTypes.get(i);
+        if (payloadType != null && removed.contains(payloadType)) lines.set(i, null);
+      }
+      return removed.size();
+    }
+
+    // Removes the header extension |uri|; false if the section does not negotiate it.
+    public boolean removeExtmap(String uri) {
+      boolean found = false;
+      for (int i = 0; i < lines.size(); i++) {
+        String line = lines.get(i);
+        if (line == null || !line.startsWith(EXTMAP)) continue;
+        int start = line.indexOf(' ', EXTMAP.length()) + 1;
+        int end = start + uri.length();
+        if (start > 0 && line.startsWith(uri, start)
+            && (end == line.length() || line.charAt(end) == ' ')) {
+          lines.set(i, null);
+          found = true;
+        }
+      }
+      return found;
+    }
+
+    private void add(String line) {
+      String payloadType = null;
+      if (line.startsWith(RTPMAP)) {
+        payloadType = token(line, RTPMAP.length());
+        int nameStart = RTPMAP.length() + payloadType.length() + 1;
+        if (nameStart < line.length()) {
+          int slash = line.indexOf('/', nameStart);
+          String name = line.substring(nameStart, slash < 0 ? line.length() : slash);
+          codecs.add(new Codec(payloadType, name, slash < 0 ? 0 : parseInt(line, slash + 1),
+              lines.size()));
+        }
+      } else if (line.startsWith(FMTP)) {
+        payloadType = token(line, FMTP.length());
+        Codec codec = codec(payloadType);
+        if (codec != null) {
+          codec.fmtpLine = lines.size();
+          int apt = line.indexOf("apt=");
+          if (apt > 0) codec.associatedPayloadType = token(line, apt + 4);
+        }
+      } else if (line.startsWith(RTCP_FB)) {
+        payloadType = token(line, RTCP_FB.length());
+      } else if (line.startsWith(BANDWIDTH_AS)) {
+        asKbps = parseInt(line, BANDWIDTH_AS.length());
+        bandwidthLine = lines.size();
+        return;
+      } else if (line.startsWith(BANDWIDTH_TIAS)) {
+        tiasBps = parseInt(line, BANDWIDTH_TIAS.length());
+        bandwidthLine = lines.size();
+        return;
+      } else if (line.startsWith("c=") || line.startsWith("i=")) {
+        // b= lines follow i= and c=.
+        bandwidthLine = lines.size() + 1;
+      }
+      lines.add(line);
+      linePayloadTypes.add(payloadType);
+    }
+
+    private void write(StringBuilder out) {
+      out.append(header);
+      for (int i = 0; i < formats.size(); i++) out.append(' ').append(formats.get(i));
+      out.append(CRLF);
+      for (int i = 0; i <= lines.size(); i++) {
+        if (i == bandwidthLine) {
+          if (asKbps > 0) out.append(BANDWIDTH_AS).append(asKbps).append(CRLF);
+          if (tiasBps > 0) out.append(BANDWIDTH_TIAS).append(tiasBps).append(CRLF);
+        }
+        if (i == lines.size()) break;
+        String line = lines.get(i);
+        if (line == null) continue;
+        out.append(line).append(CRLF);
+        if (fmtpAdded && linePayloadTypes.get(i) != null && line.startsWith(RTPMAP)) {
+          Codec codec = codec(linePayloadTypes.get(i));
+          if (codec != null && codec.rtpmapLine == i && codec.addedFmtp != null) {
+            out.append(codec.addedFmtp).append(CRLF);
+          }
+        }
+      }
+    }
+  }
+
+  private final ArrayList<String> sessionLines = new ArrayList<>();
+  private final ArrayList<Media> media = new ArrayList<>();
+  private final int sourceLength;
+
+  private SdpModel(int sourceLength) {
+    this.sourceLength = sourceLength;
+  }
+
+  // Accepts CRLF and bare LF line ends.
+  public static SdpModel parse(String sdp) {
+    SdpModel model = new SdpModel(sdp.length());
+    Media current = null;
+    int start = 0;
+    while (start < sdp.length()) {
+      int end = sdp.indexOf('\n', start);
+      if (end < 0) end = sdp.length();
+      int lineEnd = end > start && sdp.charAt(end - 1) == '\r' ? end - 1 : end;
+      if (lineEnd > start) {
+        String line = sdp.substring(start, lineEnd);
+        if (line.startsWith("m=")) {
+          current = new Media(line);
+          model.media.add(current);
+        } else if (current == null) {
+          model.sessionLines.add(line);
+        } else {
+          current.add(line);
+        }
+      }
+      start = end + 1;
+    }
+    return model;
+  }
+
+  public List<Media> media() {
+    return media;
+  }
+
+  // Media.preferCodec() on every section of |kind|.
+  public boolean preferCodec(String kind, String name) {
+    boolean found = false;
+    for (int i = 0; i < media.size(); i++) {
+      if (media.get(i).kind.equals(kind)) found |= media.get(i).preferCodec(name);
+    }
+    return found;
+  }
+
+  public boolean setCodecParameter(String kind, String name, String key, String value) {
+    boolean found = false;
+    for (int i = 0; i < media.size(); i++) {
+      if (media.get(i).kind.equals(kind)) found |= media.get(i).setCodecParameter(name, key, value);
+    }
+    return found;
+  }
+
+  public void setBandwidth(String kind, int kbps) {
+    for (int i = 0; i < media.size(); i++) {
+      if (media.get(i).kind.equals(kind)) media.get(i).setBandwidth(kbps);
+    }
+  }
+
+  public int removeCodec(String kind, String name) {
+    int removed = 0;
+    for (int i = 0; i < media.size(); i++) {
+      if (media.get(i).kind.equals(kind)) removed += media.get(i).removeCodec(name);
+    }
+    return removed;
+  }
+
+  public boolean removeExtmap(String uri) {
+    boolean found = false;
+    for (int i = 0; i < media.size(); i++) found |= media.get(i).removeExtmap(uri);
+    return found;
+  }
+
+  // The description with CRLF line ends.
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder(sourceLength + 256);
+    for (int i = 0; i < sessionLines.size(); i++) out.append(sessionLines.get(i)).append(CRLF);
+    for (int i = 0; i < media.size(); i++) media.get(i).write(out);
+    return out.toString();
+  }
+
+  // ----------------------------------------------------------------------------
+  // Line parsing
+  // ----------------------------------------------------------------------------
+  // Characters from |start| up to a space, slash or semicolon.
+  private static String token(String line, int start) {
+    int end = start;
+    while (end < line.length()) {
+      char c = line.charAt(end);
+      if (c == ' ' || c == '/' || c == ';') break;
+      end++;
+    }
+    return line.substring(start, end);
+  }
+
+  private static int parseInt(String line, int start) {
+    int value = 0;
+    for (int i = start; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c < '0' || c > '9') break;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  // |fmtp| with |key| set to |value|, replacing an existing value.
+  private static String withParameter(String fmtp, String key, String value) {
+    int params = fmtp.indexOf(' ');
+    int start = params + 1;
+    while (params > 0 && start < fmtp.length()) {
+      int end = fmtp.indexOf(';', start);
+      if (end < 0) end = fmtp.length();
+      int keyStart = start;
+      while (keyStart < end && fmtp.charAt(keyStart) == ' ') keyStart++;
+      if (fmtp.startsWith(key, keyStart) && keyStart + key.length() < end
+          && fmtp.charAt(keyStart + key.length()) == '=') {
+        return fmtp.substring(0, keyStart + key.length() + 1) + value + fmtp.substring(end);
+      }
+      start = end + 1;
+    }
+    return fmtp + (params > 0 ? "; " : " ") + key + "=" + value;
+  }
+}
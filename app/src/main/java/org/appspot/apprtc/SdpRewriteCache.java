@@ -0,0 +1,350 @@
+package org.appspot.apprtc;
+
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Munged session descriptions by structure, so near-identical descriptions are rewritten
+ * without being parsed again.
+ *
+ * <p>Janus sends every subscriber of a room an offer that differs from the others only in its
+ * origin line, ICE credentials and candidates, DTLS fingerprint, ssrcs and msids. The first
+ * description of a structure is munged in full through SdpModel, and the line edits between it
+ * and the result are recorded as a plan under the structural fingerprint of the input: a hash
+ * of every line but those. A later description with the same fingerprint is rewritten by one
+ * scan that copies its lines and applies the plan. The scan checks every structural line
+ * against the first description, and falls back to a full munge on any difference.
+ *
+ * <p>Plans that would copy a volatile line of the first description into later ones are not
+ * used. Thread-safe.
+ */
+public final class SdpRewriteCache {
+  /**
+   * The edits to make, applied to the parsed description.
+   */
+  public interface Munger {
+    void munge(SdpModel sdp);
+  }
+
+  private static final String CRLF = "\r\n";
+  private static final int MAX_PLANS = 16;
+  // Lines that differ between descriptions of one structure.
+  private static final String[] VOLATILE = {"o=", "a=ice-ufrag:", "a=ice-pwd:", "a=fingerprint:",
+      "a=ssrc:", "a=ssrc-group:", "a=msid:", "a=candidate:", "a=end-of-candidates"};
+  private static final byte STRUCTURAL = -1;
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int FINGERPRINT_PREFIX = 12;
+
+  /**
+   * The rewrite of one structure, line by line of its first description.
+   */
+  private static final class Plan {
+    final int variant;
+    final boolean usable;
+    // Lines of the first description: the text of structural lines, the kind of volatile ones.
+    final String[] template;
+    final byte[] kinds;
+    // Per line: null to copy it, "" to drop it, or its replacement; each ending in CRLF.
+    final String[] replacements;
+    // Text to write before each line, and at the end; null for none.
+    final String[] insertions;
+    final int extraLength;
+
+    Plan(int variant, String[] lines, String[] replacements, String[] insertions, boolean usable) {
+      this.variant = variant;
+      this.template = lines.clone();
+      this.kinds = new byte[lines.length];
+      this.replacements = replacements;
+      this.insertions = insertions;
+      int extra = 0;
+      for (int i = 0; i < lines.length; i++) {
+        kinds[i] = volatileKind(lines[i], 0, lines[i].length());
+        if (kinds[i] != STRUCTURAL) template[i] = null;
+        if (replacements[i] != null) {
+          extra += Math.max(0, replacements[i].length() - lines[i].length());
+        }
+      }
+      for (String insertion : insertions) {
+        if (insertion != null) extra += insertion.length();
+      }
+      this.extraLength = extra;
+      this.usable = usable;
+    }
+
+    // |sdp| rewritten, or null if it does not have the structure of the plan. Runs of lines
+    // that are kept and end in CRLF are copied in bulk.
+    @Nullable
+    String apply(String sdp) {
+      Output out = new Output(sdp.length() + extraLength + 2);
+      int line = 0;
+      int start = 0;
+      int runStart = 0;
+      while (start < sdp.length()) {
+        int end = lineEnd(sdp, start);
+        int textEnd = end > start && sdp.charAt(end - 1) == '\r' ? end - 1 : end;
+        if (textEnd == start) {
+          // An empty line is dropped.
+          out.append(sdp, runStart, start);
+          runStart = end + 1;
+        } else {
+          if (line == kinds.length) return null;
+          byte kind = volatileKind(sdp, start, textEnd);
+          if (kind != kinds[line]) return null;
+          if (kind == STRUCTURAL) {
+            String expected = template[line];
+            if (expected.length() != textEnd - start
+                || !sdp.regionMatches(start, expected, 0, expected.length())) {
+              return null;
+            }
+          }
+          boolean kept = replacements[line] == null;
+          if (insertions[line] != null || !kept || textEnd == end || end == sdp.length()) {
+            out.append(sdp, runStart, start);
+            if (insertions[line] != null) out.append(insertions[line]);
+            if (kept) {
+              out.append(sdp, start, textEnd);
+              out.append(CRLF);
+            } else {
+              out.append(replacements[line]);
+            }
+            runStart = Math.min(end + 1, sdp.length());
+          }
+          line++;
+        }
+        start = end + 1;
+      }
+      if (line != kinds.length) return null;
+      out.append(sdp, runStart, sdp.length());
+      if (insertions[line] != null) out.append(insertions[line]);
+      return out.toString();
+    }
+  }
+
+  /**
+   * A growable char buffer filled with bulk copies.
+   */
+  private static final class Output {
+    private char[] chars;
+    private int length;
+
+    Output(int capacity) {
+      chars = new char[capacity];
+    }
+
+    void append(String s) {
+      append(s, 0, s.length());
+    }
+
+    void append(String s, int start, int end) {
+      int count = end - start;
+      if (count <= 0) return;
+      if (length + count > chars.length) {
+        chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + count));
+      }
+      s.getChars(start, end, chars, length);
+      length += count;
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, 0, length);
+    }
+  }
+
+  private final LinkedHashMap<Long, Plan> plans = new LinkedHashMap<Long, Plan>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Plan> eldest) {
+      return size() > MAX_PLANS;
+    }
+  };
+  // Plan of the last description rewritten, tried before the fingerprint is computed.
+  @Nullable private volatile Plan lastPlan;
+  private volatile long hits, misses;
+
+  // |sdp| munged by |munger|. Descriptions munged with different edits must use different
+  // |variant|s.
+  public String rewrite(String sdp, int variant, Munger munger) {
+    Plan plan = lastPlan;
+    String rewritten = apply(plan, sdp, variant);
+    if (rewritten != null) return rewritten;
+
+    long key = fingerprint(sdp, variant);
+    synchronized (plans) {
+      plan = plans.get(key);
+    }
+    rewritten = apply(plan, sdp, variant);
+    if (rewritten != null) return rewritten;
+
+    misses++;
+    SdpModel model = SdpModel.parse(sdp);
+    munger.munge(model);
+    String munged = model.toString();
+    if (plan == null) {
+      plan = record(sdp, munged, variant);
+      synchronized (plans) {
+        plans.put(key, plan);
+      }
+    }
+    lastPlan = plan;
+    return munged;
+  }
+
+  // Descriptions rewritten from a plan, and munged in full.
+  public long hits() {
+    return hits;
+  }
+
+  public long misses() {
+    return misses;
+  }
+
+  public void clear() {
+    synchronized (plans) {
+      plans.clear();
+    }
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  @Nullable
+  private String apply(@Nullable Plan plan, String sdp, int variant) {
+    if (plan == null || !plan.usable || plan.variant != variant) return null;
+    String rewritten = plan.apply(sdp);
+    if (rewritten != null) {
+      lastPlan = plan;
+      hits++;
+    }
+    return rewritten;
+  }
+
+  // The edits turning the lines of |sdp| into those of |munged|. Munging replaces, drops and
+  // adds a few lines in place, so matching lines are paired greedily, looking a little ahead
+  // on both sides to tell a dropped or added line from a replaced one.
+  private static Plan record(String sdp, String munged, int variant) {
+    String[] in = lines(sdp);
+    String[] out = lines(munged);
+    String[] replacements = new String[in.length];
+    String[] insertions = new String[in.length + 1];
+    boolean usable = true;
+    final int lookahead = 32;
+
+    int i = 0;
+    int j = 0;
+    while (i < in.length || j < out.length) {
+      if (i < in.length && j < out.length && in[i].equals(out[j])) {
+        i++;
+        j++;
+        continue;
+      }
+      int dropped = j < out.length ? indexOf(in, out[j], i + 1, lookahead) : in.length;
+      int added = i < in.length ? indexOf(out, in[i], j + 1, lookahead) : out.length;
+      boolean drop = dropped >= 0 && (added < 0 || dropped - i <= added - j);
+      if (i < in.length && (j == out.length || drop)) {
+        // Lines i up to |dropped| went.
+        int until = dropped >= 0 ? dropped : in.length;
+        for (; i < until; i++) replacements[i] = "";
+      } else if (j < out.length && (i == in.length || added >= 0)) {
+        StringBuilder text = new StringBuilder();
+        int until = added >= 0 ? added : out.length;
+        for (; j < until; j++) {
+          usable &= volatileKind(out[j], 0, out[j].length()) == STRUCTURAL;
+          text.append(out[j]).append(CRLF);
+        }
+        insertions[i] = insertions[i] == null ? text.toString() : insertions[i] + text;
+      } else {
+        usable &= volatileKind(out[j], 0, out[j].length()) == STRUCTURAL;
+        replacements[i++] = out[j++] + CRLF;
+      }
+    }
+
+    Plan plan = new Plan(variant, in, replacements, insertions, usable);
+    // The plan has to reproduce its own result, or it is not used.
+    if (usable && !munged.equals(plan.apply(sdp))) {
+      plan = new Plan(variant, in, replacements, insertions, false);
+    }
+    return plan;
+  }
+
+  private static long fingerprint(String sdp, int variant) {
+    long hash = FNV_OFFSET ^ variant;
+    int start = 0;
+    while (start < sdp.length()) {
+      int end = lineEnd(sdp, start);
+      int textEnd = end > start && sdp.charAt(end - 1) == '\r' ? end - 1 : end;
+      if (textEnd > start) {
+        byte kind = volatileKind(sdp, start, textEnd);
+        if (kind == STRUCTURAL) {
+          // The length and the start of the line; apply() compares the lines in full.
+          hash = (hash ^ (textEnd - start)) * FNV_PRIME;
+          int prefixEnd = Math.min(textEnd, start + FINGERPRINT_PREFIX);
+          for (int i = start; i < prefixEnd; i++) hash = (hash ^ sdp.charAt(i)) * FNV_PRIME;
+        } else {
+          hash = (hash ^ (0x100 + kind)) * FNV_PRIME;
+        }
+        hash = (hash ^ '\n') * FNV_PRIME;
+      }
+      start = end + 1;
+    }
+    return hash;
+  }
+
+  private static byte volatileKind(String sdp, int start, int end) {
+    if (end - start < 3 || sdp.charAt(start + 1) != '=') return STRUCTURAL;
+    char type = sdp.charAt(start);
+    if (type == 'o') return 0;
+    if (type != 'a') return STRUCTURAL;
+    switch (sdp.charAt(start + 2)) {
+      case 'i':
+      case 'f':
+      case 's':
+      case 'm':
+      case 'c':
+      case 'e':
+        break;
+      default:
+        return STRUCTURAL;
+    }
+    for (byte kind = 1; kind < VOLATILE.length; kind++) {
+      String prefix = VOLATILE[kind];
+      if (end - start >= prefix.length() && sdp.startsWith(prefix, start)) return kind;
+    }
+    return STRUCTURAL;
+  }
+
+  private static int lineEnd(String sdp, int start) {
+    int end = sdp.indexOf('\n', start);
+    return end < 0 ? sdp.length() : end;
+  }
+
+  // Non-empty lines without their line ends.
+  private static String[] lines(String sdp) {
+    int count = 0;
+    int start = 0;
+    while (start < sdp.length()) {
+      int end = lineEnd(sdp, start);
+      if (end > start && !(end == start + 1 && sdp.charAt(start) == '\r')) count++;
+      start = end + 1;
+    }
+    String[] lines = new String[count];
+    int line = 0;
+    start = 0;
+    while (start < sdp.length()) {
+      int end = lineEnd(sdp, start);
+      int textEnd = end > start && sdp.charAt(end - 1) == '\r' ? end - 1 : end;
+      if (textEnd > start) lines[line++] = sdp.substring(start, textEnd);
+      start = end + 1;
+    }
+    return lines;
+  }
+
+  private static int indexOf(String[] lines, String line, int from, int limit) {
+    for (int i = from; i < lines.length && i < from + limit; i++) {
+      if (lines[i].equals(line)) return i;
+    }
+    return -1;
+  }
+}
@@ -54,6 +54,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
   private String keyprefEnabledRtcEventLog;
+  private String keyprefMultistream;
+  private String keyprefLogSignaling;
+  private String keyprefPauseOffscreenVideo;
+  private String keyprefSimulcast;
+  private String keyprefFollowSpeaker;
+  private String keyprefCompositedGrid;
 
   private String keyprefEnableDataChannel;
   private String keyprefOrdered;
@@ -105,6 +111,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
     keyprefEnabledRtcEventLog = getString(R.string.pref_enable_rtceventlog_key);
+    keyprefMultistream = getString(R.string.pref_multistream_key);
+    keyprefLogSignaling = getString(R.string.pref_log_signaling_key);
+    keyprefPauseOffscreenVideo = getString(R.string.pref_pause_offscreen_video_key);
+    keyprefSimulcast = getString(R.string.pref_simulcast_key);
+    keyprefFollowSpeaker = getString(R.string.pref_follow_speaker_key);
+    keyprefCompositedGrid = getString(R.string.pref_composited_grid_key);
 
     // Display the fragment as the main content.
     settingsFragment = new SettingsFragment();
@@ -162,6 +174,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
     updateSummaryB(sharedPreferences, keyprefEnabledRtcEventLog);
+    updateSummaryB(sharedPreferences, keyprefMultistream);
+    updateSummaryB(sharedPreferences, keyprefLogSignaling);
+    updateSummaryB(sharedPreferences, keyprefPauseOffscreenVideo);
+    updateSummaryB(sharedPreferences, keyprefSimulcast);
+    updateSummaryB(sharedPreferences, keyprefFollowSpeaker);
+    updateSummaryB(sharedPreferences, keyprefCompositedGrid);
 
     if (!Camera2Enumerator.isSupported(this)) {
       Preference camera2Preference = settingsFragment.findPreference(keyprefCamera2);
@@ -239,7 +257,13 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefEnableDataChannel)
         || key.equals(keyprefOrdered)
         || key.equals(keyprefNegotiated)
-        || key.equals(keyprefEnabledRtcEventLog)) {
+        || key.equals(keyprefEnabledRtcEventLog)
+        || key.equals(keyprefMultistream)
+        || key.equals(keyprefLogSignaling)
+        || key.equals(keyprefPauseOffscreenVideo)
+        || key.equals(keyprefSimulcast)
+        || key.equals(keyprefFollowSpeaker)
+        || key.equals(keyprefCompositedGrid)) {
       updateSummaryB(sharedPreferences, key);
     } else if (key.equals(keyprefSpeakerphone)) {
       updateSummaryList(sharedPreferences, key);
@@ -0,0 +1,276 @@
+package org.appspot.apprtc;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Polls the stats of all registered peer connections in one batch per tick.
+ *
+ * <p>A tick requests every connection at once through RTCStatsCollectorCallback and hands
+ * the listener a single Snapshot once the last report arrived, instead of one callback per
+ * handle and timer. No tick starts while the previous batch is outstanding. The interval
+ * grows when batches take long compared to it, and while no consumer needs the stats.
+ */
+public class StatsScheduler {
+  private static final String TAG = "StatsScheduler";
+  // The interval is at least this many times the duration of the last batch.
+  private static final int LOAD_FACTOR = 4;
+  // Interval multiplier while no consumer needs the stats.
+  private static final int IDLE_FACTOR = 4;
+  private static final int MAX_PERIOD_MS = 10000;
+  private static final Object PRESENT = new Object();
+
+  // Consumers of the stats: the on-screen HUD, the active speaker detection and the
+  // subscriber layer selection.
+  public static final int CONSUMER_HUD = 1;
+  public static final int CONSUMER_SPEAKER = 1 << 1;
+  public static final int CONSUMER_LAYERS = 1 << 2;
+
+  public interface Poller {
+    // Requests the stats of |handleId| and delivers them to |batch|, null if it is gone.
+    void poll(long handleId, Batch batch);
+  }
+
+  public interface Listener {
+    // Called from a WebRTC thread with the reports of one tick.
+    void onStatsSnapshot(Snapshot snapshot);
+  }
+
+  /**
+   * Reports of all polled handles from one tick, in the order they were polled.
+   */
+  public static final class Snapshot {
+    public final long timestampMs;
+    // Interval the scheduler was running at, and how long the batch took.
+    public final int periodMs;
+    public final long batchMillis;
+    private final long[] handleIds;
+    private final RTCStatsReport[] reports;
+    private final int size;
+
+    private Snapshot(long timestampMs, int periodMs, long batchMillis, long[] handleIds,
+        RTCStatsReport[] reports, int size) {
+      this.timestampMs = timestampMs;
+      this.periodMs = periodMs;
+      this.batchMillis = batchMillis;
+      this.handleIds = handleIds;
+      this.reports = reports;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public long handleId(int index) {
+      return handleIds[index];
+    }
+
+    public RTCStatsReport report(int index) {
+      return reports[index];
+    }
+  }
+
+  /**
+   * Outstanding requests of one tick.
+   */
+  public final class Batch {
+    private final long[] handleIds;
+    private final RTCStatsReport[] reports;
+    private final boolean[] delivered;
+    private final long startNanos = System.nanoTime();
+    private final int periodMs;
+    private int remaining;
+    private boolean finished;
+
+    private Batch(long[] handleIds, int periodMs) {
+      this.handleIds = handleIds;
+      this.reports = new RTCStatsReport[handleIds.length];
+      this.delivered = new boolean[handleIds.length];
+      this.periodMs = periodMs;
+      this.remaining = handleIds.length;
+    }
+
+    public void deliver(long handleId, @Nullable RTCStatsReport report) {
+      synchronized (this) {
+        int index = indexOf(handleId);
+        if (finished || index < 0 || delivered[index]) {
+          return;
+        }
+        delivered[index] = true;
+        reports[index] = report;
+        if (--remaining > 0) {
+          return;
+        }
+        finished = true;
+      }
+      finish(this);
+    }
+
+    // Gives up on the reports that did not arrive.
+    private boolean expire() {
+      synchronized (this) {
+        if (finished) {
+          return false;
+        }
+        finished = true;
+      }
+      return true;
+    }
+
+    private long elapsedMillis() {
+      return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private int indexOf(long handleId) {
+      for (int i = 0; i < handleIds.length; i++) {
+        if (handleIds[i] == handleId) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private final Poller poller;
+  private final Listener listener;
+  private final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, TAG));
+  // Guarded by this.
+  private final LongHashMap<Object> handles = new LongHashMap<>();
+  private int basePeriodMs = 1000;
+  private int periodMs = basePeriodMs;
+  private int consumers = CONSUMER_HUD;
+  private long lastBatchMillis;
+  private long skippedTicks;
+  @Nullable private Batch pending;
+  @Nullable private ScheduledFuture<?> nextTick;
+  private boolean closed;
+
+  public StatsScheduler(Poller poller, Listener listener) {
+    this.poller = poller;
+    this.listener = listener;
+  }
+
+  public synchronized void add(long handleId) {
+    if (closed || handles.containsKey(handleId)) {
+      return;
+    }
+    handles.put(handleId, PRESENT);
+    if (nextTick == null) {
+      schedule(0);
+    }
+  }
+
+  public synchronized void remove(long handleId) {
+    handles.remove(handleId);
+    if (handles.size() == 0 && nextTick != null) {
+      nextTick.cancel(false);
+      nextTick = null;
+    }
+  }
+
+  // Interval while a consumer needs the stats and batches are quick.
+  public synchronized void setPeriod(int periodMs) {
+    basePeriodMs = Math.max(100, periodMs);
+  }
+
+  // Whether |consumer| currently needs the stats; while none does they are polled less often.
+  public synchronized void setConsumer(int consumer, boolean active) {
+    boolean idle = consumers == 0;
+    consumers = active ? consumers | consumer : consumers & ~consumer;
+    if (idle && consumers != 0 && nextTick != null && nextTick.cancel(false)) {
+      schedule(0);
+    }
+  }
+
+  public synchronized int getPeriodMs() {
+    return periodMs;
+  }
+
+  public synchronized long getSkippedTicks() {
+    return skippedTicks;
+  }
+
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      handles.clear();
+      pending = null;
+      nextTick = null;
+    }
+    timer.shutdownNow();
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  private void schedule(long delayMs) {
+    nextTick = timer.schedule(this::tick, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void tick() {
+    Batch batch;
+    synchronized (this) {
+      if (closed || handles.size() == 0) {
+        nextTick = null;
+        return;
+      }
+      periodMs = nextPeriod();
+      schedule(periodMs);
+      if (pending != null) {
+        // A connection that went away mid-tick may never answer.
+        if (pending.elapsedMillis() < MAX_PERIOD_MS || !pending.expire()) {
+          skippedTicks++;
+          return;
+        }
+        Log.w(TAG, "Dropping stats batch after " + pending.elapsedMillis() + " ms");
+      }
+      final long[] handleIds = new long[handles.size()];
+      final int[] count = {0};
+      handles.forEach((handleId, value) -> handleIds[count[0]++] = handleId);
+      batch = new Batch(handleIds, periodMs);
+      pending = batch;
+    }
+    for (long handleId : batch.handleIds) {
+      poller.poll(handleId, batch);
+    }
+  }
+
+  private void finish(Batch batch) {
+    long batchMillis = batch.elapsedMillis();
+    synchronized (this) {
+      if (pending != batch) {
+        return;
+      }
+      pending = null;
+      lastBatchMillis = batchMillis;
+    }
+    // Connections that are gone are left out.
+    long[] handleIds = new long[batch.handleIds.length];
+    RTCStatsReport[] reports = new RTCStatsReport[batch.reports.length];
+    int size = 0;
+    for (int i = 0; i < batch.reports.length; i++) {
+      if (batch.reports[i] != null) {
+        handleIds[size] = batch.handleIds[i];
+        reports[size++] = batch.reports[i];
+      }
+    }
+    listener.onStatsSnapshot(new Snapshot(System.currentTimeMillis(), batch.periodMs, batchMillis,
+        handleIds, reports, size));
+  }
+
+  private int nextPeriod() {
+    long period = Math.max(basePeriodMs, lastBatchMillis * LOAD_FACTOR);
+    if (consumers == 0) {
+      period *= IDLE_FACTOR;
+    }
+    return (int) Math.min(period, MAX_PERIOD_MS);
+  }
+}
@@ -28,8 +28,10 @@ import android.media.projection.MediaProjectionManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewOutlineProvider;
 import android.view.Window;
@@ -39,9 +41,9 @@ import android.widget.LinearLayout;
 import android.widget.Toast;
 import java.io.IOException;
 import java.lang.RuntimeException;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Vector;
@@ -54,27 +56,32 @@ import org.appspot.apprtc.PeerConnectionClient2.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient2.PeerConnectionParameters;
 import org.appspot.apprtc.janus.JanusConnection;
 import org.appspot.apprtc.janus.JanusHandle;
+import org.appspot.apprtc.janus.JanusId;
 import org.json.JSONObject;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
+import org.webrtc.EglRenderEngine;
 import org.webrtc.FileVideoCapturer;
+import org.webrtc.I420BufferPool;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFileRenderer;
 import org.webrtc.VideoFrame;
+import org.webrtc.VideoGridRenderer;
 import org.webrtc.VideoSink;
 
 import org.appspot.apprtc.janus.JanusRTCEvents2;
+import org.appspot.apprtc.janus.JanusCommon;
 import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.util.LongHashMap;
 
 import static org.appspot.apprtc.janus.JanusUtils.convertJsonToSdp;
 
@@ -138,6 +145,12 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     public static final String EXTRA_NEGOTIATED = "org.appspot.apprtc.NEGOTIATED";
     public static final String EXTRA_ID = "org.appspot.apprtc.ID";
     public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
+    public static final String EXTRA_MULTISTREAM = "org.appspot.apprtc.MULTISTREAM";
+    public static final String EXTRA_LOG_SIGNALING = "org.appspot.apprtc.LOG_SIGNALING";
+    public static final String EXTRA_PAUSE_OFFSCREEN_VIDEO = "org.appspot.apprtc.PAUSE_OFFSCREEN_VIDEO";
+    public static final String EXTRA_SIMULCAST = "org.appspot.apprtc.SIMULCAST";
+    public static final String EXTRA_FOLLOW_SPEAKER = "org.appspot.apprtc.FOLLOW_SPEAKER";
+    public static final String EXTRA_COMPOSITED_GRID = "org.appspot.apprtc.COMPOSITED_GRID";
     public static final String EXTRA_USE_LEGACY_AUDIO_DEVICE =
             "org.appspot.apprtc.USE_LEGACY_AUDIO_DEVICE";
 
@@ -149,6 +162,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
     // Peer connection statistics callback period in ms.
     private static final int STAT_CALLBACK_PERIOD = 1000;
+    private static final int SPEAKER_TICK_PERIOD = 100;
+    // Frame rate of the grid tiles of feeds that are not speaking.
+    private static final float GRID_TILE_MAX_FPS = 15;
 
     private static final int maxVideoRoomUsers = 5;
 
@@ -187,6 +203,12 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     // Controls
     private CallFragment callFragment;
     private HudFragment hudFragment;
+    // Per-handle quality records, updated on the UI thread with every stats snapshot. The streams
+    // of a multistream subscriber are told apart into one record per feed.
+    private final RtcStatsEngine statsEngine = new RtcStatsEngine((handleId, mid, trackId) -> {
+        PeerConnectionClient2 client = PeerConnectionClient2;
+        return client != null ? client.streamFeed(handleId, mid, trackId) : handleId;
+    });
     private CpuMonitor cpuMonitor;
 
     //user info
@@ -195,9 +217,56 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     private String userId;
 
     private final Vector<SurfaceViewRenderer> surfaceViewRenderers = new Vector<>();
-    private final Vector<BigInteger> positionVector = new Vector<>();
+    // Draws every renderer of the grid from one thread and EGL context.
+    @Nullable private EglRenderEngine renderEngine;
+    // With the composited grid the pips are tiles of one surface, gridTiles[i] for position i.
+    @Nullable private VideoGridRenderer gridRenderer;
+    private final VideoGridRenderer.Tile[] gridTiles = new VideoGridRenderer.Tile[maxVideoRoomUsers];
+    private final long[] positionVector = new long[maxVideoRoomUsers];
+    // Remote feeds without a renderer, their video is paused until one is free.
+    private final ArrayList<Long> offscreenHandles = new ArrayList<>();
+
+    private long localHandleId = JanusId.NONE;
+
+    // Audio levels and talking events pick the active speaker, who keeps its video and is
+    // moved to the fullscreen renderer.
+    private boolean followSpeaker;
+    private final Handler speakerHandler = new Handler();
+    private final ActiveSpeakerDetector speakerDetector = new ActiveSpeakerDetector(
+            new ActiveSpeakerDetector.Listener() {
+                @Override
+                public void onSpeakingChanged(long id, boolean speaking) {
+                    if (videoRoomClient != null) videoRoomClient.setFeedSpeaking(id, speaking);
+                    int index = positionIndexOf(id);
+                    if (index > 0) updateTileFps(index);
+                }
 
-    private BigInteger localHandleId = BigInteger.ZERO;
+                @Override
+                public void onActiveSpeakerChanged(long id, long previousId) {
+                    Log.d(TAG, "Active speaker " + previousId + " -> " + id);
+                    if (followSpeaker) showActiveSpeaker(id);
+                }
+            });
+    private final Runnable speakerTick = new Runnable() {
+        @Override
+        public void run() {
+            speakerDetector.tick(SystemClock.elapsedRealtime());
+            speakerHandler.postDelayed(this, SPEAKER_TICK_PERIOD);
+        }
+    };
+
+    // Receive statistics of each feed, whether it has a subscriber handle of its own or is a
+    // stream of the multistream subscriber, go to the layer selection. The downlink sums up the
+    // connections, which only the handle records carry.
+    private int downlinkKbps;
+    private final LongHashMap.Visitor<RtcStatsEngine.Feed> layerInputs = (handleId, feed) -> {
+        if (handleId == localHandleId) return;
+        if (feed.candidatePair.present) downlinkKbps += feed.candidatePair.availableIncomingKbps;
+        if (feed.audioIn.present) speakerDetector.setLevel(handleId, feed.audioIn.audioLevel);
+        if (!feed.videoIn.present) return;
+        videoRoomClient.setFeedReceiveStats(handleId, feed.videoIn.lossPercent, feed.videoIn.decodeMsPerFrame,
+                feed.videoTrack.framesDroppedDelta);
+    };
 
     @Override
     // TODO(bugs.webrtc.org/8580): LayoutParams.FLAG_TURN_SCREEN_ON and
@@ -222,13 +291,13 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
         final Intent intent = getIntent();
         final EglBase eglBase = EglBase.create();
+        renderEngine = new EglRenderEngine("VideoRoom", eglBase.getEglBaseContext());
 
         for(int i = 0; i < maxVideoRoomUsers ; i++ ) {
-            positionVector.add(BigInteger.ZERO);
             SurfaceViewRenderer renderer = findViewById(surfaceViewViewId[i]);
             surfaceViewRenderers.add(renderer);
 
-            renderer.init(eglBase.getEglBaseContext(), null);
+            renderer.init(renderEngine, null);
             if(i == 0) {
                 renderer.setScalingType(ScalingType.SCALE_ASPECT_FILL);
                 renderer.setOnClickListener(new View.OnClickListener() {
@@ -244,6 +313,10 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             }
         }
 
+        if (intent.getBooleanExtra(EXTRA_COMPOSITED_GRID, false)) {
+            initGridRenderer();
+        }
+
         /*
         String saveRemoteVideoToFile = intent.getStringExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
 
@@ -341,6 +414,12 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
         //Create connection client.Use videoRoomClient to connect to Janus Webrtc Gateway.
         videoRoomClient = new VideoRoomClient(this);
+        videoRoomClient.setMultistreamSubscriptions(intent.getBooleanExtra(EXTRA_MULTISTREAM, false));
+        videoRoomClient.setLogPayloads(intent.getBooleanExtra(EXTRA_LOG_SIGNALING, true));
+        videoRoomClient.setOffscreenVideoPaused(intent.getBooleanExtra(EXTRA_PAUSE_OFFSCREEN_VIDEO, true));
+        videoRoomClient.setLayerSelection(intent.getBooleanExtra(EXTRA_SIMULCAST, false));
+        followSpeaker = intent.getBooleanExtra(EXTRA_FOLLOW_SPEAKER, true);
+        speakerHandler.postDelayed(speakerTick, SPEAKER_TICK_PERIOD);
 
         // Create connection parameters.
         String urlParameters = intent.getStringExtra(EXTRA_URLPARAMETERS);
@@ -358,6 +437,8 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             hudFragment.setCpuMonitor(cpuMonitor);
         }
 
+        hudFragment.setRenderers(surfaceViewRenderers);
+
         // Send intent arguments to fragments.
         callFragment.setArguments(intent.getExtras());
         hudFragment.setArguments(intent.getExtras());
@@ -380,6 +461,11 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         // Create peer connection client.
         PeerConnectionClient2 = new PeerConnectionClient2(
                 getApplicationContext(), eglBase, peerConnectionParameters, VideoRoomActivity.this);
+        PeerConnectionClient2.setSimulcast(intent.getBooleanExtra(EXTRA_SIMULCAST, false));
+        // Speaker following and layer selection run on the stats, hidden controls or not.
+        PeerConnectionClient2.setStatsConsumer(StatsScheduler.CONSUMER_SPEAKER, followSpeaker);
+        PeerConnectionClient2.setStatsConsumer(StatsScheduler.CONSUMER_LAYERS,
+                intent.getBooleanExtra(EXTRA_SIMULCAST, false));
         PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
         PeerConnectionClient2.createPeerConnectionFactory(options);
 
@@ -520,6 +606,15 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Frame buffers of the call are pooled; give back the free ones.
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            I420BufferPool.trim();
+        }
+    }
+
     // CallFragment.OnCallEvents interface implementation.
     @Override
     public void onCallHangUp() {
@@ -531,7 +626,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         if (PeerConnectionClient2 != null) {
             PeerConnectionClient2.switchCamera();
 
-            int index = positionVector.indexOf(localHandleId);
+            int index = positionIndexOf(localHandleId);
             if(isBackCamera) {
                 isBackCamera = false;
                 setRendererMirror(index);
@@ -580,6 +675,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         }
         ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
         ft.commit();
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsConsumer(StatsScheduler.CONSUMER_HUD, callControlFragmentVisible);
+        }
     }
 
     private void startCall() {
@@ -591,6 +689,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
         JanusConnectionParameters connectionParameters = new JanusConnectionParameters(roomUrl, roomId, userId, maxVideoRoomUsers);
 
+        // Remote feeds that get one of the renderers are subscribed first.
+        videoRoomClient.setSubscriptionLimits(JanusCommon.maxConcurrentSubscriptions, maxVideoRoomUsers - 1);
+
         // Start room connection.
         videoRoomClient.connectToServer(connectionParameters);
 
@@ -636,6 +737,8 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     // Disconnect from remote resources, dispose of local resources, and exit.
     private void disconnect() {
         activityRunning = false;
+        speakerHandler.removeCallbacks(speakerTick);
+        speakerDetector.clear();
 /*
         if (videoFileRenderer != null) {
             videoFileRenderer.release();
@@ -666,8 +769,21 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             renderer.clearImage();
             renderer.setMirror(false);
             renderer.setVisibility(View.INVISIBLE);
+            renderer.release();
         }
         surfaceViewRenderers.clear();
+        if (gridRenderer != null) {
+            gridRenderer.release();
+            gridRenderer = null;
+        }
+        if (renderEngine != null) {
+            renderEngine.release();
+            renderEngine = null;
+        }
+        offscreenHandles.clear();
+        Log.d(TAG, "Frame buffer pool: " + I420BufferPool.getHitCount() + " hits, "
+                + I420BufferPool.getMissCount() + " misses");
+        I420BufferPool.trim();
 
         finish();
     }
@@ -748,16 +864,13 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     private void swappedFeedToFullscreen(int pipIndex) {
-        SurfaceViewRenderer renderer = surfaceViewRenderers.get(pipIndex);
-
-        BigInteger id = positionVector.get(pipIndex);
+        long id = positionVector[pipIndex];
         PeerConnectionClient2.setVideoRender(id, surfaceViewRenderers.get(0));
-        if (positionVector.get(0) == BigInteger.ZERO) {
-            renderer.setBackground(null);
-            renderer.setVisibility(View.INVISIBLE);
+        if (positionVector[0] == JanusId.NONE) {
+            setPipVisible(pipIndex, false);
             removeClickListener(pipIndex);
         } else {
-            PeerConnectionClient2.setVideoRender(positionVector.get(0), renderer);
+            PeerConnectionClient2.setVideoRender(positionVector[0], sinkAt(pipIndex));
         }
 
         if(id == localHandleId) {
@@ -765,13 +878,46 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             setRendererMirror(0);
         }
 
-        if(positionVector.get(0) == localHandleId) {
+        if(positionVector[0] == localHandleId) {
             removeRendererMirror(0);
             setRendererMirror(pipIndex);
         }
 
-        positionVector.set(pipIndex, positionVector.get(0));
-        positionVector.set(0, id);
+        positionVector[pipIndex] = positionVector[0];
+        positionVector[0] = id;
+        reportTileHeight(pipIndex);
+        reportTileHeight(0);
+    }
+
+    // Moves |id| to the fullscreen renderer. A feed without a renderer takes the one of the
+    // last remote pip, whose feed goes off screen instead.
+    private void showActiveSpeaker(long id) {
+        int index = positionIndexOf(id);
+        if(index < 0 && offscreenHandles.contains(id)) {
+            for(int i = maxVideoRoomUsers - 1; i > 0 && index < 0; i--) {
+                if(positionVector[i] != JanusId.NONE && positionVector[i] != localHandleId) index = i;
+            }
+            if(index < 0) return;
+
+            long displacedId = positionVector[index];
+            PeerConnectionClient2.setVideoRender(displacedId, null);
+            offscreenHandles.remove(id);
+            offscreenHandles.add(displacedId);
+            showRemoteRender(index, id);
+            if(videoRoomClient != null) {
+                videoRoomClient.setFeedVisible(displacedId, false);
+                videoRoomClient.setFeedTileHeight(displacedId, 0);
+                videoRoomClient.setFeedVisible(id, true);
+            }
+        }
+        if(index > 0) swappedFeedToFullscreen(index);
+    }
+
+    private int positionIndexOf(long handleId) {
+        for(int i = 0; i < maxVideoRoomUsers; i++) {
+            if(positionVector[i] == handleId) return i;
+        }
+        return -1;
     }
 
     // -----Implementation of PeerConnectionClient2.PeerConnectionEvents.---------
@@ -779,7 +925,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     // All callbacks are invoked from peer connection client looper thread and
     // are routed to UI thread.
     @Override
-    public void onLocalDescription(final SessionDescription sdp, final BigInteger handleId) {
+    public void onLocalDescription(final SessionDescription sdp, final long handleId) {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
         runOnUiThread(new Runnable() {
             @Override
@@ -799,62 +945,147 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onRemoteRender(final BigInteger handleId) {
+    public void onRemoteRender(final long handleId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for(int i = 0; i < maxVideoRoomUsers; i++) {
-                    if(positionVector.get(i) == BigInteger.ZERO) {
-                        positionVector.set(i, handleId);
-                        SurfaceViewRenderer renderer = surfaceViewRenderers.get(i);
-                        if(i != 0) renderer.setBackground(getResources().getDrawable(R.drawable.border));
-                        renderer.setVisibility(View.VISIBLE);
-                        PeerConnectionClient2.setVideoRender(handleId, renderer);
-                        setClickListener(i);
+                    if(positionVector[i] == JanusId.NONE) {
+                        showRemoteRender(i, handleId);
                         return;
                     }
                 }
 
                 Log.d(TAG, "Not enough surfaceView to render the remote stream. handle id is " + handleId);
+                offscreenHandles.add(handleId);
+                if(videoRoomClient != null) {
+                    videoRoomClient.setFeedVisible(handleId, false);
+                    videoRoomClient.setFeedTileHeight(handleId, 0);
+                }
             }
         });
     }
 
+    private void showRemoteRender(int index, long handleId) {
+        positionVector[index] = handleId;
+        if(index != 0) {
+            setPipVisible(index, true);
+        } else {
+            surfaceViewRenderers.get(0).setVisibility(View.VISIBLE);
+        }
+        PeerConnectionClient2.setVideoRender(handleId, sinkAt(index));
+        setClickListener(index);
+        reportTileHeight(index);
+    }
+
+    private void reportTileHeight(int index) {
+        long id = positionVector[index];
+        if (index > 0) updateTileFps(index);
+        if (videoRoomClient == null || id == JanusId.NONE || id == localHandleId) return;
+        int height = index > 0 && gridRenderer != null
+                ? gridTiles[index].getHeight() : surfaceViewRenderers.get(index).getHeight();
+        videoRoomClient.setFeedTileHeight(id, height);
+    }
+
     private void setRendererMirror(int index) {
         if(isBackCamera) return;
 
-        surfaceViewRenderers.get(index).setMirror(true);
+        setMirror(index, true);
     }
 
     private void removeRendererMirror(int index) {
         if(isBackCamera) return;
 
-        surfaceViewRenderers.get(index).setMirror(false);
+        setMirror(index, false);
+    }
+
+    private void setMirror(int index, boolean mirror) {
+        if (index > 0 && gridRenderer != null) {
+            gridTiles[index].setMirror(mirror);
+        } else {
+            surfaceViewRenderers.get(index).setMirror(mirror);
+        }
+    }
+
+    // ----- Composited grid -----------------------------------------------------
+    // The pips are drawn as tiles of one VideoGridRenderer instead of four SurfaceViews.
+    private void initGridRenderer() {
+        findViewById(R.id.pip_video_container).setVisibility(View.GONE);
+        gridRenderer = findViewById(R.id.grid_video_view);
+        gridRenderer.init(renderEngine);
+        gridRenderer.setZOrderMediaOverlay(true);
+        float spacing = 4 * getResources().getDisplayMetrics().density;
+        gridRenderer.setLayout(new VideoGridRenderer.GridLayout(3f / 4f, (int) spacing));
+        for (int i = 1; i < maxVideoRoomUsers; i++) {
+            gridTiles[i] = gridRenderer.addTile();
+            gridTiles[i].setVisible(false);
+        }
+        gridRenderer.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (event.getAction() != MotionEvent.ACTION_UP) return true;
+                VideoGridRenderer.Tile tile = gridRenderer.tileAt(event.getX(), event.getY());
+                for (int i = 1; i < maxVideoRoomUsers && tile != null; i++) {
+                    if (gridTiles[i] == tile && positionVector[i] != JanusId.NONE) {
+                        swappedFeedToFullscreen(i);
+                        break;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    // The sink showing position |index|: its renderer, or its tile of the grid.
+    private VideoSink sinkAt(int index) {
+        if (index > 0 && gridRenderer != null) return gridTiles[index];
+        return surfaceViewRenderers.get(index);
+    }
+
+    private void setPipVisible(int index, boolean visible) {
+        if (gridRenderer == null) {
+            SurfaceViewRenderer renderer = surfaceViewRenderers.get(index);
+            renderer.setBackground(visible ? getResources().getDrawable(R.drawable.border) : null);
+            renderer.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+            return;
+        }
+        gridTiles[index].setVisible(visible);
+        boolean anyVisible = false;
+        for (int i = 1; i < maxVideoRoomUsers; i++) {
+            anyVisible |= gridTiles[i].isVisible();
+        }
+        gridRenderer.setVisibility(anyVisible ? View.VISIBLE : View.INVISIBLE);
+    }
+
+    // Tiles of feeds that are not speaking are drawn at a lower frame rate.
+    private void updateTileFps(int index) {
+        if (gridRenderer == null) return;
+        long id = positionVector[index];
+        boolean full = id == localHandleId || speakerDetector.isSpeaking(id);
+        gridTiles[index].setMaxFps(full ? Float.POSITIVE_INFINITY : GRID_TILE_MAX_FPS);
     }
 
     @Override
-    public void onLocalRender(final BigInteger handleId) { //fixme: localrender is lost, and remoterenders are reach to number of max render
+    public void onLocalRender(final long handleId) { //fixme: localrender is lost, and remoterenders are reach to number of max render
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 localHandleId = handleId;
 
                 for(int i = 1; i < maxVideoRoomUsers; i++) {
-                    if(positionVector.get(i) == BigInteger.ZERO) {
-                        positionVector.set(i, handleId);
+                    if(positionVector[i] == JanusId.NONE) {
+                        positionVector[i] = handleId;
 
-                        SurfaceViewRenderer renderer = surfaceViewRenderers.get(i);
-                        if(i != 0) renderer.setBackground(getResources().getDrawable(R.drawable.border));
-                        renderer.setVisibility(View.VISIBLE);
-                        PeerConnectionClient2.setVideoRender(handleId, renderer);
+                        setPipVisible(i, true);
+                        PeerConnectionClient2.setVideoRender(handleId, sinkAt(i));
                         setRendererMirror(i);
                         setClickListener(i);
                         return;
                     }
                 }
 
-                if(positionVector.get(0) == BigInteger.ZERO) {
-                    positionVector.set(0, handleId);
+                if(positionVector[0] == JanusId.NONE) {
+                    positionVector[0] = handleId;
                     PeerConnectionClient2.setVideoRender(handleId, surfaceViewRenderers.get(0));
                 } else {
                     Log.d(TAG, "Not enough surfaceView to render the remote stream. handle id is " + handleId);
@@ -876,7 +1107,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     private void setClickListener(final int index) {
-        if(index == 0) return;
+        if(index == 0 || gridRenderer != null) return;
 
         surfaceViewRenderers.get(index).setOnClickListener(new View.OnClickListener() {
             @Override
@@ -887,13 +1118,13 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     private void removeClickListener(final int index) {
-        if(index == 0) return;
+        if(index == 0 || gridRenderer != null) return;
 
         surfaceViewRenderers.get(index).setOnClickListener(null);
     }
 
     @Override
-    public void onIceCandidate(final IceCandidate candidate, final BigInteger handleId) {
+    public void onIceCandidate(final IceCandidate candidate, final long handleId) {
         Log.d(TAG,"========onIceCandidate=======");
         runOnUiThread(new Runnable() {
             @Override
@@ -909,7 +1140,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onIceCandidatesRemoved(final IceCandidate[] candidates, final BigInteger handleId) {
+    public void onIceCandidatesRemoved(final IceCandidate[] candidates, final long handleId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -921,20 +1152,23 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onIceConnected(BigInteger handleId) {
+    public void onIceConnected(long handleId) {
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 logAndToast("ICE connected, delay=" + delta + "ms");
                 iceConnected = true;
+                if (PeerConnectionClient2 != null) {
+                    PeerConnectionClient2.enableStatsEvents(true, STAT_CALLBACK_PERIOD, handleId);
+                }
                 //callConnected();
             }
         });
     }
 
     @Override
-    public void onIceDisconnected(BigInteger handleId) {
+    public void onIceDisconnected(long handleId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -946,12 +1180,18 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onPeerConnectionStatsReady(final StatsReport[] reports, final BigInteger handleId) {
+    public void onPeerConnectionStatsReady(final StatsScheduler.Snapshot snapshot) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                statsEngine.update(snapshot);
+                if (videoRoomClient != null) {
+                    downlinkKbps = 0;
+                    statsEngine.forEach(layerInputs);
+                    videoRoomClient.updateLayers(downlinkKbps);
+                }
                 if (!isError && iceConnected) {
-                    hudFragment.updateEncoderStatistics(reports);
+                    hudFragment.updateEncoderStatistics(statsEngine);
                 }
             }
         });
@@ -965,7 +1205,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
 
     @Override
-    public void onPublisherJoined(final BigInteger handleId) {
+    public void onPublisherJoined(final long handleId) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -975,7 +1215,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onRemoteJsep(final BigInteger handleId, final JSONObject jsep) {
+    public void onRemoteJsep(final long handleId, final JSONObject jsep) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -984,7 +1224,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         });
     }
 
-    public void onPublisherJoinedInternal(final BigInteger handleId){
+    public void onPublisherJoinedInternal(final long handleId){
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
 
         logAndToast("Creating peer connection, delay=" + delta + "ms");
@@ -1001,7 +1241,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         PeerConnectionClient2.createOffer(handleId);
     }
 
-    public void onRemoteJsepInternal(final BigInteger handleId,final JSONObject jsep){
+    public void onRemoteJsepInternal(final long handleId,final JSONObject jsep){
 
         final long delta = System.currentTimeMillis() - callStartedTimeMs;
         logAndToast("onPublisherRemoteJsepInternal, delay=" + delta + "ms");
@@ -1023,7 +1263,14 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     }
 
     @Override
-    public void onLeft(final BigInteger handleId){
+    public void onSubscriberStreams(final long handleId, final Map<String, Long> feedsByMid) {
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setSubscriberStreams(handleId, feedsByMid);
+        }
+    }
+
+    @Override
+    public void onLeft(final long handleId){
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -1032,42 +1279,88 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         });
     }
 
-    public void onLeftInternal(final BigInteger handleId){
-        if(handleId == localHandleId) {
-            disconnect();
-            return;
+    @Override
+    public void onLeft(final long[] handleIds){
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                onLeftInternal(handleIds);
+            }
+        });
+    }
+
+    public void onLeftInternal(final long handleId){
+        onLeftInternal(new long[] {handleId});
+    }
+
+    // The layout without |handleIds| is worked out first, then every renderer is updated at most once.
+    public void onLeftInternal(final long[] handleIds){
+        long[] layout = positionVector.clone();
+        for(long handleId : handleIds) {
+            if(handleId == localHandleId) {
+                disconnect();
+                return;
+            }
+            speakerDetector.remove(handleId);
+            if(removeFromLayout(layout, handleId)) {
+                PeerConnectionClient2.setVideoRender(handleId, null);
+                PeerConnectionClient2.dispose(handleId);
+            } else if(offscreenHandles.remove(handleId)) {
+                PeerConnectionClient2.dispose(handleId);
+            }
+        }
+
+        for(int index = 0; index < maxVideoRoomUsers; index++) {
+            long id = layout[index];
+            if(id == positionVector[index]) continue;
+
+            if(positionVector[index] == localHandleId) removeRendererMirror(index);
+            if(id == JanusId.NONE) {
+                removeClickListener(index);
+                if(index == 0) {
+                    SurfaceViewRenderer renderer = surfaceViewRenderers.get(0);
+                    renderer.setBackground(null);
+                    renderer.clearImage();
+                } else {
+                    setPipVisible(index, false);
+                }
+            } else {
+                if(index != 0 && gridRenderer != null) setPipVisible(index, true);
+                PeerConnectionClient2.setVideoRender(id, sinkAt(index));
+                if(id == localHandleId) setRendererMirror(index);
+            }
+            positionVector[index] = id;
+            reportTileHeight(index);
+        }
+
+        // Freed renderers go to the feeds that had none, which get their video back.
+        for(int index = 0; index < maxVideoRoomUsers && !offscreenHandles.isEmpty(); index++) {
+            if(positionVector[index] != JanusId.NONE) continue;
+
+            long handleId = offscreenHandles.remove(0);
+            showRemoteRender(index, handleId);
+            if(videoRoomClient != null) videoRoomClient.setFeedVisible(handleId, true);
         }
+    }
 
+    // Removes |handleId| from |layout|, the feeds behind it move up one place; the local
+    // preview stays in the first pip when the fullscreen feed leaves.
+    private boolean removeFromLayout(long[] layout, long handleId) {
         for(int index = 0; index < maxVideoRoomUsers; index++) {
 
-            if(positionVector.get(index) != handleId) continue;
+            if(layout[index] != handleId) continue;
 
             while(index < maxVideoRoomUsers - 1) {
-                int step = index == 0 && positionVector.get(index + 1) == localHandleId ? 2 : 1;
-                if(positionVector.get(index + step) == BigInteger.ZERO) break;
+                int step = index == 0 && layout[index + 1] == localHandleId ? 2 : 1;
+                if(layout[index + step] == JanusId.NONE) break;
 
-                PeerConnectionClient2.setVideoRender(positionVector.get(index + step), surfaceViewRenderers.get(index));
-                if(positionVector.get(index + step) == localHandleId) {
-                    removeRendererMirror(index + step);
-                    setRendererMirror(index);
-                }
-                positionVector.set(index, positionVector.get(index + step));
+                layout[index] = layout[index + step];
                 index += step;
             }
-            PeerConnectionClient2.setVideoRender(handleId, null);
-            PeerConnectionClient2.dispose(handleId);
-            removeClickListener(index);
-
-            SurfaceViewRenderer renderer = surfaceViewRenderers.get(index);
-            renderer.setBackground(null);
-            if(index == 0) {
-                renderer.clearImage();
-            } else {
-                renderer.setVisibility(View.INVISIBLE);
-            }
-            positionVector.set(index, BigInteger.ZERO);
-            break;
+            layout[index] = JanusId.NONE;
+            return true;
         }
+        return false;
     }
 
     @Override
@@ -1084,5 +1377,35 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     public void onChannelError(String errorMessage){
 
     }
+
+    @Override
+    public void onChannelReconnecting(final int attempt) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast("Signaling lost, reconnecting (" + attempt + ")...");
+            }
+        });
+    }
+
+    @Override
+    public void onTalking(final long id, final boolean talking, final float level) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (id != localHandleId) speakerDetector.setTalking(id, talking, level);
+            }
+        });
+    }
+
+    @Override
+    public void onChannelReconnected(final long downMillis) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                logAndToast("Signaling restored after " + downMillis + "ms");
+            }
+        });
+    }
 }
 
@@ -29,6 +29,9 @@ import java.net.URISyntaxException;
 public class WebSocketChannelClient {
     private static final String TAG = "WebSocketChannelClient";
     private static final int CLOSE_TIMEOUT = 1000;
+    private static final int QUEUE_CAPACITY = 256;
+    // Messages written per looper turn, so events and control messages are not held back.
+    private static final int WRITE_BATCH = 32;
     private final WebSocketChannelEvents events;
     private final Handler handler;
     private WebSocketConnection ws;
@@ -40,6 +43,10 @@ public class WebSocketChannelClient {
     private WebSocketObserver wsObserver;
     private final Object closeEventLock = new Object();
     private boolean closeEvent;
+    private final OutboundMessageQueue queue = new OutboundMessageQueue(QUEUE_CAPACITY);
+    private final Runnable flush = this::flush;
+    private boolean flushPosted;
+    private volatile boolean logPayloads = true;
 
     /**
      * Possible WebSocket connection states.
@@ -68,6 +75,16 @@ public class WebSocketChannelClient {
         return state;
     }
 
+    // Whether message payloads are logged; otherwise only their length is.
+    public void setLogPayloads(boolean logPayloads) {
+        this.logPayloads = logPayloads;
+    }
+
+    // Outgoing messages not written yet, with their metrics.
+    public OutboundMessageQueue getQueue() {
+        return queue;
+    }
+
     //for janus,all run on websocket without http rest operation.
     public void connect(final String wsUrl, final String [] subProtocols){
         checkIfCalledOnValidThread();
@@ -92,16 +109,21 @@ public class WebSocketChannelClient {
         }
     }
 
+    // Queues |message|; it is written once the socket is open, in priority order.
     public void send(String message){
         checkIfCalledOnValidThread();
 
-        if (state != WebSocketConnectionState.CONNECTED) {
+        if (state == WebSocketConnectionState.CLOSED || state == WebSocketConnectionState.ERROR) {
             Log.w(TAG, "WebSocket send message in non-connection state. State: " + state);
             return;
         }
-
-        Log.d(TAG, "C->WSS: " + message);
-        ws.sendTextMessage(message);
+        if (!queue.offer(message)) {
+            Log.w(TAG, "WebSocket send queue full, dropping message. Queue: " + queue);
+            return;
+        }
+        if (state == WebSocketConnectionState.CONNECTED) {
+            postFlush();
+        }
     }
 
 
@@ -113,6 +135,7 @@ public class WebSocketChannelClient {
         if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
             ws.disconnect();
             state = WebSocketConnectionState.CLOSED;
+            dropQueue();
 
             // Wait for websocket close event to prevent websocket library from
             // sending any pending messages to deleted looper thread.
@@ -139,12 +162,50 @@ public class WebSocketChannelClient {
             public void run() {
                 if (state != WebSocketConnectionState.ERROR) {
                     state = WebSocketConnectionState.ERROR;
+                    dropQueue();
                     events.onWebSocketError(errorMessage);
                 }
             }
         });
     }
 
+    // Schedules a flush on the looper, at most one is pending.
+    private void postFlush() {
+        if (!flushPosted) {
+            flushPosted = true;
+            handler.post(flush);
+        }
+    }
+
+    // Writes queued messages back to back, a batch per looper turn.
+    private void flush() {
+        flushPosted = false;
+        if (state != WebSocketConnectionState.CONNECTED) {
+            return;
+        }
+        for (int i = 0; i < WRITE_BATCH; i++) {
+            String message = queue.poll();
+            if (message == null) {
+                return;
+            }
+            if (logPayloads) {
+                Log.d(TAG, "C->WSS: " + message);
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "C->WSS: " + message.length() + " chars");
+            }
+            ws.sendTextMessage(message);
+        }
+        postFlush();
+    }
+
+    // Queued messages belong to this connection, a new one starts empty.
+    private void dropQueue() {
+        if (!queue.isEmpty()) {
+            Log.w(TAG, "Dropping " + queue.depth() + " unsent messages. Queue: " + queue);
+            queue.clear();
+        }
+    }
+
     // Helper method for debugging purposes. Ensures that WebSocket method is
     // called on a looper thread.
     private void checkIfCalledOnValidThread() {
@@ -163,6 +224,7 @@ public class WebSocketChannelClient {
                     if (state != WebSocketConnectionState.CONNECTED) {
                         state = WebSocketConnectionState.CONNECTED;
                         events.onWebSocketOpen();
+                        postFlush();
                     }
                 }
             });
@@ -181,6 +243,7 @@ public class WebSocketChannelClient {
                 public void run() {
                     if (state != WebSocketConnectionState.CLOSED) {
                         state = WebSocketConnectionState.CLOSED;
+                        dropQueue();
                         events.onWebSocketClose();
                     }
                 }
@@ -189,7 +252,9 @@ public class WebSocketChannelClient {
 
         @Override
         public void onTextMessage(String payload) {
-            Log.d(TAG, "WSS->C: " + payload);
+            if (logPayloads) {
+                Log.d(TAG, "WSS->C: " + payload);
+            }
             final String message = payload;
             handler.post(new Runnable() {
                 @Override
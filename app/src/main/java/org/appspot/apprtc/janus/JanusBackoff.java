@@ -0,0 +1,40 @@
+package org.appspot.apprtc.janus;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for reconnect attempts.
+ *
+ * <p>The n-th delay is drawn uniformly from the upper half of min(max, base * 2^n), so
+ * clients dropped by the same network event do not come back in lockstep.
+ */
+public class JanusBackoff {
+    private final Random random = new Random();
+    private int baseMillis;
+    private int maxMillis;
+    private int attempts;
+
+    public JanusBackoff(int baseMillis, int maxMillis) {
+        setLimits(baseMillis, maxMillis);
+    }
+
+    public void setLimits(int baseMillis, int maxMillis) {
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    }
+
+    public long nextDelayMillis() {
+        long ceiling = Math.min(maxMillis, (long) baseMillis << Math.min(attempts, 20));
+        attempts++;
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half + 1));
+    }
+
+    public int attempts() {
+        return attempts;
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -2,8 +2,38 @@ package org.appspot.apprtc.janus;
 
 public class JanusCommon {
 
-    // Janus keepalive interval
+    // Janus keepalive interval until the server reports its session timeout
     public static final int delayMillis = 25000;
+    // A keepalive unanswered for this long, with nothing else received, means the server is gone
+    public static final int keepAliveAckTimeoutMillis = 10000;
+
+    // Pending transactions fail with a timeout error after this long without a reply
+    public static final int transactionTimeoutMillis = 15000;
+    // Transactions in flight before new ones are queued, and queued ones before they are refused
+    public static final int maxInFlightTransactions = 32;
+    public static final int maxQueuedTransactions = 256;
+
+    // Local candidates of a handle are coalesced into one trickle for this long, up to a batch size
+    public static final int trickleBatchWindowMillis = 30;
+    public static final int trickleBatchMaxCandidates = 16;
+
+    // A dropped transport is reopened with backoff between these delays and the session
+    // claimed again, until the server would have expired it (janus session_timeout)
+    public static final int reconnectBaseDelayMillis = 250;
+    public static final int reconnectMaxDelayMillis = 8000;
+    public static final int reconnectGiveUpMillis = 60000;
+
+    // Subscribers set up at the same time, and feeds set up first because they will be on screen
+    public static final int maxConcurrentSubscriptions = 4;
+    public static final int onScreenSubscriptions = 4;
+
+    // Publisher joins and leaves are collected for this long and only the net roster change applied
+    public static final int membershipWindowMillis = 150;
+
+    // A subscribed feed off screen for this long stops receiving video until it is shown again
+    public static final int videoPauseDelayMillis = 2000;
+    // A higher simulcast layer has to be wanted this long before the subscriber switches up
+    public static final int layerUpgradeHoldMillis = 4000;
 
     // Got value by JanusConnectionParameters object
     private static final String[] subProtocols = {"janus-protocol"};
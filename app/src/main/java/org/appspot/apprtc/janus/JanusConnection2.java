@@ -1,15 +1,18 @@
 package org.appspot.apprtc.janus;
 
 import org.appspot.apprtc.PeerConnectionClient2;
+import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.VideoTrack;
 
-import java.math.BigInteger;
+import java.util.List;
 
 public class JanusConnection2 {
-    public BigInteger handleId;
+    public long handleId;
     public PeerConnection peerConnection;
     public PeerConnectionClient2.SDPObserver sdpObserver;
     public VideoTrack videoTrack;
     public boolean type;
+    // Remote candidates wait here until both descriptions are set, null once drained.
+    public List<IceCandidate> queuedRemoteCandidates;
 }
@@ -0,0 +1,13 @@
+package org.appspot.apprtc.janus;
+
+/**
+ * Serial executor the signaling engine runs on.
+ *
+ * <p>All tasks must run in submission order on a single thread, like an android Handler.
+ */
+public interface JanusExecutor {
+    void execute(Runnable task);
+    void executeDelayed(Runnable task, long delayMillis);
+    void cancel(Runnable task);
+    boolean isCurrentThread();
+}
@@ -3,8 +3,6 @@ package org.appspot.apprtc.janus;
 
 import org.json.JSONObject;
 
-import java.math.BigInteger;
-
 public class JanusHandle {
     public interface OnJoined{
         void onJoined(JanusHandle janusHandle);
@@ -13,8 +11,8 @@ public class JanusHandle {
     public interface OnRemoteJsep{
         void onRemoteJsep(JanusHandle janusHandle, JSONObject jsep);
     }
-    public BigInteger handleId;
-    public BigInteger feedId;
+    public long handleId;
+    public long feedId;
     public String display;
 
     public OnJoined onJoined;
@@ -0,0 +1,298 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.util.LaneExecutor;
+import org.appspot.apprtc.util.LatencyHistogram;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.webrtc.Logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Janus REST API transport: requests are POSTed, events are fetched by long polling.
+ *
+ * <p>Requests go to the session or handle path they address, on a small pool of threads
+ * with HTTP keep-alive. Requests of one handle are sent in order on a serial lane, a lane
+ * sends everything queued on it back to back over the same pooled connection, and
+ * different handles are sent in parallel. One long poll per session fetches up to
+ * MAX_EVENTS events per round trip. The server is probed on connect, so a reconnect only
+ * opens once Janus answers again.
+ */
+public class JanusHttpTransport implements JanusTransport {
+    private static final String TAG = "JanusHttpTransport";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int THREADS = 4;
+    private static final int TIMEOUT_MS = 8000;
+    // Janus answers a long poll with a keepalive after 30 seconds.
+    private static final int POLL_TIMEOUT_MS = 40000;
+    private static final int MAX_EVENTS = 16;
+
+    private final JanusExecutor executor;
+    private final JanusMessageReader reader = new JanusMessageReader();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram pollLatency = new LatencyHistogram();
+    private LaneExecutor lanes;
+    private ExecutorService poller;
+    private Events events;
+    private String baseUrl;
+    // Bumped by connect and disconnect, results of an older generation are dropped.
+    private volatile int generation;
+    private volatile long polledSessionId = JanusId.NONE;
+    private volatile HttpURLConnection pollConnection;
+
+    public JanusHttpTransport(JanusExecutor executor) {
+        this.executor = executor;
+    }
+
+    public static boolean isHttpUrl(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    // POST round trips, and long polls that returned events.
+    public LatencyHistogram requestLatency() {
+        return requestLatency;
+    }
+
+    public LatencyHistogram pollLatency() {
+        return pollLatency;
+    }
+
+    @Override
+    public void connect(JanusConnectionParameters connectionParameters, Events events) {
+        this.events = events;
+        String url = connectionParameters.wsServerUrl;
+        baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        final int connection = ++generation;
+        stopPolling();
+        if (lanes == null) {
+            lanes = new LaneExecutor(TAG, THREADS);
+            poller = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG + "-poll"));
+        }
+
+        final String infoUrl = baseUrl + "/info";
+        poller.execute(() -> {
+            try {
+                request("GET", infoUrl, null, false);
+                deliver(connection, () -> this.events.onTransportOpen());
+            } catch (IOException e) {
+                failed(connection, "GET " + infoUrl + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void send(final String message) {
+        if (lanes == null) {
+            Logging.w(TAG, "send() before connect, dropping message");
+            return;
+        }
+        final String verb = field(message, "\"janus\":\"");
+        long sessionId = id(message, "\"session_id\":");
+        long handleId = id(message, "\"handle_id\":");
+        StringBuilder path = new StringBuilder(baseUrl);
+        if (sessionId != JanusId.NONE) path.append('/').append(JanusId.toString(sessionId));
+        if (handleId != JanusId.NONE) path.append('/').append(JanusId.toString(handleId));
+        final String url = path.toString();
+        final long requestSessionId = sessionId;
+        final int connection = generation;
+
+        if ("destroy".equals(verb)) stopPolling();
+
+        lanes.lane(handleId != JanusId.NONE ? handleId : sessionId).execute(() -> {
+            long startNanos = System.nanoTime();
+            try {
+                final String response = request("POST", url, message, false);
+                requestLatency.record((System.nanoTime() - startNanos) / 1000000);
+                deliver(connection, () -> onResponse(verb, requestSessionId, response));
+            } catch (IOException e) {
+                failed(connection, "POST " + url + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        generation++;
+        stopPolling();
+        if (lanes != null) {
+            // Requests already queued, like destroy, are still sent.
+            lanes.shutdown();
+            poller.shutdown();
+            lanes = null;
+            poller = null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions, on the executor thread unless noted.
+    // ----------------------------------------------------------------------------
+    private void onResponse(String verb, long sessionId, String response) {
+        try {
+            reader.read(response);
+            if (reader.type() == JanusMessageReader.Type.SUCCESS) {
+                if ("create".equals(verb)) {
+                    startPolling(reader.dataId());
+                } else if ("claim".equals(verb)) {
+                    startPolling(sessionId);
+                }
+            }
+        } catch (JSONException e) {
+            Logging.w(TAG, "Unreadable response to " + verb + ": " + e.getMessage());
+        }
+        events.onTransportMessage(response);
+    }
+
+    private void startPolling(long sessionId) {
+        if (sessionId == JanusId.NONE || sessionId == polledSessionId) return;
+        polledSessionId = sessionId;
+        final int connection = generation;
+        final String url = baseUrl + "/" + JanusId.toString(sessionId) + "?maxev=" + MAX_EVENTS;
+        poller.execute(() -> poll(connection, sessionId, url));
+    }
+
+    private void stopPolling() {
+        polledSessionId = JanusId.NONE;
+        HttpURLConnection connection = pollConnection;
+        if (connection != null) connection.disconnect();
+    }
+
+    // On the poll thread, until polling stops or a poll fails.
+    private void poll(int connection, long sessionId, String url) {
+        while (connection == generation && sessionId == polledSessionId) {
+            long startNanos = System.nanoTime();
+            final String response;
+            try {
+                response = request("GET", url + "&rid=" + System.currentTimeMillis(), null, true);
+            } catch (IOException e) {
+                if (sessionId == polledSessionId) {
+                    failed(connection, "Long poll error: " + e.getMessage());
+                }
+                return;
+            }
+            final long pollMillis = (System.nanoTime() - startNanos) / 1000000;
+            deliver(connection, () -> onEvents(response, pollMillis));
+        }
+    }
+
+    // With maxev Janus answers with an array of events. A poll that brought nothing but a
+    // keepalive timed out on the server, its latency is not recorded.
+    private void onEvents(String response, long pollMillis) {
+        if (polledSessionId == JanusId.NONE) return;
+        boolean delivered = false;
+        if (!isArray(response)) {
+            delivered = onEvent(response);
+        } else {
+            try {
+                JSONArray array = new JSONArray(response);
+                for (int i = 0; i < array.length(); i++) {
+                    delivered |= onEvent(array.get(i).toString());
+                }
+            } catch (JSONException e) {
+                Logging.e(TAG, "Unreadable events: " + e.getMessage());
+            }
+        }
+        if (delivered) pollLatency.record(pollMillis);
+    }
+
+    // Hands |event| to the engine unless it is a keepalive, which Janus sends in any layout.
+    private boolean onEvent(String event) {
+        try {
+            reader.read(event);
+            if (reader.type() == JanusMessageReader.Type.KEEPALIVE) return false;
+        } catch (JSONException e) {
+            // The engine reports unreadable messages.
+        }
+        events.onTransportMessage(event);
+        return true;
+    }
+
+    // Any thread.
+    private void deliver(final int connection, final Runnable runnable) {
+        executor.execute(() -> {
+            if (connection == generation) runnable.run();
+        });
+    }
+
+    // Any thread.
+    private void failed(final int connection, final String description) {
+        Logging.e(TAG, description);
+        deliver(connection, () -> {
+            // Later failures of the same connection are not reported again.
+            generation++;
+            stopPolling();
+            events.onTransportError(description);
+        });
+    }
+
+    // On a pool thread. The response is read to the end so the connection can be reused.
+    private String request(String method, String url, String body, boolean poll) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(poll ? POLL_TIMEOUT_MS : TIMEOUT_MS);
+        if (poll) pollConnection = connection;
+        try {
+            if (body != null) {
+                byte[] data = body.getBytes(UTF_8);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(data.length);
+                connection.setRequestProperty("Content-Type", "application/json");
+                OutputStream out = connection.getOutputStream();
+                out.write(data);
+                out.close();
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + responseCode);
+            }
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                response.write(buffer, 0, length);
+            }
+            in.close();
+            return response.toString("UTF-8");
+        } finally {
+            if (poll) pollConnection = null;
+        }
+    }
+
+    private static boolean isArray(String response) {
+        for (int i = 0; i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (!Character.isWhitespace(c)) return c == '[';
+        }
+        return false;
+    }
+
+    // String value after |key|, null if absent.
+    private static String field(String message, String key) {
+        int start = message.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        int end = message.indexOf('"', start);
+        return end < 0 ? null : message.substring(start, end);
+    }
+
+    // Unsigned id after |key|, NONE if absent.
+    private static long id(String message, String key) {
+        int start = message.indexOf(key);
+        if (start < 0) return JanusId.NONE;
+        start += key.length();
+        int end = start;
+        while (end < message.length() && Character.isDigit(message.charAt(end))) end++;
+        return end == start ? JanusId.NONE : JanusId.parse(message.substring(start, end));
+    }
+}
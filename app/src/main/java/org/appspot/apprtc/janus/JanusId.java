@@ -0,0 +1,38 @@
+package org.appspot.apprtc.janus;
+
+/**
+ * Janus session, handle and feed ids.
+ *
+ * <p>Ids are unsigned 64-bit integers, carried around as primitive longs so routing never
+ * allocates. NONE (0) is never handed out by Janus and marks a missing id.
+ */
+public final class JanusId {
+    public static final long NONE = 0;
+    // 2^64 / 10, the largest value that can take one more digit.
+    private static final long MAX_DIV_10 = 1844674407370955161L;
+
+    private JanusId() {}
+
+    // Long.toUnsignedString and Long.parseUnsignedLong need API 26.
+    public static String toString(long id) {
+        if (id >= 0) return Long.toString(id);
+        long quotient = (id >>> 1) / 5;
+        long remainder = id - quotient * 10;
+        return Long.toString(quotient) + remainder;
+    }
+
+    public static long parse(String value) {
+        int length = value.length();
+        if (length == 0 || length > 20) throw new NumberFormatException("Bad janus id: " + value);
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Bad janus id: " + value);
+            if (i == 19 && (result > MAX_DIV_10 || (result == MAX_DIV_10 && digit > 5))) {
+                throw new NumberFormatException("Janus id out of range: " + value);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
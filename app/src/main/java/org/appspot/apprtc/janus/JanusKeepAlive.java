@@ -0,0 +1,150 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LatencyHistogram;
+import org.webrtc.Logging;
+
+/**
+ * Schedules session keepalives.
+ *
+ * <p>Any request refreshes a Janus session, so a keepalive only goes out when nothing else
+ * was sent for a whole interval. The interval is half the session timeout the server
+ * reports in its info, JanusCommon.delayMillis until it is known. Keepalive acks are timed;
+ * one that stays unanswered for ackTimeoutMillis while nothing else arrives either marks
+ * the server unresponsive, usually long before a dead TCP connection is noticed.
+ *
+ * <p>All methods must be called on the engine executor thread.
+ */
+public class JanusKeepAlive {
+    private static final String TAG = "JanusKeepAlive";
+    // Liveness pings for servers without a session timeout.
+    private static final int MAX_INTERVAL_MILLIS = 60000;
+
+    public interface Listener {
+        // Send a keepalive request with |transactionId|.
+        void sendKeepAlive(String transactionId);
+        // Nothing arrived for |silentMillis| after a keepalive.
+        void onServerUnresponsive(long silentMillis);
+    }
+
+    private final JanusExecutor executor;
+    private final JanusTransactionIds transactionIds;
+    private final Listener listener;
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final Runnable tick = this::tick;
+    private final Runnable ackTimeout = this::ackTimeout;
+    private int intervalMillis = JanusCommon.delayMillis;
+    private int ackTimeoutMillis = JanusCommon.keepAliveAckTimeoutMillis;
+    private boolean running;
+    private long lastSentNanos, lastReceivedNanos;
+    private String pendingTransaction;
+    private long pendingSentNanos;
+    private volatile long sent, skipped;
+
+    public JanusKeepAlive(JanusExecutor executor, JanusTransactionIds transactionIds, Listener listener) {
+        this.executor = executor;
+        this.transactionIds = transactionIds;
+        this.listener = listener;
+    }
+
+    public void start() {
+        running = true;
+        lastSentNanos = System.nanoTime();
+        executor.cancel(tick);
+        executor.executeDelayed(tick, intervalMillis);
+    }
+
+    public void stop() {
+        running = false;
+        pendingTransaction = null;
+        executor.cancel(tick);
+        executor.cancel(ackTimeout);
+    }
+
+    // A request went out to the session.
+    public void onSent() {
+        lastSentNanos = System.nanoTime();
+    }
+
+    // A message arrived from the server.
+    public void onReceived() {
+        lastReceivedNanos = System.nanoTime();
+    }
+
+    // Returns true if |transactionId| is the ack of the outstanding keepalive.
+    public boolean onAck(String transactionId) {
+        if (pendingTransaction == null || !pendingTransaction.equals(transactionId)) return false;
+        roundTrip.record((System.nanoTime() - pendingSentNanos) / 1000000);
+        pendingTransaction = null;
+        executor.cancel(ackTimeout);
+        return true;
+    }
+
+    // The session-timeout of the server info in seconds, 0 if sessions never expire.
+    public void setSessionTimeout(int seconds) {
+        int interval = seconds > 0 ? Math.min(seconds * 1000 / 2, MAX_INTERVAL_MILLIS) : MAX_INTERVAL_MILLIS;
+        Logging.d(TAG, "Session timeout " + seconds + "s, keepalive every " + interval + "ms");
+        intervalMillis = interval;
+        if (running) {
+            executor.cancel(tick);
+            tick();
+        }
+    }
+
+    public void setAckTimeout(int ackTimeoutMillis) {
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    public int intervalMillis() {
+        return intervalMillis;
+    }
+
+    // Keepalive round trips, unanswered ones count as timeouts.
+    public LatencyHistogram roundTrip() {
+        return roundTrip;
+    }
+
+    public long sent() {
+        return sent;
+    }
+
+    // Intervals in which other traffic made the keepalive unnecessary.
+    public long skipped() {
+        return skipped;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private void tick() {
+        if (!running) return;
+
+        long idleMillis = (System.nanoTime() - lastSentNanos) / 1000000;
+        if (idleMillis < intervalMillis) {
+            skipped++;
+            executor.executeDelayed(tick, intervalMillis - idleMillis);
+            return;
+        }
+        if (pendingTransaction == null) {
+            pendingTransaction = transactionIds.next();
+            pendingSentNanos = System.nanoTime();
+            sent++;
+            executor.executeDelayed(ackTimeout, ackTimeoutMillis);
+            listener.sendKeepAlive(pendingTransaction);
+        }
+        executor.executeDelayed(tick, intervalMillis);
+    }
+
+    private void ackTimeout() {
+        if (!running || pendingTransaction == null) return;
+
+        pendingTransaction = null;
+        roundTrip.recordTimeout();
+        if (lastReceivedNanos - pendingSentNanos > 0) {
+            // Something else came back, the server is alive.
+            return;
+        }
+        long silentMillis = (System.nanoTime() - Math.max(lastReceivedNanos, pendingSentNanos)) / 1000000;
+        Logging.w(TAG, "No keepalive ack after " + ackTimeoutMillis + "ms, nothing received for " + silentMillis + "ms");
+        listener.onServerUnresponsive(silentMillis);
+    }
+}
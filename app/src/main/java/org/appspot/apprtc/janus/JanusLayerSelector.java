@@ -0,0 +1,198 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.Logging;
+
+import java.util.ArrayList;
+
+/**
+ * Picks the simulcast substream and temporal layer of each subscribed feed.
+ *
+ * <p>The substream follows the height of the tile the feed is drawn in, capped by the
+ * downlink: while the layers chosen add up to more than the measured bandwidth, the feed
+ * on the highest layer steps down, the smaller tile first. A feed losing packets steps
+ * down one substream. A feed the decoder cannot keep up with drops a temporal layer
+ * first, then a substream. Lower layers are taken at once; higher ones only after they
+ * have been wanted for upgradeHoldMillis, so a fluctuating estimate does not make the
+ * server switch back and forth.
+ *
+ * <p>All methods must be called on the engine executor thread.
+ */
+public class JanusLayerSelector {
+    private static final String TAG = "JanusLayerSelector";
+    public static final int TOP_SUBSTREAM = 2;
+    public static final int TOP_TEMPORAL = 2;
+    // Frame heights and bitrates of the substreams of a 720p publisher (rids l, m and h).
+    private static final int[] SUBSTREAM_HEIGHTS = {180, 360, 720};
+    private static final int[] SUBSTREAM_KBPS = {100, 300, 900};
+    private static final float LOSS_PERCENT = 5;
+    private static final float DECODE_MS_PER_FRAME = 20;
+    // Share of the downlink the layers may take.
+    private static final float DOWNLINK_SHARE = 0.85f;
+
+    public interface Listener {
+        // Ask the server to switch |id| to these layers; call onSent() with the outcome.
+        void sendLayers(long id, int substream, int temporal);
+    }
+
+    private static final class Feed {
+        final long id;
+        int tileHeight = SUBSTREAM_HEIGHTS[TOP_SUBSTREAM];
+        float lossPercent;
+        boolean overloaded;
+        // Janus forwards the top layers until told otherwise.
+        int substream = TOP_SUBSTREAM;
+        int temporal = TOP_TEMPORAL;
+        int wantedSubstream, wantedTemporal;
+        long upSinceMs;
+        boolean inFlight;
+
+        Feed(long id) {
+            this.id = id;
+        }
+    }
+
+    private final Listener listener;
+    private final LongHashMap<Feed> feeds = new LongHashMap<>();
+    private final ArrayList<Feed> feedList = new ArrayList<>();
+    private boolean enabled;
+    private int upgradeHoldMillis = JanusCommon.layerUpgradeHoldMillis;
+    private volatile long switches;
+
+    public JanusLayerSelector(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setUpgradeHold(int upgradeHoldMillis) {
+        this.upgradeHoldMillis = upgradeHoldMillis;
+    }
+
+    // Height in pixels of the tile |id| is drawn in, 0 when it is not on screen.
+    public void setTileHeight(long id, int height) {
+        feed(id).tileHeight = height;
+    }
+
+    // Receive statistics of |id| over the last interval.
+    public void setSample(long id, float lossPercent, float decodeMsPerFrame, long framesDropped) {
+        Feed feed = feed(id);
+        feed.lossPercent = lossPercent;
+        feed.overloaded = decodeMsPerFrame > DECODE_MS_PER_FRAME || framesDropped > 0;
+    }
+
+    // Chooses the layers of every feed, |downlinkKbps| is 0 when unknown.
+    public void evaluate(int downlinkKbps, long nowMs) {
+        if (!enabled) return;
+
+        for (int i = 0; i < feedList.size(); i++) {
+            Feed feed = feedList.get(i);
+            int substream = substreamFor(feed.tileHeight);
+            int temporal = TOP_TEMPORAL;
+            if (feed.lossPercent > LOSS_PERCENT) substream = Math.min(substream, feed.substream - 1);
+            if (feed.overloaded) {
+                temporal = feed.temporal - 1;
+                if (temporal < 0) {
+                    temporal = 0;
+                    substream = Math.min(substream, feed.substream - 1);
+                }
+            }
+            feed.wantedSubstream = Math.max(substream, 0);
+            feed.wantedTemporal = temporal;
+        }
+        if (downlinkKbps > 0) fitDownlink(downlinkKbps * DOWNLINK_SHARE);
+
+        for (int i = 0; i < feedList.size(); i++) {
+            Feed feed = feedList.get(i);
+            boolean down = feed.wantedSubstream < feed.substream || feed.wantedTemporal < feed.temporal;
+            boolean up = feed.wantedSubstream > feed.substream || feed.wantedTemporal > feed.temporal;
+            if (!down && !up) {
+                feed.upSinceMs = 0;
+                continue;
+            }
+            if (!down) {
+                if (feed.upSinceMs == 0) feed.upSinceMs = nowMs;
+                if (nowMs - feed.upSinceMs < upgradeHoldMillis) continue;
+            }
+            send(feed);
+        }
+    }
+
+    // Result of a Listener.sendLayers() request.
+    public void onSent(long id, int substream, int temporal, boolean ok) {
+        Feed feed = feeds.get(id);
+        if (feed == null) return;
+        feed.inFlight = false;
+        if (!ok) {
+            Logging.w(TAG, "Could not switch " + id + " to substream " + substream + ", temporal " + temporal);
+            return;
+        }
+        feed.substream = substream;
+        feed.temporal = temporal;
+        feed.upSinceMs = 0;
+        switches++;
+    }
+
+    public void remove(long id) {
+        Feed feed = feeds.remove(id);
+        if (feed != null) feedList.remove(feed);
+    }
+
+    public void clear() {
+        feeds.clear();
+        feedList.clear();
+    }
+
+    // Layer switches the server confirmed.
+    public long switches() {
+        return switches;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private Feed feed(long id) {
+        Feed feed = feeds.get(id);
+        if (feed == null) {
+            feed = new Feed(id);
+            feeds.put(id, feed);
+            feedList.add(feed);
+        }
+        return feed;
+    }
+
+    private void fitDownlink(float budgetKbps) {
+        int totalKbps = 0;
+        for (int i = 0; i < feedList.size(); i++) totalKbps += SUBSTREAM_KBPS[feedList.get(i).wantedSubstream];
+
+        while (totalKbps > budgetKbps) {
+            Feed largest = null;
+            for (int i = 0; i < feedList.size(); i++) {
+                Feed feed = feedList.get(i);
+                if (feed.wantedSubstream == 0) continue;
+                if (largest == null || feed.wantedSubstream > largest.wantedSubstream
+                        || (feed.wantedSubstream == largest.wantedSubstream && feed.tileHeight < largest.tileHeight)) {
+                    largest = feed;
+                }
+            }
+            if (largest == null) return;
+            totalKbps -= SUBSTREAM_KBPS[largest.wantedSubstream] - SUBSTREAM_KBPS[largest.wantedSubstream - 1];
+            largest.wantedSubstream--;
+        }
+    }
+
+    private void send(Feed feed) {
+        if (feed.inFlight) return;
+        feed.inFlight = true;
+        listener.sendLayers(feed.id, feed.wantedSubstream, feed.wantedTemporal);
+    }
+
+    private static int substreamFor(int tileHeight) {
+        for (int substream = 0; substream < TOP_SUBSTREAM; substream++) {
+            if (tileHeight <= SUBSTREAM_HEIGHTS[substream]) return substream;
+        }
+        return TOP_SUBSTREAM;
+    }
+}
@@ -0,0 +1,51 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONException;
+
+/**
+ * Routes inbound Janus messages to typed handlers.
+ *
+ * <p>Only the message header is decoded before routing (see JanusMessageReader), so
+ * notifications like `media` or `slowlink` never build a JSONObject. Handlers decode
+ * whatever else they need from the reader, which is only valid during the callback.
+ */
+public class JanusMessageDispatcher {
+    public interface Handler {
+        void onAck(JanusMessageReader message) throws JSONException;
+        void onSuccess(JanusMessageReader message) throws JSONException;
+        void onError(JanusMessageReader message) throws JSONException;
+        void onEvent(JanusMessageReader message) throws JSONException;
+        default void onWebrtcUp(JanusMessageReader message) throws JSONException {}
+        default void onMedia(JanusMessageReader message) throws JSONException {}
+        default void onSlowLink(JanusMessageReader message) throws JSONException {}
+        default void onHangup(JanusMessageReader message) throws JSONException {}
+        default void onDetached(JanusMessageReader message) throws JSONException {}
+        default void onServerInfo(JanusMessageReader message) throws JSONException {}
+        void onUnrecognized(JanusMessageReader message) throws JSONException;
+    }
+
+    private final JanusMessageReader reader = new JanusMessageReader();
+    private final Handler handler;
+
+    public JanusMessageDispatcher(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void dispatch(String message) throws JSONException {
+        reader.read(message);
+
+        switch (reader.type()) {
+            case ACK: handler.onAck(reader); break;
+            case SUCCESS: handler.onSuccess(reader); break;
+            case ERROR: handler.onError(reader); break;
+            case EVENT: handler.onEvent(reader); break;
+            case WEBRTCUP: handler.onWebrtcUp(reader); break;
+            case MEDIA: handler.onMedia(reader); break;
+            case SLOWLINK: handler.onSlowLink(reader); break;
+            case HANGUP: handler.onHangup(reader); break;
+            case DETACHED: handler.onDetached(reader); break;
+            case SERVER_INFO: handler.onServerInfo(reader); break;
+            default: handler.onUnrecognized(reader); break;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Streaming view over one inbound Janus message.
+ *
+ * <p>read() makes a single pass over the top-level object and only remembers where the
+ * interesting values are: `janus`, `transaction`, `sender`, `data`, `jsep`, `error` and
+ * `plugindata.data` with its `videoroom` discriminator. Nothing is copied out of the
+ * message until a getter asks for it, and nested objects are parsed with org.json on
+ * demand. A reader is reused for every message, so it is not thread-safe.
+ */
+public class JanusMessageReader {
+
+    public enum Type {
+        ACK("ack"), SUCCESS("success"), ERROR("error"), EVENT("event"), WEBRTCUP("webrtcup"),
+        MEDIA("media"), SLOWLINK("slowlink"), HANGUP("hangup"), DETACHED("detached"),
+        SERVER_INFO("server_info"), KEEPALIVE("keepalive"), UNKNOWN("");
+
+        private final String value;
+        Type(String value) { this.value = value; }
+    }
+
+    public enum VideoRoom {
+        JOINED("joined"), ATTACHED("attached"), UPDATED("updated"), EVENT("event"),
+        SLOW_LINK("slow_link"), TALKING("talking"), STOPPED_TALKING("stopped-talking"),
+        ERROR("error"), UNKNOWN("");
+
+        private final String value;
+        VideoRoom(String value) { this.value = value; }
+    }
+
+    private static final Type[] types = Type.values();
+    private static final VideoRoom[] videoRooms = VideoRoom.values();
+
+    private String msg;
+    private int pos;
+    private Type type;
+    private VideoRoom videoRoom;
+    private String transaction;
+
+    // Value spans: [start, end) of a string content or of a whole number/object/array, -1 if absent.
+    private int transactionStart, transactionEnd;
+    private int senderStart, senderEnd;
+    private int dataStart, dataEnd;
+    private int jsepStart, jsepEnd;
+    private int errorStart, errorEnd;
+    private int pluginDataStart, pluginDataEnd;
+
+    public void read(String message) throws JSONException {
+        msg = message;
+        pos = 0;
+        type = Type.UNKNOWN;
+        videoRoom = null;
+        transaction = null;
+        transactionStart = transactionEnd = senderStart = senderEnd = -1;
+        dataStart = dataEnd = jsepStart = jsepEnd = errorStart = errorEnd = -1;
+        pluginDataStart = pluginDataEnd = -1;
+
+        expect('{');
+        if (peek() == '}') return;
+        do {
+            int keyStart = readStringSpan();
+            int keyEnd = pos - 1;
+            expect(':');
+            skipWhitespace();
+            int valueStart = pos;
+
+            if (keyIs("janus", keyStart, keyEnd)) {
+                int start = readStringSpan();
+                type = match(start, pos - 1);
+            } else if (keyIs("transaction", keyStart, keyEnd)) {
+                if (peek() == '"') {
+                    transactionStart = readStringSpan();
+                    transactionEnd = pos - 1;
+                } else {
+                    skipValue();
+                }
+            } else if (keyIs("sender", keyStart, keyEnd)) {
+                skipValue();
+                senderStart = valueStart;
+                senderEnd = pos;
+            } else if (keyIs("plugindata", keyStart, keyEnd)) {
+                readPluginData();
+            } else if (keyIs("data", keyStart, keyEnd)) {
+                skipValue();
+                dataStart = valueStart;
+                dataEnd = pos;
+            } else if (keyIs("jsep", keyStart, keyEnd)) {
+                skipValue();
+                jsepStart = valueStart;
+                jsepEnd = pos;
+            } else if (keyIs("error", keyStart, keyEnd)) {
+                skipValue();
+                errorStart = valueStart;
+                errorEnd = pos;
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    // ----------------------------------------------------------------------------
+    // Header, available right after read()
+    // ----------------------------------------------------------------------------
+    public Type type() {
+        return type;
+    }
+
+    public String transaction() throws JSONException {
+        if (transaction == null) {
+            transaction = transactionStart < 0 ? "" : stringAt(transactionStart - 1);
+        }
+        return transaction;
+    }
+
+    public boolean hasSender() {
+        return senderStart >= 0 && senderEnd > senderStart && msg.charAt(senderStart) != 'n';
+    }
+
+    public long sender() {
+        return hasSender() ? longAt(senderStart) : 0;
+    }
+
+    public boolean hasPluginData() {
+        return pluginDataStart >= 0 && msg.charAt(pluginDataStart) == '{';
+    }
+
+    // Discriminator of plugindata.data, null when the message has no plugin data.
+    public VideoRoom videoRoom() {
+        return videoRoom;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Lazy accessors
+    // ----------------------------------------------------------------------------
+    // `data.id` of a success reply, 0 if absent.
+    public long dataId() {
+        int value = findValue(dataStart, "id");
+        return value < 0 ? 0 : longAt(value);
+    }
+
+    public boolean hasData() {
+        return dataStart >= 0 && msg.charAt(dataStart) == '{';
+    }
+
+    public boolean hasPluginField(String key) {
+        int value = findValue(pluginDataStart, key);
+        return value >= 0 && !isNull(value);
+    }
+
+    public boolean pluginFieldEquals(String key, String literal) {
+        int value = findValue(pluginDataStart, key);
+        if (value < 0 || msg.charAt(value) != '"') return false;
+        int end = msg.indexOf('"', value + 1);
+        return end - value - 1 == literal.length() && msg.regionMatches(value + 1, literal, 0, literal.length());
+    }
+
+    public boolean pluginFieldIsNumber(String key) {
+        int value = findValue(pluginDataStart, key);
+        if (value < 0) return false;
+        char c = msg.charAt(value);
+        if (c == '"' && value + 1 < msg.length()) c = msg.charAt(value + 1);
+        return c >= '0' && c <= '9';
+    }
+
+    public long pluginFieldLong(String key) {
+        int value = findValue(pluginDataStart, key);
+        return value < 0 ? 0 : longAt(value);
+    }
+
+    // Same result as JSONObject.optString: "" when absent.
+    public String pluginFieldString(String key) throws JSONException {
+        int value = findValue(pluginDataStart, key);
+        return value < 0 || isNull(value) ? "" : stringAt(value);
+    }
+
+    public JSONArray publishers() throws JSONException {
+        return pluginFieldArray("publishers");
+    }
+
+    public JSONArray pluginFieldArray(String key) throws JSONException {
+        int value = findValue(pluginDataStart, key);
+        if (value < 0 || msg.charAt(value) != '[') return null;
+        return new JSONArray(new JSONTokener(msg.substring(value, skipFrom(value))));
+    }
+
+    public JSONObject pluginData() throws JSONException {
+        return objectAt(pluginDataStart, pluginDataEnd);
+    }
+
+    public JSONObject jsep() throws JSONException {
+        return objectAt(jsepStart, jsepEnd);
+    }
+
+    public JSONObject error() throws JSONException {
+        return objectAt(errorStart, errorEnd);
+    }
+
+    public String message() {
+        return msg;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Scanner
+    // ----------------------------------------------------------------------------
+    private void readPluginData() throws JSONException {
+        if (peek() != '{') {
+            skipValue();
+            return;
+        }
+        pos++;
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        do {
+            int keyStart = readStringSpan();
+            int keyEnd = pos - 1;
+            expect(':');
+            skipWhitespace();
+            if (keyIs("data", keyStart, keyEnd) && peek() == '{') {
+                readVideoRoomData();
+            } else {
+                skipValue();
+            }
+        } while (nextMember());
+    }
+
+    private void readVideoRoomData() throws JSONException {
+        pluginDataStart = pos;
+        videoRoom = VideoRoom.UNKNOWN;
+        pos++;
+        if (peek() != '}') {
+            do {
+                int keyStart = readStringSpan();
+                int keyEnd = pos - 1;
+                expect(':');
+                skipWhitespace();
+                if (keyIs("videoroom", keyStart, keyEnd) && peek() == '"') {
+                    int start = readStringSpan();
+                    videoRoom = matchVideoRoom(start, pos - 1);
+                } else {
+                    skipValue();
+                }
+            } while (nextMember());
+        } else {
+            pos++;
+        }
+        pluginDataEnd = pos;
+    }
+
+    // Returns the start index of |key|'s value in the object starting at |objectStart|, or -1.
+    private int findValue(int objectStart, String key) {
+        if (objectStart < 0 || msg.charAt(objectStart) != '{') return -1;
+        int saved = pos;
+        try {
+            pos = objectStart + 1;
+            if (peek() == '}') return -1;
+            do {
+                int keyStart = readStringSpan();
+                int keyEnd = pos - 1;
+                expect(':');
+                skipWhitespace();
+                if (keyIs(key, keyStart, keyEnd)) return pos;
+                skipValue();
+            } while (nextMember());
+            return -1;
+        } catch (JSONException e) {
+            return -1;
+        } finally {
+            pos = saved;
+        }
+    }
+
+    private boolean nextMember() throws JSONException {
+        skipWhitespace();
+        if (pos >= msg.length()) throw syntaxError("Unterminated object");
+        char c = msg.charAt(pos++);
+        if (c == ',') return true;
+        if (c == '}') return false;
+        throw syntaxError("Expected , or }");
+    }
+
+    // Reads a string starting at the current position, returns the index of its first char.
+    private int readStringSpan() throws JSONException {
+        expect('"');
+        int start = pos;
+        int length = msg.length();
+        while (pos < length) {
+            char c = msg.charAt(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                return start;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipValue() throws JSONException {
+        skipWhitespace();
+        if (pos >= msg.length()) throw syntaxError("Missing value");
+        char c = msg.charAt(pos);
+        if (c == '"') {
+            readStringSpan();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            int length = msg.length();
+            while (pos < length) {
+                c = msg.charAt(pos);
+                if (c == '"') {
+                    readStringSpan();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return;
+                }
+            }
+            throw syntaxError("Unterminated value");
+        } else {
+            int length = msg.length();
+            while (pos < length) {
+                c = msg.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || c <= ' ') break;
+                pos++;
+            }
+        }
+    }
+
+    private int skipFrom(int start) {
+        int saved = pos;
+        try {
+            pos = start;
+            skipValue();
+            return pos;
+        } catch (JSONException e) {
+            return msg.length();
+        } finally {
+            pos = saved;
+        }
+    }
+
+    private void expect(char c) throws JSONException {
+        skipWhitespace();
+        if (pos >= msg.length() || msg.charAt(pos) != c) throw syntaxError("Expected " + c);
+        pos++;
+    }
+
+    private char peek() {
+        skipWhitespace();
+        return pos < msg.length() ? msg.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+        int length = msg.length();
+        while (pos < length && msg.charAt(pos) <= ' ') pos++;
+    }
+
+    private boolean keyIs(String key, int start, int end) {
+        return end - start == key.length() && msg.regionMatches(start, key, 0, key.length());
+    }
+
+    private Type match(int start, int end) {
+        for (Type t : types) {
+            if (keyIs(t.value, start, end)) return t;
+        }
+        return Type.UNKNOWN;
+    }
+
+    private VideoRoom matchVideoRoom(int start, int end) {
+        for (VideoRoom v : videoRooms) {
+            if (keyIs(v.value, start, end)) return v;
+        }
+        return VideoRoom.UNKNOWN;
+    }
+
+    private boolean isNull(int value) {
+        return msg.startsWith("null", value);
+    }
+
+    // Parses an unsigned 64-bit decimal, quoted or not, without allocating.
+    private long longAt(int value) {
+        int i = value;
+        if (i < msg.length() && msg.charAt(i) == '"') i++;
+        long result = 0;
+        for (int length = msg.length(); i < length; i++) {
+            char c = msg.charAt(i);
+            if (c < '0' || c > '9') break;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private String stringAt(int value) throws JSONException {
+        if (msg.charAt(value) != '"') {
+            return msg.substring(value, skipFrom(value));
+        }
+        int start = value + 1;
+        for (int i = start, length = msg.length(); i < length; i++) {
+            char c = msg.charAt(i);
+            if (c == '"') return msg.substring(start, i);
+            if (c == '\\') return (String) new JSONTokener(msg.substring(value)).nextValue();
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private JSONObject objectAt(int start, int end) throws JSONException {
+        if (start < 0 || msg.charAt(start) != '{') return null;
+        return new JSONObject(new JSONTokener(msg.substring(start, end)));
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + pos);
+    }
+}
@@ -1,14 +1,27 @@
 package org.appspot.apprtc.janus;
 
 import org.json.JSONObject;
-import java.math.BigInteger;
+
+import java.util.Map;
 
 public interface JanusRTCEvents2 {
-    void onPublisherJoined(BigInteger handleId);
-    void onRemoteJsep(BigInteger handleId, JSONObject jsep);
-    void onLeft(BigInteger handleId);
+    void onPublisherJoined(long handleId);
+    void onRemoteJsep(long handleId, JSONObject jsep);
+    void onLeft(long handleId);
+    // Handles that went away with one roster change, so the layout is only redone once.
+    default void onLeft(long[] handleIds) {
+        for (long handleId : handleIds) onLeft(handleId);
+    }
+    // Multistream subscriber only: which feed each audio and video mid of |handleId| carries.
+    default void onSubscriberStreams(long handleId, Map<String, Long> feedsByMid) {}
+    // Janus talking events, sent when the room has audiolevel_event enabled. |id| is as in
+    // onLeft(), or the feed in multistream mode; |level| is linear, 0 to 1.
+    default void onTalking(long id, boolean talking, float level) {}
     void onNotification(String notificationMessage);
 
     void onChannelClose();
     void onChannelError(String errorMessage);
+    // The transport dropped and the session is being claimed over a new one; media keeps flowing.
+    default void onChannelReconnecting(int attempt) {}
+    default void onChannelReconnected(long downMillis) {}
 }
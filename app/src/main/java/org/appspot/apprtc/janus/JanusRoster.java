@@ -0,0 +1,156 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.Logging;
+
+import java.util.ArrayList;
+
+/**
+ * Remote publishers of the room, updated in batches.
+ *
+ * <p>publishers, leaving and unpublished events are collected for a short window; at its
+ * end only the net change is handed to the listener, leaves before joins. A feed that
+ * joins and leaves within one window is never reported. A feed that leaves and comes
+ * back is reported as both, since it publishes a new stream. A window of 0 applies
+ * every event at once.
+ *
+ * <p>All methods must be called on the engine executor thread.
+ */
+public class JanusRoster {
+    private static final String TAG = "JanusRoster";
+
+    public interface Listener {
+        void onFeedJoined(long feedId, String display);
+        void onFeedLeft(long feedId);
+        // The changes of one window have all been reported.
+        void onRosterSettled();
+    }
+
+    private static final class Change {
+        final boolean wasPresent;
+        boolean present;
+        // Left and joined again within the window.
+        boolean cycled;
+        String display;
+
+        Change(boolean wasPresent) {
+            this.wasPresent = wasPresent;
+            this.present = wasPresent;
+        }
+    }
+
+    private final JanusExecutor executor;
+    private final Listener listener;
+    private final Runnable flush = this::flush;
+    // Feeds as last reported to the listener, with their display names.
+    private final LongHashMap<String> feeds = new LongHashMap<>();
+    private final LongHashMap<Change> changes = new LongHashMap<>();
+    private final ArrayList<Long> order = new ArrayList<>();
+    private int windowMillis = JanusCommon.membershipWindowMillis;
+    private boolean scheduled;
+    private volatile long applied, suppressed;
+
+    public JanusRoster(JanusExecutor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    public void setWindow(int windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void joined(long feedId, String display) {
+        Change change = change(feedId);
+        if (change.present) return;
+        change.present = true;
+        change.display = display;
+        if (change.wasPresent) change.cycled = true;
+        schedule();
+    }
+
+    public void left(long feedId) {
+        if (!feeds.containsKey(feedId) && !changes.containsKey(feedId)) return;
+        Change change = change(feedId);
+        if (!change.present) return;
+        change.present = false;
+        schedule();
+    }
+
+    public boolean contains(long feedId) {
+        Change change = changes.get(feedId);
+        return change != null ? change.present : feeds.containsKey(feedId);
+    }
+
+    // Forgets every feed without reporting anything.
+    public void clear() {
+        executor.cancel(flush);
+        scheduled = false;
+        feeds.clear();
+        changes.clear();
+        order.clear();
+    }
+
+    // Joins and leaves handed to the listener, and the ones that cancelled out.
+    public long applied() {
+        return applied;
+    }
+
+    public long suppressed() {
+        return suppressed;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private Change change(long feedId) {
+        Change change = changes.get(feedId);
+        if (change == null) {
+            change = new Change(feeds.containsKey(feedId));
+            changes.put(feedId, change);
+            order.add(feedId);
+        }
+        return change;
+    }
+
+    private void schedule() {
+        if (windowMillis <= 0) {
+            flush();
+        } else if (!scheduled) {
+            scheduled = true;
+            executor.executeDelayed(flush, windowMillis);
+        }
+    }
+
+    private void flush() {
+        scheduled = false;
+        if (order.isEmpty()) return;
+
+        int joins = 0, leaves = 0, skipped = 0;
+        for (int i = 0; i < order.size(); i++) {
+            long feedId = order.get(i);
+            Change change = changes.get(feedId);
+            if (change.wasPresent && (!change.present || change.cycled)) {
+                feeds.remove(feedId);
+                listener.onFeedLeft(feedId);
+                leaves++;
+            } else if (!change.wasPresent && !change.present) {
+                skipped++;
+            }
+        }
+        for (int i = 0; i < order.size(); i++) {
+            long feedId = order.get(i);
+            Change change = changes.get(feedId);
+            if (change.present && (!change.wasPresent || change.cycled)) {
+                feeds.put(feedId, change.display);
+                listener.onFeedJoined(feedId, change.display);
+                joins++;
+            }
+        }
+        changes.clear();
+        order.clear();
+        applied += joins + leaves;
+        suppressed += skipped;
+        if (skipped > 0) Logging.d(TAG, joins + " joined, " + leaves + " left, " + skipped + " came and went");
+        listener.onRosterSettled();
+    }
+}
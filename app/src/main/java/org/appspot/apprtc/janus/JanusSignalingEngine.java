@@ -0,0 +1,1520 @@
+package org.appspot.apprtc.janus;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.Logging;
+import org.webrtc.SessionDescription;
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.janus.JanusCommon.JanusServerState;
+import org.appspot.apprtc.janus.JanusTransaction2.RequestType;
+import static org.appspot.apprtc.janus.JanusUtils.jsonPut;
+import static org.appspot.apprtc.janus.JanusUtils.jsonPutId;
+import static org.appspot.apprtc.janus.JanusUtils.convertSdpToJson;
+import static org.appspot.apprtc.janus.JanusUtils.convertJsonToCandidate;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.appspot.apprtc.util.LatencyHistogram;
+import org.appspot.apprtc.util.LongHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Janus videoroom signaling state machine.
+ *
+ * <p>Pure java, no android dependencies: the engine runs on any JanusExecutor and talks
+ * to the server through any JanusTransport, so it can be driven on a plain JVM.
+ * Public methods may be called from any thread, transport events must be delivered on
+ * the executor thread.
+ */
+public class JanusSignalingEngine implements JanusTransport.Events {
+
+    private static final String TAG = "JanusSignalingEngine";
+    // Janus core error for an answer it did not ask for, i.e. one it already has.
+    private static final String ERROR_UNEXPECTED_ANSWER = "445";
+
+    private final JanusExecutor executor;
+    // Outgoing traffic goes through |outbound|, which tells the keepalive about it.
+    private final JanusTransport transport;
+    private final JanusTransport outbound;
+    private final JanusKeepAlive keepAlive;
+    private final JanusRTCEvents2 events;
+    private JanusServerState state;
+    private JanusConnectionParameters connectionParameters;
+
+    private final JanusTransactionTable transactions;
+    private final JanusTransactionIds transactionIds = new JanusTransactionIds();
+    // Handle and feed lookups only happen on the executor thread.
+    private final LongHashMap<JanusHandle> handleMap = new LongHashMap<>();
+    private final LongHashMap<JanusHandle> feedMap = new LongHashMap<>();
+    private long sessionId, privateId;
+    // Feed id the server gave our publisher.
+    private long publisherFeedId = JanusId.NONE;
+    // Subscriber setup of remote feeds, a bounded number at a time.
+    private final JanusSubscriptionPipeline subscriptions = new JanusSubscriptionPipeline(
+            this::attach, JanusCommon.maxConcurrentSubscriptions, JanusCommon.onScreenSubscriptions);
+    // Publisher churn is applied once per membership window, handles left meanwhile are reported together.
+    private final JanusRoster roster;
+    private boolean rosterChanging;
+    private final ArrayList<Long> leftHandles = new ArrayList<>();
+    // Video of subscribed feeds that are neither on screen nor speaking is paused on the server.
+    private final JanusVideoPolicy videoPolicy;
+    // Simulcast substream and temporal layer of each subscribed feed.
+    private final JanusLayerSelector layerSelector = new JanusLayerSelector(this::sendLayers);
+    // Multistream mode: every remote feed is a stream of one subscriber handle.
+    private boolean multistream;
+    private long multistreamHandleId = JanusId.NONE;
+    private boolean multistreamBusy;
+    private final LongHashMap<String> multistreamFeeds = new LongHashMap<>();
+    private final LongHashMap<String> multistreamMids = new LongHashMap<>();
+    private final ArrayList<Long> pendingSubscribe = new ArrayList<>();
+    private final ArrayList<Long> pendingUnsubscribe = new ArrayList<>();
+    // Feeds of an update lost with the transport, janus may or may not have applied it.
+    private final ArrayList<Long> unknownStreams = new ArrayList<>();
+    // Trickle coalescing, a window of 0 sends every candidate on its own.
+    private final LongHashMap<CandidateBatch> candidateBatches = new LongHashMap<>();
+    private int trickleWindowMillis = JanusCommon.trickleBatchWindowMillis;
+    private int trickleMaxCandidates = JanusCommon.trickleBatchMaxCandidates;
+    private final JanusMessageDispatcher dispatcher = new JanusMessageDispatcher(new MessageHandler());
+    // Reconnect: a lost transport is reopened and the session claimed, a give-up of 0 disables it.
+    private final JanusBackoff backoff = new JanusBackoff(
+            JanusCommon.reconnectBaseDelayMillis, JanusCommon.reconnectMaxDelayMillis);
+    private int reconnectGiveUpMillis = JanusCommon.reconnectGiveUpMillis;
+    private boolean reconnecting, reconnectPending;
+    private long reconnectStartNanos;
+    private String claimTransactionId;
+    // Set once the session has failed, it is torn down and reported only once.
+    private boolean errorReported;
+
+    public JanusSignalingEngine(JanusExecutor executor, JanusTransport transport, JanusRTCEvents2 events) {
+        this.executor = executor;
+        this.transport = transport;
+        this.events = events;
+        this.outbound = new Outbound();
+        this.keepAlive = new JanusKeepAlive(executor, transactionIds, new KeepAliveListener());
+        this.roster = new JanusRoster(executor, new RosterListener());
+        this.videoPolicy = new JanusVideoPolicy(executor, this::sendVideo);
+        this.transactions = new JanusTransactionTable(executor, outbound);
+        this.sessionId = JanusId.NONE;
+        this.privateId = JanusId.NONE;
+        this.state = JanusServerState.NEW;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Basic functions, may be called from any thread
+    // ----------------------------------------------------------------------------
+    public void connectToServer(final JanusConnectionParameters connectionParameters) {
+        executor.execute(() -> {
+            this.connectionParameters = connectionParameters;
+            transport.connect(connectionParameters, this);
+        });
+    }
+
+    public void disconnectFromServer() {
+        executor.execute(this::disconnect);
+    }
+
+    public void publisherCreateOffer(final long handleId, final SessionDescription sdp) {
+        executor.execute(() -> createOffer(handleId, sdp));
+    }
+
+    public void subscriberCreateAnswer(final long handleId, final SessionDescription sdp) {
+        executor.execute(() -> createAnswer(handleId, sdp));
+    }
+
+    public void trickleCandidate(final long handleId, final IceCandidate iceCandidate) {
+        executor.execute(() -> trickle(handleId, iceCandidate));
+    }
+
+    public void trickleCandidateComplete(final long handleId) {
+        executor.execute(() -> trickleComplete(handleId));
+    }
+
+    public void setTrickleBatching(final int windowMillis, final int maxCandidates) {
+        executor.execute(() -> {
+            trickleWindowMillis = windowMillis;
+            trickleMaxCandidates = Math.max(1, maxCandidates);
+        });
+    }
+
+    // Backoff between reconnect attempts, and how long to try before tearing the session down.
+    public void setReconnectPolicy(final int baseDelayMillis, final int maxDelayMillis, final int giveUpMillis) {
+        executor.execute(() -> {
+            backoff.setLimits(baseDelayMillis, maxDelayMillis);
+            reconnectGiveUpMillis = giveUpMillis;
+        });
+    }
+
+    public JanusServerState getState() {
+        return state;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    // Keepalive round trips, a cheap liveness and latency signal; safe to read from any thread.
+    public LatencyHistogram getKeepAliveRoundTrip() {
+        return keepAlive.roundTrip();
+    }
+
+    // At most |maxConcurrent| subscribers are being set up at once, the first |onScreenSlots|
+    // feeds of the room go first.
+    public void setSubscriptionLimits(final int maxConcurrent, final int onScreenSlots) {
+        executor.execute(() -> subscriptions.setLimits(maxConcurrent, onScreenSlots));
+    }
+
+    // Subscribe to all remote feeds through one handle and peer connection, with a stream per
+    // feed (janus 1.1 multistream videoroom). Must be set before connecting.
+    public void setMultistreamSubscriptions(final boolean enabled) {
+        executor.execute(() -> multistream = enabled);
+    }
+
+    // Publisher joins and leaves within |windowMillis| are applied as one net change, 0 applies each at once.
+    public void setMembershipWindow(final int windowMillis) {
+        executor.execute(() -> roster.setWindow(windowMillis));
+    }
+
+    public void setFeedOnScreen(final long feedId, final boolean onScreen) {
+        executor.execute(() -> subscriptions.setOnScreen(feedId, onScreen));
+    }
+
+    // Pause the video of subscribed feeds that are neither visible nor speaking, on by default.
+    public void setOffscreenVideoPaused(final boolean enabled) {
+        executor.execute(() -> videoPolicy.setEnabled(enabled));
+    }
+
+    // |id| is a subscriber handle, or a feed of the multistream subscriber.
+    public void setFeedVisible(final long id, final boolean visible) {
+        executor.execute(() -> videoPolicy.setVisible(id, visible));
+    }
+
+    public void setFeedSpeaking(final long id, final boolean speaking) {
+        executor.execute(() -> videoPolicy.setSpeaking(id, speaking));
+    }
+
+    // Subscribed feeds currently without video, safe to read from any thread.
+    public int getPausedVideoCount() {
+        return videoPolicy.paused();
+    }
+
+    // Switch the simulcast layers of subscribed feeds to fit their tiles, the downlink and the decoder.
+    public void setLayerSelection(final boolean enabled) {
+        executor.execute(() -> layerSelector.setEnabled(enabled));
+    }
+
+    public void setFeedTileHeight(final long id, final int height) {
+        executor.execute(() -> layerSelector.setTileHeight(id, height));
+    }
+
+    // Receive statistics of the subscriber |id| over the last stats interval.
+    public void setFeedReceiveStats(final long id, final float lossPercent, final float decodeMsPerFrame,
+                                    final long framesDropped) {
+        executor.execute(() -> layerSelector.setSample(id, lossPercent, decodeMsPerFrame, framesDropped));
+    }
+
+    // Picks the layers after a round of statistics, |downlinkKbps| is 0 when unknown.
+    public void updateLayers(final int downlinkKbps) {
+        executor.execute(() -> layerSelector.evaluate(downlinkKbps, System.nanoTime() / 1000000));
+    }
+
+    // Layer switches the server confirmed, safe to read from any thread.
+    public long getLayerSwitchCount() {
+        return layerSelector.switches();
+    }
+
+    // Subscriber setup latency per phase, safe to read from any thread.
+    public LatencyHistogram getSubscriptionLatency(JanusSubscriptionPipeline.Phase phase) {
+        return subscriptions.latency(phase);
+    }
+
+    // Reply latency of |type| requests, safe to read from any thread.
+    public LatencyHistogram getTransactionLatency(RequestType type) {
+        return transactions.latency(type);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal transaction functions
+    // ----------------------------------------------------------------------------
+    private void create() {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.NEW && state != JanusServerState.CLOSED) {
+            Logging.w(TAG, "create() in a error state -- " + state);
+            return;
+        }
+
+        transactionIds.reset();
+        errorReported = false;
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.CREATE;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                sessionId = id;
+                setState(JanusServerState.CONNECTED);
+                keepAlive.start();
+                requestInfo();
+                attach(JanusId.NONE, connectionParameters.userDisplay);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "create");
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    // The reply carries the session timeout the keepalive adapts to.
+    private void requestInfo() {
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "info");
+        jsonPut(json, "transaction", transactionIds.next());
+
+        outbound.send(json.toString());
+    }
+
+    private class KeepAliveListener implements JanusKeepAlive.Listener {
+        @Override
+        public void sendKeepAlive(String transactionId) {
+            if(state != JanusServerState.CONNECTED) {
+                Logging.w(TAG, "keepalive() in a error state -- " + state);
+                return;
+            }
+
+            JSONObject json = new JSONObject();
+            jsonPut(json, "janus", "keepalive");
+            jsonPutId(json, "session_id", sessionId);
+            jsonPut(json, "transaction", transactionId);
+
+            outbound.send(json.toString());
+        }
+
+        @Override
+        public void onServerUnresponsive(long silentMillis) {
+            String reason = "no reply for " + silentMillis + "ms";
+            if (!connectionLost(reason)) {
+                reportError("Server not responding, " + reason);
+            }
+        }
+    }
+
+    private class RosterListener implements JanusRoster.Listener {
+        @Override
+        public void onFeedJoined(long feedId, String display) {
+            rosterChanging = true;
+            if(multistream) subscribeStream(feedId, display);
+            else subscriptions.add(feedId, display);
+        }
+
+        @Override
+        public void onFeedLeft(long feedId) {
+            rosterChanging = true;
+            if(unsubscribeStream(feedId)) return;
+            JanusHandle janusHandle = feedMap.get(feedId);
+            if(janusHandle != null) detach(janusHandle.handleId);
+            else subscriptions.remove(feedId);
+        }
+
+        @Override
+        public void onRosterSettled() {
+            rosterChanging = false;
+            if(!leftHandles.isEmpty()) {
+                long[] handleIds = new long[leftHandles.size()];
+                for(int i = 0; i < handleIds.length; i++) handleIds[i] = leftHandles.get(i);
+                leftHandles.clear();
+                events.onLeft(handleIds);
+            }
+            updateStreams();
+        }
+    }
+
+    // Every request to the session refreshes it, so each one postpones the next keepalive.
+    private class Outbound implements JanusTransport {
+        @Override
+        public void connect(JanusConnectionParameters connectionParameters, Events events) {
+            transport.connect(connectionParameters, events);
+        }
+
+        @Override
+        public void send(String message) {
+            keepAlive.onSent();
+            transport.send(message);
+        }
+
+        @Override
+        public void disconnect() {
+            transport.disconnect();
+        }
+    }
+
+    // Takes the session over on a new transport after a reconnect.
+    private void claim() {
+        checkIfCalledOnValidThread();
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.CLAIM;
+        final String transactionId = janusTransaction.transactionId;
+        claimTransactionId = transactionId;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                if (transactionId.equals(claimTransactionId)) reclaimed();
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (!transactionId.equals(claimTransactionId)) return;
+                Logging.e(TAG, "Claim error: " + code + " " + reason);
+                if (JanusTransaction2.ERROR_TIMEOUT.equals(code)) {
+                    connectionLost(reason);
+                } else {
+                    // The server no longer knows the session.
+                    stopReconnect();
+                    reportError("Session could not be claimed: " + reason);
+                }
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "claim");
+        jsonPutId(json, "session_id", sessionId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.sendNow(janusTransaction, json.toString());
+    }
+
+    private void attach(final long feedId, final String display){
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "attach() in a error state -- " + state);
+            return;
+        }
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.ATTACH;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                JanusHandle janusHandle = new JanusHandle();
+
+                janusHandle.handleId = id;
+                if(feedId == JanusId.NONE) janusHandle.feedId = id; // attach publisher
+                else janusHandle.feedId = feedId; // attach subscriber
+                janusHandle.display = display;
+
+                handleMap.put(janusHandle.handleId, janusHandle);
+                feedMap.put(janusHandle.feedId, janusHandle);
+                if(feedId != JanusId.NONE) subscriptions.onAttached(feedId);
+
+                join(janusHandle.handleId, feedId);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    // Attached again once the session is claimed.
+                    if (feedId == JanusId.NONE) {
+                        attach(JanusId.NONE, display);
+                    } else {
+                        subscriptions.remove(feedId);
+                        subscriptions.add(feedId, display);
+                    }
+                    return;
+                }
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                subscriptions.remove(feedId);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "attach");
+        jsonPutId(json, "session_id", sessionId);
+        jsonPut(json, "plugin", "janus.plugin.videoroom");
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void join(long handleId, long feedId) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "join() in a error state -- " + state);
+            return;
+        }
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.JOIN;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            // publisher joined
+            @Override
+            public void success(long id) {
+                if (handleMap.get(id) == null) {
+                    Logging.e(TAG, "onTransportMessage: missing handle " + id);
+                } else {
+                    events.onPublisherJoined(id);
+                }
+            }
+
+            // subscriber joined
+            @Override
+            public void success(long id, JSONObject jsep) {
+                if (handleMap.get(id) == null) {
+                    Logging.e(TAG, "onTransportMessage: missing handle " + id);
+                } else {
+                    subscriptions.onOffer(feedId);
+                    events.onRemoteJsep(handleId, jsep);
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    rejoin(handleId, feedId);
+                    return;
+                }
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                subscriptions.remove(feedId);
+                if (feedId != JanusId.NONE) {
+                    // The feed went away before the subscription was set up.
+                    detach(handleId);
+                } else {
+                    reportError(reason);
+                }
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        JSONObject jsonBody = new JSONObject();
+
+        jsonPut(jsonBody, "request", "join");
+        jsonPut(jsonBody, "room", connectionParameters.roomId);
+        if(feedId == JanusId.NONE) {
+            jsonPut(jsonBody, "ptype", "publisher");
+            jsonPut(jsonBody, "display", connectionParameters.userDisplay);
+        }
+        else {
+            jsonPut(jsonBody, "ptype", "subscriber");
+            jsonPutId(jsonBody, "feed", feedId);
+            jsonPutId(jsonBody, "private_id", privateId);
+        }
+
+        jsonPut(json, "janus", "message");
+        jsonPut(json, "body", jsonBody);
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    // A join lost with the transport may or may not have reached janus, so instead of
+    // sending it again on the same handle, a new handle is attached once the session is claimed.
+    private void rejoin(long handleId, long feedId) {
+        JanusHandle janusHandle = handleMap.remove(handleId);
+        if (janusHandle == null) return;
+
+        feedMap.remove(janusHandle.feedId);
+        sendDetach(handleId);
+        if (feedId == JanusId.NONE) {
+            attach(JanusId.NONE, janusHandle.display);
+        } else {
+            subscriptions.remove(feedId);
+            subscriptions.add(feedId, janusHandle.display);
+        }
+    }
+
+    private void createOffer(long handleId, SessionDescription sdp) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "createOffer() in a error state -- " + state);
+            return;
+        }
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.NEGOTIATE;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id, JSONObject jsep) {
+                if (handleMap.get(id) == null) {
+                    Logging.e(TAG, "offerConfigured: missing handle " + id);
+                } else {
+                    events.onRemoteJsep(id, jsep);
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    // The answer is lost either way: offered again once the session is claimed,
+                    // which janus takes as a renegotiation if the first offer got through.
+                    createOffer(handleId, sdp);
+                    return;
+                }
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        JSONObject jsonBody = new JSONObject();
+
+        jsonPut(jsonBody, "request", "configure");
+        jsonPut(jsonBody, "audio", true);
+        jsonPut(jsonBody, "video", true);
+
+        jsonPut(json, "janus", "message");
+        jsonPut(json, "body", jsonBody);
+        jsonPut(json, "jsep", convertSdpToJson(sdp));
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void createAnswer(long handleId, SessionDescription sdp) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "createAnswer() in a error state -- " + state);
+            return;
+        }
+
+        JanusHandle janusHandle = handleMap.get(handleId);
+        final long feedId = janusHandle == null ? JanusId.NONE : janusHandle.feedId;
+        subscriptions.onAnswer(feedId);
+
+        start(handleId, feedId, sdp, false);
+    }
+
+    // |resent| after the first start was lost with the transport.
+    private void start(final long handleId, final long feedId, final SessionDescription sdp, final boolean resent) {
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.START;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                subscriptions.onStarted(feedId);
+                if(handleId == multistreamHandleId) {
+                    multistreamBusy = false;
+                    updateStreams();
+                }
+                reportNotification("Server receive the answer message in handle " + id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    // Sent again once the session is claimed.
+                    start(handleId, feedId, sdp, true);
+                    return;
+                }
+                if (resent && ERROR_UNEXPECTED_ANSWER.equals(code)) {
+                    // The lost start had reached janus after all.
+                    success(handleId);
+                    return;
+                }
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                subscriptions.remove(feedId);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        JSONObject jsonBody = new JSONObject();
+
+        jsonPut(jsonBody, "request", "start");
+        jsonPut(jsonBody, "room", connectionParameters.roomId);
+
+        jsonPut(json, "janus", "message");
+        jsonPut(json, "body", jsonBody);
+        jsonPut(json, "jsep", convertSdpToJson(sdp));
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void trickle(long handleId, IceCandidate iceCandidate) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "trickle() in a error state -- " + state);
+            return;
+        }
+
+        if(trickleWindowMillis <= 0) {
+            JSONArray candidates = new JSONArray();
+            candidates.put(convertJsonToCandidate(iceCandidate));
+            sendCandidates(handleId, candidates);
+            return;
+        }
+
+        CandidateBatch batch = candidateBatches.get(handleId);
+        if(batch == null) {
+            batch = new CandidateBatch(handleId);
+            candidateBatches.put(handleId, batch);
+            executor.executeDelayed(batch, trickleWindowMillis);
+        }
+        batch.candidates.put(convertJsonToCandidate(iceCandidate));
+        if(batch.candidates.length() >= trickleMaxCandidates) flushCandidates(handleId);
+    }
+
+    private void flushCandidates(long handleId) {
+        CandidateBatch batch = candidateBatches.remove(handleId);
+        if(batch == null) return;
+
+        executor.cancel(batch);
+        sendCandidates(handleId, batch.candidates);
+    }
+
+    private void sendCandidates(long handleId, JSONArray candidates) {
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.TRICKLE;
+
+        JSONObject json = new JSONObject();
+
+        jsonPut(json, "janus", "trickle");
+        if(candidates.length() == 1) {
+            jsonPut(json, "candidate", candidates.opt(0));
+        } else {
+            jsonPut(json, "candidates", candidates);
+        }
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    // Candidates of one handle gathered within the coalescing window, sent as one trickle.
+    private class CandidateBatch implements Runnable {
+        final long handleId;
+        final JSONArray candidates = new JSONArray();
+
+        CandidateBatch(long handleId) {
+            this.handleId = handleId;
+        }
+
+        @Override
+        public void run() {
+            if(candidateBatches.get(handleId) != this) return;
+            if(state != JanusServerState.CONNECTED) {
+                candidateBatches.remove(handleId);
+                return;
+            }
+            flushCandidates(handleId);
+        }
+    }
+
+    private void dropCandidates() {
+        for(CandidateBatch batch : candidateBatches.values()) {
+            executor.cancel(batch);
+        }
+        candidateBatches.clear();
+    }
+
+    private void trickleComplete(long handleId) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "trickleComplete() in a error state -- " + state);
+            return;
+        }
+
+        // Pending candidates must reach janus before the end-of-candidates marker.
+        flushCandidates(handleId);
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.TRICKLE;
+
+        JSONObject json = new JSONObject();
+        JSONObject jsonCandidate = new JSONObject();
+
+        jsonPut(jsonCandidate, "completed", true);
+
+        jsonPut(json, "janus", "trickle");
+        jsonPut(json, "candidate", jsonCandidate);
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    // ----------------------------------------------------------------------------
+    // Multistream subscriber
+    // ----------------------------------------------------------------------------
+    private void subscribeStream(long feedId, String display) {
+        if(multistreamFeeds.containsKey(feedId)) return;
+
+        multistreamFeeds.put(feedId, display);
+        // A feed of a lost update is subscribed again once that is sorted out.
+        if(!unknownStreams.contains(feedId) && !pendingUnsubscribe.remove(feedId)) pendingSubscribe.add(feedId);
+        updateStreams();
+    }
+
+    // Returns false if |feedId| is not one of our streams.
+    private boolean unsubscribeStream(long feedId) {
+        if(multistreamFeeds.remove(feedId) == null) return false;
+
+        if(!pendingSubscribe.remove(feedId) && !unknownStreams.contains(feedId)) pendingUnsubscribe.add(feedId);
+        multistreamMids.remove(feedId);
+        videoPolicy.remove(feedId);
+        layerSelector.remove(feedId);
+        reportLeft(feedId);
+        updateStreams();
+        return true;
+    }
+
+    // One renegotiation at a time: changes made meanwhile go out with the next update.
+    private void updateStreams() {
+        if(multistreamBusy || rosterChanging || state != JanusServerState.CONNECTED) return;
+        if(pendingSubscribe.isEmpty() && pendingUnsubscribe.isEmpty() && unknownStreams.isEmpty()) return;
+
+        multistreamBusy = true;
+        if(multistreamHandleId == JanusId.NONE) {
+            attachStreams();
+        } else {
+            sendUpdate(multistreamHandleId);
+        }
+    }
+
+    private void attachStreams() {
+        checkIfCalledOnValidThread();
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.ATTACH;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                JanusHandle janusHandle = new JanusHandle();
+                janusHandle.handleId = id;
+                janusHandle.feedId = id;
+                handleMap.put(id, janusHandle);
+                multistreamHandleId = id;
+
+                joinStreams(id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    // Attached again once the session is claimed.
+                    attachStreams();
+                    return;
+                }
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "attach");
+        jsonPutId(json, "session_id", sessionId);
+        jsonPut(json, "plugin", "janus.plugin.videoroom");
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void joinStreams(final long handleId) {
+        JSONObject jsonBody = new JSONObject();
+        jsonPut(jsonBody, "request", "join");
+        jsonPut(jsonBody, "room", connectionParameters.roomId);
+        jsonPut(jsonBody, "ptype", "subscriber");
+        jsonPutId(jsonBody, "private_id", privateId);
+        jsonPut(jsonBody, "streams", feedList(pendingSubscribe));
+        ArrayList<Long> changed = new ArrayList<>(pendingSubscribe);
+        pendingSubscribe.clear();
+        pendingUnsubscribe.clear();
+
+        sendStreamsRequest(handleId, RequestType.JOIN, jsonBody, changed);
+    }
+
+    private void sendUpdate(final long handleId) {
+        JSONObject jsonBody = new JSONObject();
+        jsonPut(jsonBody, "request", "update");
+        ArrayList<Long> changed = new ArrayList<>();
+        if(!unknownStreams.isEmpty()) {
+            // Whatever janus has of those feeds is dropped first, the ones still in the room
+            // are subscribed again with the next update.
+            jsonPut(jsonBody, "unsubscribe", feedList(unknownStreams));
+            for(long feedId : unknownStreams) {
+                multistreamMids.remove(feedId);
+                pendingUnsubscribe.remove(feedId);
+                if(multistreamFeeds.containsKey(feedId) && !pendingSubscribe.contains(feedId)) pendingSubscribe.add(feedId);
+            }
+            changed.addAll(unknownStreams);
+            unknownStreams.clear();
+        } else {
+            if(!pendingSubscribe.isEmpty()) jsonPut(jsonBody, "subscribe", feedList(pendingSubscribe));
+            if(!pendingUnsubscribe.isEmpty()) jsonPut(jsonBody, "unsubscribe", feedList(pendingUnsubscribe));
+            changed.addAll(pendingSubscribe);
+            changed.addAll(pendingUnsubscribe);
+            pendingSubscribe.clear();
+            pendingUnsubscribe.clear();
+        }
+
+        sendStreamsRequest(handleId, RequestType.NEGOTIATE, jsonBody, changed);
+    }
+
+    // |changed| are the feeds the request subscribes or unsubscribes.
+    private void sendStreamsRequest(final long handleId, RequestType type, JSONObject jsonBody,
+                                    final ArrayList<Long> changed) {
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = type;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            // attached or updated, the offer is answered with a start request
+            @Override
+            public void success(long id, JSONObject jsep) {
+                if(jsep == null) {
+                    multistreamBusy = false;
+                    updateStreams();
+                } else {
+                    events.onRemoteJsep(handleId, jsep);
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    if (type == RequestType.JOIN) {
+                        rejoinStreams(handleId);
+                    } else {
+                        resyncStreams(changed);
+                    }
+                    return;
+                }
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                reportError(reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "message");
+        jsonPut(json, "body", jsonBody);
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    // Like rejoin(), for the multistream handle: a new one subscribes to all current feeds.
+    private void rejoinStreams(long handleId) {
+        handleMap.remove(handleId);
+        sendDetach(handleId);
+        multistreamHandleId = JanusId.NONE;
+        multistreamMids.clear();
+        pendingSubscribe.clear();
+        pendingUnsubscribe.clear();
+        unknownStreams.clear();
+        multistreamFeeds.forEach((feedId, display) -> pendingSubscribe.add(feedId));
+        multistreamBusy = false;
+        updateStreams();
+    }
+
+    // An update lost with the transport is not sent again as is: its feeds are unsubscribed
+    // once the session is claimed, and those still in the room subscribed again after that.
+    private void resyncStreams(ArrayList<Long> feedIds) {
+        for(long feedId : feedIds) {
+            if(!unknownStreams.contains(feedId)) unknownStreams.add(feedId);
+        }
+        multistreamBusy = false;
+        updateStreams();
+    }
+
+    private static JSONArray feedList(ArrayList<Long> feedIds) {
+        JSONArray streams = new JSONArray();
+        for(long feedId : feedIds) {
+            JSONObject stream = new JSONObject();
+            jsonPutId(stream, "feed", feedId);
+            streams.put(stream);
+        }
+        return streams;
+    }
+
+    // Audio and video mids of the multistream handle mapped to their feeds, from a `streams`
+    // array. The video mid of a feed is the one its configure requests address.
+    private void reportStreams(long handleId, JSONArray streams) {
+        if(streams == null) return;
+
+        HashMap<String, Long> feeds = new HashMap<>();
+        for(int i = 0; i < streams.length(); i++) {
+            JSONObject stream = streams.optJSONObject(i);
+            if(stream == null || !stream.optBoolean("active", true) || !stream.has("feed_id")) continue;
+            String type = stream.optString("type");
+            boolean video = "video".equals(type);
+            if(!video && !"audio".equals(type)) continue;
+            long feedId = JanusId.parse(stream.optString("feed_id"));
+            feeds.put(stream.optString("mid"), feedId);
+            if(video) multistreamMids.put(feedId, stream.optString("mid"));
+        }
+        events.onSubscriberStreams(handleId, feeds);
+    }
+
+    // A talking event about |feedId|, with its average level in -dBov (0 loudest, 127 silent).
+    private void reportTalking(long feedId, boolean talking, long dBov) {
+        if(feedId == publisherFeedId) return;
+        long id = feedId;
+        if(!multistream) {
+            JanusHandle janusHandle = feedMap.get(feedId);
+            if(janusHandle == null) return;
+            id = janusHandle.handleId;
+        }
+        events.onTalking(id, talking, (float) Math.pow(10, -Math.min(dBov, 127) / 20.0));
+    }
+
+    // ----------------------------------------------------------------------------
+    // Subscriber video
+    // ----------------------------------------------------------------------------
+    private void sendVideo(final long id, final boolean send) {
+        JSONObject settings = new JSONObject();
+        jsonPut(settings, multistreamMids.containsKey(id) ? "send" : "video", send);
+        configureSubscriber(id, settings, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long senderId) {
+                videoPolicy.onSent(id, send, true);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                videoPolicy.onSent(id, send, false);
+            }
+        });
+    }
+
+    private void sendLayers(final long id, final int substream, final int temporal) {
+        JSONObject settings = new JSONObject();
+        jsonPut(settings, "substream", substream);
+        jsonPut(settings, "temporal", temporal);
+        configureSubscriber(id, settings, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long senderId) {
+                layerSelector.onSent(id, substream, temporal, true);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+                layerSelector.onSent(id, substream, temporal, false);
+            }
+        });
+    }
+
+    // A videoroom configure with |settings| on the subscriber handle, or on the stream of the
+    // feed in multistream mode.
+    private void configureSubscriber(long id, JSONObject settings, JanusTransaction2.TransactionEvents callbacks) {
+        checkIfCalledOnValidThread();
+
+        long handleId;
+        JSONObject jsonBody = new JSONObject();
+        jsonPut(jsonBody, "request", "configure");
+        String mid = multistreamMids.get(id);
+        if(mid != null) {
+            jsonPut(settings, "mid", mid);
+            jsonPut(jsonBody, "streams", new JSONArray().put(settings));
+            handleId = multistreamHandleId;
+        } else if(handleMap.containsKey(id)) {
+            Iterator<String> keys = settings.keys();
+            while(keys.hasNext()) {
+                String key = keys.next();
+                jsonPut(jsonBody, key, settings.opt(key));
+            }
+            handleId = id;
+        } else {
+            callbacks.error("no subscriber " + id, "configure");
+            return;
+        }
+        if(state != JanusServerState.CONNECTED) {
+            callbacks.error("not connected", "configure");
+            return;
+        }
+
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.CONFIGURE;
+        janusTransaction.events = callbacks;
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "message");
+        jsonPut(json, "body", jsonBody);
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void detach(final long handleId) {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Logging.w(TAG, "detach() in a error state -- " + state);
+            return;
+        }
+
+        reportLeft(handleId);
+        sendDetach(handleId);
+
+        // free some object
+        CandidateBatch batch = candidateBatches.remove(handleId);
+        if(batch != null) executor.cancel(batch);
+        JanusHandle janusHandle = handleMap.remove(handleId);
+        if(janusHandle == null) return;
+
+        feedMap.remove(janusHandle.feedId);
+        subscriptions.remove(janusHandle.feedId);
+        videoPolicy.remove(handleId);
+        layerSelector.remove(handleId);
+    }
+
+    private void sendDetach(final long handleId) {
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = transactionIds.next();
+        janusTransaction.type = RequestType.DETACH;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                Logging.d(TAG, "detach a handle by remote stream " + handleId);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusTransaction2.ERROR_DISCONNECTED.equals(code)) {
+                    // Sent again once the session is claimed, janus refuses it if the first got through.
+                    sendDetach(handleId);
+                    return;
+                }
+                //fixme: retry
+                Logging.e(TAG,"Transaction error: " + code + " " + reason);
+            }
+        };
+
+        JSONObject json = new JSONObject();
+
+        jsonPut(json, "janus", "detach");
+        jsonPutId(json, "session_id", sessionId);
+        jsonPutId(json, "handle_id", handleId);
+        jsonPut(json, "transaction", janusTransaction.transactionId);
+
+        transactions.send(janusTransaction, json.toString());
+    }
+
+    private void destroy() {
+        checkIfCalledOnValidThread();
+
+        if(sessionId == JanusId.NONE) {
+            Logging.w(TAG, "destroy() for sessionid 0");
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        jsonPut(json, "janus", "destroy");
+        jsonPutId(json, "session_id", sessionId);
+        jsonPut(json, "transaction", transactionIds.next());
+
+        outbound.send(json.toString());
+
+        setState(JanusServerState.CLOSED);
+        sessionId = JanusId.NONE;
+    }
+
+    private void disconnect() {
+        keepAlive.stop();
+        stopReconnect();
+        destroy();
+
+        for (RequestType type : RequestType.values()) {
+            Logging.d(TAG, "Transaction latency " + type + ": " + transactions.latency(type));
+        }
+        transactions.clear();
+        dropCandidates();
+        subscriptions.clear();
+        roster.clear();
+        rosterChanging = false;
+        leftHandles.clear();
+        multistreamHandleId = JanusId.NONE;
+        multistreamBusy = false;
+        multistreamFeeds.clear();
+        multistreamMids.clear();
+        videoPolicy.clear();
+        layerSelector.clear();
+        pendingSubscribe.clear();
+        pendingUnsubscribe.clear();
+        unknownStreams.clear();
+        handleMap.clear();
+        feedMap.clear();
+
+        transport.disconnect();
+    }
+
+    // ----------------------------------------------------------------------------
+    // JanusTransport.Events interface implementation.
+    // All events are called by the transport on the executor thread.
+    // ----------------------------------------------------------------------------
+    @Override
+    public void onTransportMessage(final String msg) {
+        checkIfCalledOnValidThread();
+
+        keepAlive.onReceived();
+        try {
+            dispatcher.dispatch(msg);
+        } catch (JSONException e) {
+            reportError("Transport message JSON parsing error: " + e.toString());
+        }
+    }
+
+    @Override
+    public void onTransportOpen() {
+        if (reconnecting) {
+            claim();
+        } else {
+            create();
+        }
+    }
+
+    @Override
+    public void onTransportClose() {
+        if (connectionLost("closed")) return;
+        events.onChannelClose();
+    }
+
+    @Override
+    public void onTransportError(String description) {
+        if (connectionLost(description)) return;
+        reportError("Transport error: " + description);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Reconnect
+    // ----------------------------------------------------------------------------
+    // Returns false if the loss is final: no session to keep, or reconnecting is disabled.
+    private boolean connectionLost(String reason) {
+        if (!reconnecting) {
+            if (reconnectGiveUpMillis <= 0 || state != JanusServerState.CONNECTED
+                    || sessionId == JanusId.NONE) {
+                return false;
+            }
+            Logging.w(TAG, "Transport lost (" + reason + "), reclaiming session " + JanusId.toString(sessionId));
+            reconnecting = true;
+            reconnectStartNanos = System.nanoTime();
+            backoff.reset();
+            keepAlive.stop();
+            transactions.pause();
+        }
+        // A failed attempt may report both an error and a close.
+        if (reconnecting && !reconnectPending) scheduleReconnect();
+        return true;
+    }
+
+    private void scheduleReconnect() {
+        long downMillis = (System.nanoTime() - reconnectStartNanos) / 1000000;
+        long delayMillis = backoff.nextDelayMillis();
+        if (downMillis + delayMillis > reconnectGiveUpMillis) {
+            stopReconnect();
+            reportError("Transport lost, session not reclaimed after " + downMillis + "ms");
+            return;
+        }
+        Logging.d(TAG, "Reconnect attempt " + backoff.attempts() + " in " + delayMillis + "ms");
+        reconnectPending = true;
+        executor.executeDelayed(reconnect, delayMillis);
+        events.onChannelReconnecting(backoff.attempts());
+    }
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnectPending = false;
+            if (reconnecting && state == JanusServerState.CONNECTED) {
+                transport.connect(connectionParameters, JanusSignalingEngine.this);
+            }
+        }
+    };
+
+    private void reclaimed() {
+        long downMillis = (System.nanoTime() - reconnectStartNanos) / 1000000;
+        Logging.d(TAG, "Session " + JanusId.toString(sessionId) + " reclaimed after " + downMillis
+                + "ms, " + backoff.attempts() + " attempts");
+        stopReconnect();
+        transactions.resume();
+        keepAlive.start();
+        events.onChannelReconnected(downMillis);
+    }
+
+    private void stopReconnect() {
+        reconnecting = false;
+        reconnectPending = false;
+        claimTransactionId = null;
+        executor.cancel(reconnect);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Typed message handlers, called by the dispatcher on the executor thread.
+    // Replies complete their transaction, acks keep it for the following event.
+    // ----------------------------------------------------------------------------
+    private class MessageHandler implements JanusMessageDispatcher.Handler {
+        @Override
+        public void onAck(JanusMessageReader message) throws JSONException {
+            // Just an ack, only final for a trickle
+            if (keepAlive.onAck(message.transaction())) return;
+            transactions.ack(message.transaction());
+        }
+
+        @Override
+        public void onSuccess(JanusMessageReader message) throws JSONException {
+            JanusTransaction2 janusTransaction = transactions.complete(message.transaction());
+            if (message.hasSender()) {
+                reportError("onTransportMessage: unrecognized protocol.");
+                return;
+            }
+
+            if (janusTransaction != null && janusTransaction.events != null) {
+                if (message.hasData()) {
+                    janusTransaction.events.success(message.dataId());
+                } else {
+                    janusTransaction.events.success(JanusId.NONE);
+                }
+            }
+        }
+
+        @Override
+        public void onError(JanusMessageReader message) throws JSONException {
+            // something wrong happened
+            JanusTransaction2 janusTransaction = transactions.complete(message.transaction());
+            JSONObject json = message.error();
+            if (json == null) return;
+
+            String reason = json.optString("reason");
+            String code = json.optString("code");
+            if (janusTransaction == null || janusTransaction.events == null) {
+                Logging.e(TAG, "onTransportMessage:error, Code:" + code + ", reason: " + reason);
+            } else {
+                janusTransaction.events.error(reason, code);
+            }
+        }
+
+        @Override
+        public void onEvent(JanusMessageReader message) throws JSONException {
+            JanusTransaction2 janusTransaction = transactions.complete(message.transaction());
+            if (!message.hasSender()) {
+                Logging.d(TAG, "onTransportMessage: unrecognized protocol.");
+                return;
+            }
+            if (!message.hasPluginData()) {
+                reportError("onTransportMessage: unrecognized protocol.");
+                return;
+            }
+
+            long senderId = message.sender();
+            boolean hasCallback = janusTransaction != null && janusTransaction.events != null;
+
+            JSONArray publishers = message.publishers();
+            if (publishers != null && publishers.length() > 0) {
+                for (int i = 0; i < publishers.length(); i++) {
+                    JSONObject publisher = publishers.optJSONObject(i);
+                    long feedId = JanusId.parse(publisher.optString("id"));
+                    roster.joined(feedId, publisher.optString("display"));
+                }
+            }
+
+            switch (message.videoRoom()) {
+                case JOINED:
+                    if (message.pluginFieldIsNumber("private_id")) {
+                        privateId = message.pluginFieldLong("private_id");
+                    }
+                    if (message.pluginFieldIsNumber("id")) {
+                        publisherFeedId = message.pluginFieldLong("id");
+                    }
+                    if (hasCallback) janusTransaction.events.success(senderId);
+                    break;
+                case ATTACHED:
+                case UPDATED:
+                    if (senderId == multistreamHandleId) reportStreams(senderId, message.pluginFieldArray("streams"));
+                    if (hasCallback) janusTransaction.events.success(senderId, message.jsep());
+                    break;
+                case EVENT:
+                    if (message.hasPluginField("configured") && hasCallback) {
+                        if (message.pluginFieldEquals("configured", "ok")) {
+                            janusTransaction.events.success(senderId, message.jsep());
+                        } else {
+                            JSONObject json = message.error();
+                            janusTransaction.events.error(
+                                    checkError(json, "reason", "configured is " + message.pluginFieldString("configured")),
+                                    checkError(json, "code", "createOffer")
+                            );
+                        }
+                        return;
+                    }
+
+                    if (message.hasPluginField("started") && hasCallback) {
+                        if (message.pluginFieldEquals("started", "ok")) {
+                            janusTransaction.events.success(senderId);
+                        } else {
+                            JSONObject json = message.error();
+                            janusTransaction.events.error(
+                                    checkError(json, "reason", "started is " + message.pluginFieldString("started")),
+                                    checkError(json, "code", "createAnswer")
+                            );
+                        }
+                        return;
+                    }
+
+                    if (message.hasPluginField("error_code")) {
+                        if (hasCallback) {
+                            janusTransaction.events.error(message.pluginFieldString("error"),
+                                    Long.toString(message.pluginFieldLong("error_code")));
+                        }
+                        return;
+                    }
+
+                    if (message.hasPluginField("unpublished")) {
+                        //fixme: "ok" is our own unpublish, this branch is unused, add function later.
+                        if (message.pluginFieldIsNumber("unpublished")) {
+                            roster.left(message.pluginFieldLong("unpublished"));
+                        }
+                        return;
+                    }
+
+                    if (message.hasPluginField("leaving")) {
+                        if (message.pluginFieldIsNumber("leaving")) {
+                            roster.left(message.pluginFieldLong("leaving"));
+                        }
+                        return;
+                    }
+                    break;
+                case SLOW_LINK:
+                    reportNotification("onTransportMessage: Got a slow_link event.");
+                    break;
+                case TALKING:
+                case STOPPED_TALKING:
+                    reportTalking(message.pluginFieldLong("id"), message.videoRoom() == JanusMessageReader.VideoRoom.TALKING,
+                            message.pluginFieldLong("audio-level-dBov-avg"));
+                    break;
+                case ERROR:
+                    if (hasCallback) janusTransaction.events.error("unknown error", "videoroom");
+                    break;
+                default:
+                    reportError("onTransportMessage: unrecognized protocol.");
+                    break;
+            }
+        }
+
+        @Override
+        public void onWebrtcUp(JanusMessageReader message) {
+            reportNotification("onTransportMessage: webrtc peerConnection is up now.");
+        }
+
+        @Override
+        public void onMedia(JanusMessageReader message) {
+            reportNotification("onTransportMessage: Got a media event.");
+        }
+
+        @Override
+        public void onSlowLink(JanusMessageReader message) {
+            reportNotification("onTransportMessage: Got a slowlink event.");
+        }
+
+        @Override
+        public void onHangup(JanusMessageReader message) {
+            Logging.d(TAG, "onTransportMessage: Got a hangup event on session " + sessionId);
+        }
+
+        @Override
+        public void onDetached(JanusMessageReader message) {
+            //detach(senderId);
+        }
+
+        @Override
+        public void onServerInfo(JanusMessageReader message) throws JSONException {
+            JSONObject info = new JSONObject(message.message());
+            if (info.has("session-timeout")) {
+                keepAlive.setSessionTimeout(info.getInt("session-timeout"));
+            }
+        }
+
+        @Override
+        public void onUnrecognized(JanusMessageReader message) throws JSONException {
+            transactions.complete(message.transaction());
+            if (message.hasSender()) {
+                reportError("onTransportMessage: unrecognized protocol.");
+            } else {
+                Logging.d(TAG, "onTransportMessage: unrecognized protocol.");
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // Helper functions.
+    // ----------------------------------------------------------------------------
+    private void checkIfCalledOnValidThread() {
+        if (!executor.isCurrentThread()) {
+            throw new IllegalStateException("Signaling method is not called on valid thread");
+        }
+    }
+
+    // Handles that go away while the roster is being applied are reported in one batch.
+    private void reportLeft(long handleId) {
+        if(rosterChanging) leftHandles.add(handleId);
+        else events.onLeft(handleId);
+    }
+
+    private void setState(JanusServerState state) {
+        if(state != JanusServerState.ERROR)
+            this.state = state;
+    }
+
+    private String checkError(JSONObject json, String checkMessage, String defaultMessage) {
+        if (json == null) return defaultMessage;
+        else {
+            String res = json.optString(checkMessage);
+            return res.equals("") ? defaultMessage : res;
+        }
+    }
+
+    private void reportError(final String errorMessage) {
+        Logging.e(TAG, errorMessage);
+        executor.execute(() -> {
+            if (errorReported) return;
+            errorReported = true;
+            stopReconnect();
+            destroy();
+            events.onChannelError(errorMessage);
+        });
+    }
+
+    private void reportNotification(final String notificationMessage) {
+
+    }
+}
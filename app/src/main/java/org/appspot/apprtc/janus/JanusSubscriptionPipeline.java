@@ -0,0 +1,214 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LatencyHistogram;
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.Logging;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Schedules subscriber setup for remote feeds.
+ *
+ * <p>Each feed goes through attach, join (the server offer), the local answer and start.
+ * Up to maxConcurrent feeds are in that chain at once, so round trips of different feeds
+ * overlap without flooding the server or the peer connection thread. Feeds expected on
+ * screen are set up before the others. Every phase is timed per feed and aggregated in
+ * one histogram per phase.
+ *
+ * <p>All methods must be called on the engine executor thread.
+ */
+public class JanusSubscriptionPipeline {
+    private static final String TAG = "JanusSubscription";
+
+    public interface Starter {
+        // Attach a subscriber handle to |feedId|, the pipeline is told about progress.
+        void attach(long feedId, String display);
+    }
+
+    public enum Phase {
+        // Waiting for a free slot
+        QUEUED,
+        // attach request until the handle is created
+        ATTACH,
+        // join request until the server offer arrives
+        OFFER,
+        // server offer until the local answer is sent with start
+        ANSWER,
+        // start request until janus confirms it
+        START,
+        // queued until started
+        TOTAL
+    }
+
+    private static class Subscription {
+        final long feedId;
+        final String display;
+        boolean onScreen;
+        boolean active, done;
+        long queuedNanos, attachNanos, attachedNanos, offerNanos, answerNanos;
+
+        Subscription(long feedId, String display) {
+            this.feedId = feedId;
+            this.display = display;
+        }
+    }
+
+    private final Starter starter;
+    private final LongHashMap<Subscription> subscriptions = new LongHashMap<>();
+    private final ArrayDeque<Subscription> onScreenQueue = new ArrayDeque<>();
+    private final ArrayDeque<Subscription> backgroundQueue = new ArrayDeque<>();
+    private final LatencyHistogram[] latency = new LatencyHistogram[Phase.values().length];
+    private int maxConcurrent;
+    private int onScreenSlots;
+    private int onScreenCount;
+    private int activeCount;
+
+    public JanusSubscriptionPipeline(Starter starter, int maxConcurrent, int onScreenSlots) {
+        this.starter = starter;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.onScreenSlots = onScreenSlots;
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+    }
+
+    public void setLimits(int maxConcurrent, int onScreenSlots) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.onScreenSlots = onScreenSlots;
+        startPending();
+    }
+
+    // A publisher appeared: queue its subscription.
+    public void add(long feedId, String display) {
+        if (subscriptions.containsKey(feedId)) return;
+
+        Subscription subscription = new Subscription(feedId, display);
+        subscription.queuedNanos = System.nanoTime();
+        subscription.onScreen = onScreenCount < onScreenSlots;
+        if (subscription.onScreen) onScreenCount++;
+        subscriptions.put(feedId, subscription);
+        (subscription.onScreen ? onScreenQueue : backgroundQueue).add(subscription);
+        startPending();
+    }
+
+    // Moves a feed that has not started its setup yet to the front or the back of the line.
+    public void setOnScreen(long feedId, boolean onScreen) {
+        Subscription subscription = subscriptions.get(feedId);
+        if (subscription == null || subscription.onScreen == onScreen) return;
+
+        subscription.onScreen = onScreen;
+        onScreenCount += onScreen ? 1 : -1;
+        if (!subscription.active && !subscription.done) {
+            (onScreen ? backgroundQueue : onScreenQueue).remove(subscription);
+            (onScreen ? onScreenQueue : backgroundQueue).add(subscription);
+        }
+    }
+
+    public void onAttached(long feedId) {
+        Subscription subscription = activeSubscription(feedId);
+        if (subscription != null) subscription.attachedNanos = System.nanoTime();
+    }
+
+    public void onOffer(long feedId) {
+        Subscription subscription = activeSubscription(feedId);
+        if (subscription != null) subscription.offerNanos = System.nanoTime();
+    }
+
+    public void onAnswer(long feedId) {
+        Subscription subscription = activeSubscription(feedId);
+        if (subscription != null) subscription.answerNanos = System.nanoTime();
+    }
+
+    // Janus confirmed start: the feed is set up and its slot goes to the next one.
+    public void onStarted(long feedId) {
+        Subscription subscription = activeSubscription(feedId);
+        if (subscription == null || subscription.answerNanos == 0) return;
+
+        long now = System.nanoTime();
+        record(Phase.QUEUED, subscription.queuedNanos, subscription.attachNanos);
+        record(Phase.ATTACH, subscription.attachNanos, subscription.attachedNanos);
+        record(Phase.OFFER, subscription.attachedNanos, subscription.offerNanos);
+        record(Phase.ANSWER, subscription.offerNanos, subscription.answerNanos);
+        record(Phase.START, subscription.answerNanos, now);
+        record(Phase.TOTAL, subscription.queuedNanos, now);
+        Logging.d(TAG, String.format(Locale.US,
+                "Feed %s (%s) set up in %dms: queued %d, attach %d, offer %d, answer %d, start %d",
+                JanusId.toString(feedId), subscription.display, millis(subscription.queuedNanos, now),
+                millis(subscription.queuedNanos, subscription.attachNanos),
+                millis(subscription.attachNanos, subscription.attachedNanos),
+                millis(subscription.attachedNanos, subscription.offerNanos),
+                millis(subscription.offerNanos, subscription.answerNanos),
+                millis(subscription.answerNanos, now)));
+
+        subscription.done = true;
+        release(subscription);
+    }
+
+    // The feed left, its setup failed or its handle was detached.
+    public void remove(long feedId) {
+        Subscription subscription = subscriptions.remove(feedId);
+        if (subscription == null) return;
+
+        if (subscription.onScreen) onScreenCount--;
+        if (subscription.active) {
+            release(subscription);
+        } else if (!subscription.done) {
+            (subscription.onScreen ? onScreenQueue : backgroundQueue).remove(subscription);
+        }
+    }
+
+    public void clear() {
+        subscriptions.clear();
+        onScreenQueue.clear();
+        backgroundQueue.clear();
+        onScreenCount = 0;
+        activeCount = 0;
+    }
+
+    public LatencyHistogram latency(Phase phase) {
+        return latency[phase.ordinal()];
+    }
+
+    public int pendingCount() {
+        return onScreenQueue.size() + backgroundQueue.size();
+    }
+
+    public int activeCount() {
+        return activeCount;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private void startPending() {
+        while (activeCount < maxConcurrent) {
+            Subscription subscription = onScreenQueue.poll();
+            if (subscription == null) subscription = backgroundQueue.poll();
+            if (subscription == null) return;
+
+            subscription.active = true;
+            subscription.attachNanos = System.nanoTime();
+            activeCount++;
+            starter.attach(subscription.feedId, subscription.display);
+        }
+    }
+
+    private void release(Subscription subscription) {
+        if (!subscription.active) return;
+        subscription.active = false;
+        activeCount--;
+        startPending();
+    }
+
+    private Subscription activeSubscription(long feedId) {
+        Subscription subscription = subscriptions.get(feedId);
+        return subscription != null && subscription.active ? subscription : null;
+    }
+
+    private void record(Phase phase, long fromNanos, long toNanos) {
+        latency[phase.ordinal()].record(millis(fromNanos, toNanos));
+    }
+
+    private static long millis(long fromNanos, long toNanos) {
+        return (toNanos - fromNanos) / 1000000;
+    }
+}
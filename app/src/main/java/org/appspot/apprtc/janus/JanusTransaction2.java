@@ -1,15 +1,43 @@
 package org.appspot.apprtc.janus;
 
 import org.json.JSONObject;
-import java.math.BigInteger;
 
 public class JanusTransaction2 {
     public interface TransactionEvents{
-        default void success(BigInteger id) {this.success(id, null);}
-        default void success(BigInteger id, JSONObject jsep) { this.success(id);}
+        default void success(long id) {this.success(id, null);}
+        default void success(long id, JSONObject jsep) { this.success(id);}
         default void error(String reason, String code) {};
     }
 
+    // Tracked request types, each with its own latency histogram. A CONFIGURE only changes
+    // settings and can be repeated, a NEGOTIATE (a configure with an offer, or a multistream
+    // update) changes the session description and cannot.
+    public enum RequestType {
+        CREATE, CLAIM, ATTACH, JOIN, CONFIGURE, NEGOTIATE, START, TRICKLE, DETACH;
+
+        // Janus answers a trickle with a lone ack, everything else with success or event.
+        boolean completesOnAck() {
+            return this == TRICKLE;
+        }
+
+        // Safe to send again after a reconnect when the first reply may have been lost.
+        boolean replayable() {
+            return this == TRICKLE || this == CONFIGURE;
+        }
+    }
+
+    // Error codes raised locally, as opposed to the numeric janus codes.
+    public static final String ERROR_TIMEOUT = "timeout";
+    public static final String ERROR_OVERLOAD = "overload";
+    public static final String ERROR_DISCONNECTED = "disconnected";
+
     public String transactionId;
+    public RequestType type;
     public TransactionEvents events;
+
+    // Bookkeeping of JanusTransactionTable.
+    String message;
+    long sentNanos;
+    long deadlineTick;
+    JanusTransaction2 wheelPrev, wheelNext;
 }
@@ -0,0 +1,57 @@
+package org.appspot.apprtc.janus;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transaction id generator.
+ *
+ * <p>An id is a random prefix chosen once per generator followed by a fixed-width base62
+ * counter, 12 characters in all. Ids of one generator never repeat, and the prefix keeps
+ * different clients and sessions apart. next() is lock-free: the counter is an AtomicLong
+ * and the characters are written into a per-thread buffer, so the only allocation is the
+ * resulting String.
+ */
+public class JanusTransactionIds {
+    private static final char[] DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    private static final int PREFIX_LENGTH = 4;
+    // 62^8 ids before the counter wraps.
+    private static final int COUNTER_LENGTH = 8;
+    public static final int LENGTH = PREFIX_LENGTH + COUNTER_LENGTH;
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[LENGTH];
+        }
+    };
+
+    private final AtomicLong counter = new AtomicLong();
+    private volatile char[] prefix = newPrefix();
+
+    public String next() {
+        long value = counter.getAndIncrement();
+        char[] buffer = buffers.get();
+        System.arraycopy(prefix, 0, buffer, 0, PREFIX_LENGTH);
+        for (int i = LENGTH - 1; i >= PREFIX_LENGTH; i--) {
+            buffer[i] = DIGITS[(int) (value % DIGITS.length)];
+            value /= DIGITS.length;
+        }
+        return new String(buffer);
+    }
+
+    // Starts over with a new prefix, for a new session.
+    public void reset() {
+        prefix = newPrefix();
+        counter.set(0);
+    }
+
+    private static char[] newPrefix() {
+        char[] prefix = new char[PREFIX_LENGTH];
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            prefix[i] = DIGITS[random.nextInt(DIGITS.length)];
+        }
+        return prefix;
+    }
+}
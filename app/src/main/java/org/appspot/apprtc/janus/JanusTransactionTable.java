@@ -0,0 +1,274 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusTransaction2.RequestType;
+import org.appspot.apprtc.util.LatencyHistogram;
+import org.webrtc.Logging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Pending Janus transactions of one session.
+ *
+ * <p>Every tracked request gets a deadline on a hashed timing wheel, ticked on the engine
+ * executor only while something is in flight; a transaction without a reply by then is
+ * dropped and fails through TransactionEvents.error with ERROR_TIMEOUT. At most
+ * maxInFlight requests are on the wire, later ones wait in a FIFO and are refused with
+ * ERROR_OVERLOAD once that is full. Reply latency is recorded per request type.
+ *
+ * <p>While the transport reconnects the table is paused: new requests wait in the FIFO,
+ * in-flight ones that are safe to repeat go back to its front and the others fail with
+ * ERROR_DISCONNECTED.
+ *
+ * <p>All methods must be called on the executor thread.
+ */
+public class JanusTransactionTable {
+    private static final String TAG = "JanusTransactionTable";
+    private static final int TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    // Time source of the deadlines and latencies, System.nanoTime() outside of tests.
+    interface Clock {
+        long nanoTime();
+    }
+
+    private final JanusExecutor executor;
+    private final Clock clock;
+    private final JanusTransport transport;
+    private final int timeoutTicks;
+    private final int maxInFlight;
+    private final int maxQueued;
+
+    private final HashMap<String, JanusTransaction2> inFlight = new HashMap<>();
+    private final ArrayDeque<JanusTransaction2> queue = new ArrayDeque<>();
+    private final JanusTransaction2[] wheel = new JanusTransaction2[WHEEL_SIZE];
+    private final LatencyHistogram[] latency = new LatencyHistogram[RequestType.values().length];
+    private final long originNanos;
+    private long currentTick;
+    private boolean ticking;
+    private boolean paused;
+
+    public JanusTransactionTable(JanusExecutor executor, JanusTransport transport) {
+        this(executor, transport, JanusCommon.transactionTimeoutMillis,
+                JanusCommon.maxInFlightTransactions, JanusCommon.maxQueuedTransactions);
+    }
+
+    public JanusTransactionTable(JanusExecutor executor, JanusTransport transport,
+                                 int timeoutMillis, int maxInFlight, int maxQueued) {
+        this(executor, transport, timeoutMillis, maxInFlight, maxQueued, System::nanoTime);
+    }
+
+    JanusTransactionTable(JanusExecutor executor, JanusTransport transport,
+                          int timeoutMillis, int maxInFlight, int maxQueued, Clock clock) {
+        this.executor = executor;
+        this.clock = clock;
+        this.originNanos = clock.nanoTime();
+        this.transport = transport;
+        this.timeoutTicks = Math.max(1, (timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+    }
+
+    // Sends |message| now, or once enough earlier transactions have completed.
+    public void send(JanusTransaction2 janusTransaction, String message) {
+        if (!paused && inFlight.size() < maxInFlight && queue.isEmpty()) {
+            transmit(janusTransaction, message);
+            return;
+        }
+        if (queue.size() >= maxQueued) {
+            Logging.w(TAG, "Refusing " + janusTransaction.type + ", " + queue.size() + " transactions queued");
+            fail(janusTransaction, "Too many pending transactions", JanusTransaction2.ERROR_OVERLOAD);
+            return;
+        }
+        janusTransaction.message = message;
+        queue.add(janusTransaction);
+    }
+
+    // Sends |message| right away even while paused, for the requests restoring the session.
+    public void sendNow(JanusTransaction2 janusTransaction, String message) {
+        transmit(janusTransaction, message);
+    }
+
+    // A final reply arrived: returns its transaction, or null if unknown or already expired.
+    public JanusTransaction2 complete(String transactionId) {
+        JanusTransaction2 janusTransaction = inFlight.remove(transactionId);
+        if (janusTransaction == null) return null;
+        unlink(janusTransaction);
+        janusTransaction.message = null;
+        latency[janusTransaction.type.ordinal()].record((clock.nanoTime() - janusTransaction.sentNanos) / 1000000);
+        drainQueue();
+        return janusTransaction;
+    }
+
+    // An ack arrived, which is the final reply for some request types only.
+    public void ack(String transactionId) {
+        JanusTransaction2 janusTransaction = inFlight.get(transactionId);
+        if (janusTransaction != null && janusTransaction.type.completesOnAck()) {
+            complete(transactionId);
+        }
+    }
+
+    // The transport is gone: hold new requests and take back the ones on the wire.
+    public void pause() {
+        if (paused) return;
+        paused = true;
+
+        ArrayList<JanusTransaction2> replay = new ArrayList<>();
+        ArrayList<JanusTransaction2> failed = new ArrayList<>();
+        for (JanusTransaction2 janusTransaction : inFlight.values()) {
+            unlink(janusTransaction);
+            (janusTransaction.type.replayable() ? replay : failed).add(janusTransaction);
+        }
+        inFlight.clear();
+
+        // Replayed in their original order, ahead of everything queued since.
+        Collections.sort(replay, (a, b) -> Long.compare(b.sentNanos, a.sentNanos));
+        for (JanusTransaction2 janusTransaction : replay) queue.addFirst(janusTransaction);
+        Logging.d(TAG, "Paused: " + replay.size() + " to replay, " + failed.size() + " failed, "
+                + queue.size() + " queued");
+        for (JanusTransaction2 janusTransaction : failed) {
+            janusTransaction.message = null;
+            fail(janusTransaction, "Transport disconnected", JanusTransaction2.ERROR_DISCONNECTED);
+        }
+    }
+
+    // The session is back: send what waited meanwhile.
+    public void resume() {
+        if (!paused) return;
+        paused = false;
+        drainQueue();
+    }
+
+    // Forgets every pending and queued transaction without notifying them.
+    public void clear() {
+        inFlight.clear();
+        queue.clear();
+        for (int i = 0; i < WHEEL_SIZE; i++) wheel[i] = null;
+        executor.cancel(tick);
+        ticking = false;
+        paused = false;
+    }
+
+    public LatencyHistogram latency(RequestType type) {
+        return latency[type.ordinal()];
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public int queuedCount() {
+        return queue.size();
+    }
+
+    // ----------------------------------------------------------------------------
+    // Timing wheel
+    // ----------------------------------------------------------------------------
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            ticking = false;
+            advance(elapsedTicks());
+            // Expiry may already have restarted the wheel by draining the queue.
+            if (!ticking && !inFlight.isEmpty()) {
+                ticking = true;
+                executor.executeDelayed(tick, TICK_MILLIS);
+            }
+        }
+    };
+
+    private void transmit(JanusTransaction2 janusTransaction, String message) {
+        if (!ticking) {
+            currentTick = elapsedTicks();
+            ticking = true;
+            executor.executeDelayed(tick, TICK_MILLIS);
+        }
+        // The message is kept until the reply, in case it has to be replayed.
+        janusTransaction.message = message;
+        janusTransaction.sentNanos = clock.nanoTime();
+        janusTransaction.deadlineTick = currentTick + timeoutTicks;
+        inFlight.put(janusTransaction.transactionId, janusTransaction);
+        link(janusTransaction);
+
+        transport.send(message);
+    }
+
+    private void advance(long nowTick) {
+        // After a stall every slot is visited once rather than once per missed tick.
+        long from = Math.max(currentTick + 1, nowTick - WHEEL_MASK);
+        currentTick = nowTick;
+
+        JanusTransaction2 expired = null;
+        for (long t = from; t <= nowTick; t++) {
+            JanusTransaction2 janusTransaction = wheel[(int) (t & WHEEL_MASK)];
+            while (janusTransaction != null) {
+                JanusTransaction2 next = janusTransaction.wheelNext;
+                if (janusTransaction.deadlineTick <= nowTick) {
+                    unlink(janusTransaction);
+                    inFlight.remove(janusTransaction.transactionId);
+                    janusTransaction.message = null;
+                    janusTransaction.wheelNext = expired;
+                    expired = janusTransaction;
+                }
+                janusTransaction = next;
+            }
+        }
+        if (expired == null) return;
+
+        // Callbacks may start new transactions, so they run once the wheel is consistent.
+        drainQueue();
+        while (expired != null) {
+            JanusTransaction2 next = expired.wheelNext;
+            expired.wheelNext = null;
+            latency[expired.type.ordinal()].recordTimeout();
+            Logging.w(TAG, expired.type + " transaction " + expired.transactionId + " timed out");
+            fail(expired, "Transaction timed out", JanusTransaction2.ERROR_TIMEOUT);
+            expired = next;
+        }
+    }
+
+    private void drainQueue() {
+        while (!paused && inFlight.size() < maxInFlight && !queue.isEmpty()) {
+            JanusTransaction2 janusTransaction = queue.poll();
+            transmit(janusTransaction, janusTransaction.message);
+        }
+    }
+
+    private void link(JanusTransaction2 janusTransaction) {
+        int slot = (int) (janusTransaction.deadlineTick & WHEEL_MASK);
+        JanusTransaction2 head = wheel[slot];
+        janusTransaction.wheelPrev = null;
+        janusTransaction.wheelNext = head;
+        if (head != null) head.wheelPrev = janusTransaction;
+        wheel[slot] = janusTransaction;
+    }
+
+    private void unlink(JanusTransaction2 janusTransaction) {
+        JanusTransaction2 prev = janusTransaction.wheelPrev;
+        JanusTransaction2 next = janusTransaction.wheelNext;
+        if (prev != null) {
+            prev.wheelNext = next;
+        } else {
+            int slot = (int) (janusTransaction.deadlineTick & WHEEL_MASK);
+            if (wheel[slot] == janusTransaction) wheel[slot] = next;
+        }
+        if (next != null) next.wheelPrev = prev;
+        janusTransaction.wheelPrev = janusTransaction.wheelNext = null;
+    }
+
+    private long elapsedTicks() {
+        return (clock.nanoTime() - originNanos) / (TICK_MILLIS * 1000000L);
+    }
+
+    private static void fail(JanusTransaction2 janusTransaction, String reason, String code) {
+        if (janusTransaction.events != null) {
+            janusTransaction.events.error(reason, code);
+        } else {
+            Logging.w(TAG, janusTransaction.type + " " + janusTransaction.transactionId + ": " + reason);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+
+/**
+ * Signaling transport used by JanusSignalingEngine.
+ *
+ * <p>Methods are called on the engine executor thread, and all events must be
+ * delivered on that same thread.
+ */
+public interface JanusTransport {
+    interface Events {
+        void onTransportOpen();
+        void onTransportMessage(String message);
+        void onTransportClose();
+        void onTransportError(String description);
+    }
+
+    void connect(JanusConnectionParameters connectionParameters, Events events);
+    void send(String message);
+    void disconnect();
+}
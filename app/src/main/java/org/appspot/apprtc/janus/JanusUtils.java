@@ -5,8 +5,10 @@ import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.math.BigInteger;
+
 public class JanusUtils {
-    // Helper method to create random identifiers (e.g., transaction)
+    // Helper method to create random identifiers. Transaction ids come from JanusTransactionIds.
     public static String randomString(int len){
         String charSet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
         String randomString = "";
@@ -27,6 +29,15 @@ public class JanusUtils {
         }
     }
 
+    // Put a janus |id| in |json|, as an unsigned number.
+    public static void jsonPutId(JSONObject json, String key, long id) {
+        if (id >= 0) {
+            jsonPut(json, key, id);
+        } else {
+            jsonPut(json, key, new BigInteger(JanusId.toString(id)));
+        }
+    }
+
     // Converts a java SessionDescription to a JSONObject.
     public static JSONObject convertSdpToJson(final SessionDescription sdp) {
         JSONObject json = new JSONObject();
@@ -0,0 +1,140 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.Logging;
+
+/**
+ * Decides which subscribed feeds receive video.
+ *
+ * <p>A feed gets video while it is on screen or speaking; otherwise the server is asked
+ * to stop sending it, leaving the feed audio only. Resuming is immediate, pausing waits
+ * pauseDelayMillis so a feed that is hidden only briefly keeps its stream and does not
+ * have to wait for the next keyframe. One request per feed is in flight at a time; a
+ * change made meanwhile is sent when it completes.
+ *
+ * <p>All methods must be called on the engine executor thread.
+ */
+public class JanusVideoPolicy {
+    private static final String TAG = "JanusVideoPolicy";
+
+    public interface Listener {
+        // Ask the server to start or stop sending the video of |id|; call onSent() with the outcome.
+        void sendVideo(long id, boolean send);
+    }
+
+    private final class Feed implements Runnable {
+        final long id;
+        boolean visible = true;
+        boolean speaking;
+        // What the server was last told, feeds are subscribed with video.
+        boolean sending = true;
+        boolean inFlight;
+
+        Feed(long id) {
+            this.id = id;
+        }
+
+        boolean wanted() {
+            return !enabled || visible || speaking;
+        }
+
+        // Delayed pause.
+        @Override
+        public void run() {
+            update(this, true);
+        }
+    }
+
+    private final JanusExecutor executor;
+    private final Listener listener;
+    private final LongHashMap<Feed> feeds = new LongHashMap<>();
+    private boolean enabled = true;
+    private int pauseDelayMillis = JanusCommon.videoPauseDelayMillis;
+    private volatile int paused;
+
+    public JanusVideoPolicy(JanusExecutor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // When disabled every feed gets video.
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        for (Feed feed : feeds.values()) update(feed, false);
+    }
+
+    public void setPauseDelay(int pauseDelayMillis) {
+        this.pauseDelayMillis = pauseDelayMillis;
+    }
+
+    public void setVisible(long id, boolean visible) {
+        Feed feed = feed(id);
+        feed.visible = visible;
+        update(feed, false);
+    }
+
+    public void setSpeaking(long id, boolean speaking) {
+        Feed feed = feeds.get(id);
+        if (feed == null) return;
+        feed.speaking = speaking;
+        update(feed, false);
+    }
+
+    // Result of a Listener.sendVideo() request.
+    public void onSent(long id, boolean send, boolean ok) {
+        Feed feed = feeds.get(id);
+        if (feed == null) return;
+        feed.inFlight = false;
+        if (!ok) {
+            Logging.w(TAG, "Could not " + (send ? "resume" : "pause") + " video of " + id);
+            return;
+        }
+        feed.sending = send;
+        paused += send ? -1 : 1;
+        update(feed, false);
+    }
+
+    public void remove(long id) {
+        Feed feed = feeds.remove(id);
+        if (feed == null) return;
+        executor.cancel(feed);
+        if (!feed.sending) paused--;
+    }
+
+    public void clear() {
+        feeds.forEach((id, feed) -> executor.cancel(feed));
+        feeds.clear();
+        paused = 0;
+    }
+
+    // Feeds the server currently sends no video for.
+    public int paused() {
+        return paused;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Internal functions
+    // ----------------------------------------------------------------------------
+    private Feed feed(long id) {
+        Feed feed = feeds.get(id);
+        if (feed == null) {
+            feed = new Feed(id);
+            feeds.put(id, feed);
+        }
+        return feed;
+    }
+
+    private void update(Feed feed, boolean now) {
+        boolean wanted = feed.wanted();
+        if (wanted) executor.cancel(feed);
+        if (feed.inFlight || wanted == feed.sending) return;
+
+        if (!wanted && !now && pauseDelayMillis > 0) {
+            executor.cancel(feed);
+            executor.executeDelayed(feed, pauseDelayMillis);
+            return;
+        }
+        feed.inFlight = true;
+        listener.sendVideo(feed.id, wanted);
+    }
+}
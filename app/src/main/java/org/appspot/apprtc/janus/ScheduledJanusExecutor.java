@@ -0,0 +1,58 @@
+package org.appspot.apprtc.janus;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JanusExecutor backed by a single thread, for running the signaling engine on a plain JVM.
+ */
+public class ScheduledJanusExecutor implements JanusExecutor {
+    private final ScheduledExecutorService executor;
+    private final ConcurrentHashMap<Runnable, ScheduledFuture<?>> delayedTasks = new ConcurrentHashMap<>();
+    private volatile Thread thread;
+
+    public ScheduledJanusExecutor(final String name) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread t = new Thread(runnable, name);
+            t.setDaemon(true);
+            thread = t;
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public void executeDelayed(final Runnable task, long delayMillis) {
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        self[0] = executor.schedule(() -> {
+            delayedTasks.remove(task, self[0]);
+            task.run();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        delayedTasks.put(task, self[0]);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        ScheduledFuture<?> future = delayedTasks.remove(task);
+        if (future != null) future.cancel(false);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        delayedTasks.clear();
+    }
+}
@@ -17,6 +17,8 @@ import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Asynchronous http requests implementation.
@@ -24,6 +26,8 @@ import java.util.Scanner;
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://192.168.100.169:8081";
+  // Shared by all requests, idle threads are reused instead of starting one per request.
+  private static final ExecutorService requestExecutor = Executors.newCachedThreadPool();
   private final String method;
   private final String url;
   private final String message;
@@ -50,7 +54,7 @@ public class AsyncHttpURLConnection {
   }
 
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    requestExecutor.execute(this ::sendHttpMessage);
   }
 
   private void sendHttpMessage() {
@@ -0,0 +1,233 @@
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serial lanes multiplexed onto a small bounded thread pool.
+ *
+ * <p>Tasks of one lane run one at a time in submission order, tasks of different lanes run
+ * in parallel on up to |threads| pool threads. A lane occupies a pool thread only while it
+ * has work, and yields it after a batch of tasks so one busy lane cannot starve the others.
+ * Every lane records its queue depth and how long its tasks waited before running.
+ */
+public class LaneExecutor {
+    private static final String TAG = "LaneExecutor";
+    // Tasks a lane runs before giving its pool thread to the next lane.
+    private static final int BATCH = 16;
+    // Closed lanes remembered once drained, the oldest is forgotten beyond this.
+    private static final int MAX_CLOSED = 256;
+
+    private final String name;
+    private final ExecutorService pool;
+    // Both are guarded by the lanes monitor.
+    private final LongHashMap<Lane> lanes = new LongHashMap<>();
+    private final ArrayDeque<Lane> closedLanes = new ArrayDeque<>();
+
+    public LaneExecutor(String name, int threads) {
+        this.name = name;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        this.pool = pool;
+    }
+
+    // The lane of |key|, created on first use.
+    public Lane lane(long key) {
+        synchronized (lanes) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+            }
+            return lane;
+        }
+    }
+
+    // Closes the lane of |key| for good: tasks already queued on it still run, later ones are
+    // dropped. The closed lane stays in place, so late work for |key| cannot open a new lane
+    // that would run alongside the old one; once drained it is kept among the last MAX_CLOSED.
+    public void close(long key) {
+        Lane lane = lane(key);
+        Log.d(TAG, name + " " + lane);
+        if (lane.close()) retire(lane);
+    }
+
+    // The lanes that are not closed.
+    public List<Lane> lanes() {
+        List<Lane> open;
+        synchronized (lanes) {
+            open = lanes.values();
+        }
+        for (int i = open.size() - 1; i >= 0; i--) {
+            if (open.get(i).isClosed()) open.remove(i);
+        }
+        return open;
+    }
+
+    // Runs already queued tasks, then stops the pool threads.
+    public void shutdown() {
+        for (Lane lane : lanes()) Log.d(TAG, name + " " + lane);
+        pool.shutdown();
+    }
+
+    private void retire(Lane lane) {
+        synchronized (lanes) {
+            closedLanes.add(lane);
+            if (closedLanes.size() > MAX_CLOSED) {
+                Lane oldest = closedLanes.poll();
+                if (lanes.get(oldest.key) == oldest) lanes.remove(oldest.key);
+            }
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long queuedNanos;
+
+        Task(Runnable runnable, long queuedNanos) {
+            this.runnable = runnable;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    public final class Lane implements Executor {
+        private final long key;
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+        private final Runnable drain = this::drain;
+        private boolean scheduled;
+        private boolean closed;
+        private long dropped;
+        private int maxDepth;
+        private long executed;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        private Lane(long key) {
+            this.key = key;
+        }
+
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            submit(runnable);
+        }
+
+        // Like execute(), false if the lane is closed and |runnable| was dropped.
+        public boolean submit(Runnable runnable) {
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    dropped++;
+                    Log.d(TAG, name + " lane " + key + " is closed, dropping a task");
+                    return false;
+                }
+                queue.add(new Task(runnable, System.nanoTime()));
+                if (queue.size() > maxDepth) maxDepth = queue.size();
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) schedule();
+            return true;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public synchronized int depth() {
+            return queue.size();
+        }
+
+        public synchronized int maxDepth() {
+            return maxDepth;
+        }
+
+        public synchronized long executed() {
+            return executed;
+        }
+
+        public synchronized long meanWaitMillis() {
+            return executed == 0 ? 0 : totalWaitNanos / executed / 1000000;
+        }
+
+        public synchronized long maxWaitMillis() {
+            return maxWaitNanos / 1000000;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US,
+                    "lane %d: depth=%d maxDepth=%d executed=%d dropped=%d wait mean=%dms max=%dms",
+                    key, queue.size(), maxDepth, executed, dropped, meanWaitMillis(), maxWaitMillis());
+        }
+
+        // True if the lane is drained already.
+        private synchronized boolean close() {
+            if (closed) return false;
+            closed = true;
+            return !scheduled;
+        }
+
+        private void drain() {
+            for (int i = 0; i < BATCH; i++) {
+                Task task;
+                boolean drained = false;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        drained = closed;
+                    } else {
+                        long waitNanos = System.nanoTime() - task.queuedNanos;
+                        executed++;
+                        totalWaitNanos += waitNanos;
+                        if (waitNanos > maxWaitNanos) maxWaitNanos = waitNanos;
+                    }
+                }
+                if (task == null) {
+                    // A closed lane is done for good once drained.
+                    if (drained) retire(this);
+                    return;
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    // The lane keeps going, like a single thread executor replacing its thread.
+                    Log.e(TAG, name + " lane " + key + " task failed", e);
+                }
+            }
+            // More work is left: requeue behind the other lanes.
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(drain);
+            } catch (RejectedExecutionException e) {
+                // Shut down: late callbacks are dropped.
+                synchronized (this) {
+                    Log.w(TAG, name + " lane " + key + " dropping " + queue.size() + " tasks after shutdown");
+                    queue.clear();
+                    scheduled = false;
+                }
+            }
+        }
+    }
+}
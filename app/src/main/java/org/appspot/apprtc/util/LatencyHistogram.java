@@ -0,0 +1,82 @@
+package org.appspot.apprtc.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Log2-bucketed latency histogram in milliseconds.
+ *
+ * <p>Bucket 0 holds [0, 1) ms, bucket i holds [2^(i-1), 2^i) ms and the last bucket is
+ * open ended. Recording is allocation-free; the methods are synchronized so a single
+ * writer thread can be read from a UI thread.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 18; // up to ~65 s
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sumMillis;
+    private long maxMillis;
+    private long timeouts;
+
+    public synchronized void record(long latencyMillis) {
+        if (latencyMillis < 0) latencyMillis = 0;
+        counts[bucket(latencyMillis)]++;
+        count++;
+        sumMillis += latencyMillis;
+        if (latencyMillis > maxMillis) maxMillis = latencyMillis;
+    }
+
+    public synchronized void recordTimeout() {
+        timeouts++;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized long timeouts() {
+        return timeouts;
+    }
+
+    public synchronized long maxMillis() {
+        return maxMillis;
+    }
+
+    public synchronized long meanMillis() {
+        return count == 0 ? 0 : sumMillis / count;
+    }
+
+    // Upper bound of the bucket holding the |percentile| (0..100) sample.
+    public synchronized long percentileMillis(double percentile) {
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) return Math.min(upperBound(i), maxMillis);
+        }
+        return maxMillis;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = sumMillis = maxMillis = timeouts = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d mean=%dms p50=%dms p90=%dms p99=%dms max=%dms timeouts=%d",
+                count, meanMillis(), percentileMillis(50), percentileMillis(90), percentileMillis(99),
+                maxMillis, timeouts);
+    }
+
+    private static int bucket(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+}
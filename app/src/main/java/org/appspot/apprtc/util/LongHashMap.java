@@ -0,0 +1,173 @@
+package org.appspot.apprtc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash map keyed by primitive longs.
+ *
+ * <p>Linear probing over parallel key/value arrays with backward-shift deletion, so
+ * get/put/remove never box the key or allocate entries. Not thread-safe: owners keep
+ * every access on a single thread.
+ */
+public class LongHashMap<V> {
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    // Key 0 doubles as the free-slot marker, so its entry lives outside the table.
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) return hasZeroKey;
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) return zeroValue;
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            V previous = zeroValue;
+            if (!hasZeroKey) size++;
+            hasZeroKey = true;
+            zeroValue = value;
+            return previous;
+        }
+        int index = slot(key);
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size * 2 > keys.length) grow();
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) {
+            V previous = zeroValue;
+            if (hasZeroKey) size--;
+            hasZeroKey = false;
+            zeroValue = null;
+            return previous;
+        }
+        int index = indexOf(key);
+        if (index < 0) return null;
+        V previous = (V) values[index];
+        size--;
+
+        // Shift back the following entries of the probe chain into the hole.
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != 0) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor) {
+        if (hasZeroKey) visitor.visit(0, zeroValue);
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) visitor.visit(keys[i], (V) values[i]);
+        }
+    }
+
+    // Snapshot of the values, for callers that mutate the map while iterating.
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        if (hasZeroKey) result.add(zeroValue);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) result.add((V) values[i]);
+        }
+        return result;
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (keys[index] != 0) {
+            if (keys[index] == key) return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == 0) continue;
+            int index = slot(key);
+            while (keys[index] != 0) index = (index + 1) & mask;
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Remote description munging: the split and regex rewriting PeerConnectionClient2 used
+ * before, against SdpModel. Both prefer ISAC and VP9 and set the opus start bitrate of an
+ * offer with one audio and |videoSections| video sections, as a multistream subscriber gets.
+ *
+ * <p>Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdpModelBenchmark {
+  private static final String CODEC_PARAM_BITRATE = "maxaveragebitrate";
+  private static final int START_BITRATE_KBPS = 32;
+
+  @Param({"1", "10", "50"})
+  public int videoSections;
+
+  private String offer;
+
+  @Setup
+  public void setUp() {
+    offer = offer(videoSections);
+  }
+
+  @Benchmark
+  public String splitAndRegex() {
+    String sdp = LegacyMunging.preferCodec(offer, "ISAC", true);
+    sdp = LegacyMunging.preferCodec(sdp, "VP9", false);
+    return LegacyMunging.setStartBitrate("opus", sdp, START_BITRATE_KBPS);
+  }
+
+  @Benchmark
+  public String sdpModel() {
+    SdpModel sdp = SdpModel.parse(offer);
+    sdp.preferCodec("audio", "ISAC");
+    sdp.preferCodec("video", "VP9");
+    sdp.setCodecParameter(
+        "audio", "opus", CODEC_PARAM_BITRATE, Integer.toString(START_BITRATE_KBPS * 1000));
+    return sdp.toString();
+  }
+
+  // A Janus offer shaped like the ones of Chrome publishers.
+  static String offer(int videoSections) {
+    StringBuilder sdp = new StringBuilder();
+    sdp.append("v=0\r\no=- 1581360741231412 1 IN IP4 10.0.0.1\r\ns=VideoRoom 1234\r\nt=0 0\r\n");
+    sdp.append("a=group:BUNDLE 0");
+    for (int i = 1; i <= videoSections; i++) sdp.append(' ').append(i);
+    sdp.append("\r\na=msid-semantic: WMS *\r\n");
+
+    sdp.append("m=audio 9 UDP/TLS/RTP/SAVPF 111 63 103 104 9 0 8 106 105 13 110 112 113 126\r\n");
+    section(sdp, 0, "audio");
+    sdp.append("a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n");
+    sdp.append("a=rtpmap:111 opus/48000/2\r\na=rtcp-fb:111 transport-cc\r\n");
+    sdp.append("a=fmtp:111 minptime=10;useinbandfec=1\r\n");
+    sdp.append("a=rtpmap:63 red/48000/2\r\na=fmtp:63 111/111\r\n");
+    sdp.append("a=rtpmap:103 ISAC/16000\r\na=rtpmap:104 ISAC/32000\r\na=rtpmap:9 G722/8000\r\n");
+    sdp.append("a=rtpmap:0 PCMU/8000\r\na=rtpmap:8 PCMA/8000\r\na=rtpmap:106 CN/32000\r\n");
+    sdp.append("a=rtpmap:105 CN/16000\r\na=rtpmap:13 CN/8000\r\na=rtpmap:110 telephone-event/48000\r\n");
+    sdp.append("a=rtpmap:112 telephone-event/32000\r\na=rtpmap:113 telephone-event/16000\r\n");
+    sdp.append("a=rtpmap:126 telephone-event/8000\r\na=ssrc:1001 cname:janus\r\n");
+
+    for (int i = 1; i <= videoSections; i++) {
+      sdp.append("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102 121 127 120 125 107 108 109 "
+          + "35 36 124 119 123 118 114 115 116\r\n");
+      section(sdp, i, "video");
+      sdp.append("a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n");
+      sdp.append("a=extmap:3 urn:3gpp:video-orientation\r\n");
+      sdp.append("a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n");
+      String[] codecs = {"VP8", "VP9", "VP9", "H264", "H264", "H264", "AV1"};
+      String[] payloadTypes = {"96", "98", "100", "102", "127", "125", "35"};
+      String[] rtxTypes = {"97", "99", "101", "121", "120", "107", "36"};
+      for (int c = 0; c < codecs.length; c++) {
+        String pt = payloadTypes[c];
+        sdp.append("a=rtpmap:").append(pt).append(' ').append(codecs[c]).append("/90000\r\n");
+        for (String fb : new String[] {"goog-remb", "transport-cc", "ccm fir", "nack", "nack pli"}) {
+          sdp.append("a=rtcp-fb:").append(pt).append(' ').append(fb).append("\r\n");
+        }
+        if (codecs[c].equals("H264")) {
+          sdp.append("a=fmtp:").append(pt)
+              .append(" level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n");
+        }
+        sdp.append("a=rtpmap:").append(rtxTypes[c]).append(" rtx/90000\r\n");
+        sdp.append("a=fmtp:").append(rtxTypes[c]).append(" apt=").append(pt).append("\r\n");
+      }
+      sdp.append("a=rtpmap:108 red/90000\r\na=rtpmap:109 rtx/90000\r\na=fmtp:109 apt=108\r\n");
+      sdp.append("a=rtpmap:124 ulpfec/90000\r\na=rtpmap:119 flexfec-03/90000\r\n");
+      sdp.append("a=ssrc-group:FID ").append(2000 + i).append(' ').append(3000 + i).append("\r\n");
+      sdp.append("a=ssrc:").append(2000 + i).append(" cname:janus\r\n");
+      sdp.append("a=ssrc:").append(3000 + i).append(" cname:janus\r\n");
+    }
+    return sdp.toString();
+  }
+
+  private static void section(StringBuilder sdp, int mid, String kind) {
+    sdp.append("c=IN IP4 10.0.0.1\r\na=sendonly\r\na=mid:").append(mid).append("\r\n");
+    sdp.append("a=rtcp-mux\r\na=ice-ufrag:Xt3b\r\na=ice-pwd:Vq2B5cRAnMdE4mXkmS1UtB\r\n");
+    sdp.append("a=ice-options:trickle\r\na=fingerprint:sha-256 D2:FA:0E:C3:22:59:5E:14:95:69:92:3D:")
+        .append("13:B4:84:24:2C:C2:A2:C0:3E:FD:34:8E:5E:EA:6F:AF:52:CE:E6:0F\r\n");
+    sdp.append("a=setup:actpass\r\na=msid:janus janus").append(kind).append(mid).append("\r\n");
+  }
+
+  // The former PeerConnectionClient2 munging, without its logging.
+  static final class LegacyMunging {
+    static String setStartBitrate(String codec, String sdpDescription, int bitrateKbps) {
+      String[] lines = sdpDescription.split("\r\n");
+      int rtpmapLineIndex = -1;
+      boolean sdpFormatUpdated = false;
+      String codecRtpMap = null;
+      String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
+      Pattern codecPattern = Pattern.compile(regex);
+      for (int i = 0; i < lines.length; i++) {
+        Matcher codecMatcher = codecPattern.matcher(lines[i]);
+        if (codecMatcher.matches()) {
+          codecRtpMap = codecMatcher.group(1);
+          rtpmapLineIndex = i;
+          break;
+        }
+      }
+      if (codecRtpMap == null) {
+        return sdpDescription;
+      }
+      regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
+      codecPattern = Pattern.compile(regex);
+      for (int i = 0; i < lines.length; i++) {
+        Matcher codecMatcher = codecPattern.matcher(lines[i]);
+        if (codecMatcher.matches()) {
+          lines[i] += "; " + CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+          sdpFormatUpdated = true;
+          break;
+        }
+      }
+      StringBuilder newSdpDescription = new StringBuilder();
+      for (int i = 0; i < lines.length; i++) {
+        newSdpDescription.append(lines[i]).append("\r\n");
+        if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+          newSdpDescription.append("a=fmtp:" + codecRtpMap + " " + CODEC_PARAM_BITRATE + "="
+              + (bitrateKbps * 1000)).append("\r\n");
+        }
+      }
+      return newSdpDescription.toString();
+    }
+
+    static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
+      final String[] lines = sdpDescription.split("\r\n");
+      final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
+      if (mLineIndex == -1) {
+        return sdpDescription;
+      }
+      final List<String> codecPayloadTypes = new ArrayList<>();
+      final Pattern codecPattern =
+          Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+      for (String line : lines) {
+        Matcher codecMatcher = codecPattern.matcher(line);
+        if (codecMatcher.matches()) {
+          codecPayloadTypes.add(codecMatcher.group(1));
+        }
+      }
+      if (codecPayloadTypes.isEmpty()) {
+        return sdpDescription;
+      }
+      final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
+      if (newMLine == null) {
+        return sdpDescription;
+      }
+      lines[mLineIndex] = newMLine;
+      return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
+    }
+
+    private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
+      final String mediaDescription = isAudio ? "m=audio " : "m=video ";
+      for (int i = 0; i < sdpLines.length; ++i) {
+        if (sdpLines[i].startsWith(mediaDescription)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String joinString(
+        Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
+      Iterator<? extends CharSequence> iter = s.iterator();
+      if (!iter.hasNext()) {
+        return "";
+      }
+      StringBuilder buffer = new StringBuilder(iter.next());
+      while (iter.hasNext()) {
+        buffer.append(delimiter).append(iter.next());
+      }
+      if (delimiterAtEnd) {
+        buffer.append(delimiter);
+      }
+      return buffer.toString();
+    }
+
+    private static String movePayloadTypesToFront(
+        List<String> preferredPayloadTypes, String mLine) {
+      final List<String> origLineParts = Arrays.asList(mLine.split(" "));
+      if (origLineParts.size() <= 3) {
+        return null;
+      }
+      final List<String> header = origLineParts.subList(0, 3);
+      final List<String> unpreferredPayloadTypes =
+          new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
+      unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
+      final List<String> newLineParts = new ArrayList<>();
+      newLineParts.addAll(header);
+      newLineParts.addAll(preferredPayloadTypes);
+      newLineParts.addAll(unpreferredPayloadTypes);
+      return joinString(newLineParts, " ", false /* delimiterAtEnd */);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(SdpModelBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
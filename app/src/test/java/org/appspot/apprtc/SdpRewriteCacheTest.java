@@ -0,0 +1,171 @@
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+/**
+ * SdpRewriteCache against munging every description in full through SdpModel: Janus offers
+ * that differ in their origin, ICE credentials and candidates, fingerprint, ssrcs and msids
+ * are rewritten from the plan of the first one, and descriptions the plan does not fit fall
+ * back to the full munge. Either way the result has to be the same.
+ */
+public class SdpRewriteCacheTest {
+  private static final SdpRewriteCache.Munger CLIENT_MUNGING = sdp -> {
+    sdp.preferCodec("audio", "ISAC");
+    sdp.preferCodec("video", "VP9");
+    sdp.setCodecParameter("audio", "opus", "maxaveragebitrate", "32000");
+  };
+  // Drops more lines in a row than the plan recording looks ahead, so the ssrc lines that
+  // follow them are recorded as replacements of copied lines, which a plan must not use.
+  private static final SdpRewriteCache.Munger DROP_CODECS = sdp -> {
+    sdp.removeCodec("video", "VP9");
+    sdp.removeCodec("video", "H264");
+  };
+
+  @Test
+  public void offersOfOneStructureAreRewrittenFromThePlan() {
+    SdpRewriteCache cache = new SdpRewriteCache();
+    for (int subscriber = 0; subscriber < 5; subscriber++) {
+      String offer = offer(subscriber, 3, "\r\n");
+      assertEquals(munged(offer, CLIENT_MUNGING), cache.rewrite(offer, 1, CLIENT_MUNGING));
+    }
+    assertEquals(1, cache.misses());
+    assertEquals(4, cache.hits());
+  }
+
+  @Test
+  public void bareLineFeedsAreRewrittenWithCrlf() {
+    SdpRewriteCache cache = new SdpRewriteCache();
+    for (int subscriber = 0; subscriber < 3; subscriber++) {
+      String offer = offer(subscriber, 2, "\n");
+      assertEquals(munged(offer, CLIENT_MUNGING), cache.rewrite(offer, 1, CLIENT_MUNGING));
+    }
+    assertEquals(2, cache.hits());
+  }
+
+  @Test
+  public void variantsDoNotShareAPlan() {
+    SdpRewriteCache cache = new SdpRewriteCache();
+    SdpRewriteCache.Munger local = sdp -> sdp.preferCodec("video", "VP9");
+    String first = offer(0, 2, "\r\n");
+    String second = offer(1, 2, "\r\n");
+    assertEquals(munged(first, CLIENT_MUNGING), cache.rewrite(first, 1, CLIENT_MUNGING));
+    assertEquals(munged(second, local), cache.rewrite(second, 0, local));
+    assertNotEquals(munged(second, CLIENT_MUNGING), munged(second, local));
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  public void plansCopyingVolatileLinesAreNotUsed() {
+    SdpRewriteCache cache = new SdpRewriteCache();
+    for (int subscriber = 0; subscriber < 3; subscriber++) {
+      String offer = offer(subscriber, 1, "\r\n");
+      assertEquals(munged(offer, DROP_CODECS), cache.rewrite(offer, 1, DROP_CODECS));
+    }
+    assertEquals(0, cache.hits());
+    assertEquals(3, cache.misses());
+  }
+
+  @Test
+  public void structuralMismatchFallsBackToTheFullMunge() {
+    SdpRewriteCache cache = new SdpRewriteCache();
+    String first = offer(0, 2, "\r\n");
+    assertEquals(munged(first, CLIENT_MUNGING), cache.rewrite(first, 1, CLIENT_MUNGING));
+
+    // Same length and line starts, so the same fingerprint, but one structural line differs.
+    String changed = offer(1, 2, "\r\n").replace("minptime=10", "minptime=20");
+    assertEquals(munged(changed, CLIENT_MUNGING), cache.rewrite(changed, 1, CLIENT_MUNGING));
+    // A missing section and an extra line do not fit either.
+    String fewer = offer(2, 1, "\r\n");
+    assertEquals(munged(fewer, CLIENT_MUNGING), cache.rewrite(fewer, 1, CLIENT_MUNGING));
+    String extra = offer(3, 2, "\r\n").replace("a=rtcp-mux\r\n", "a=rtcp-mux\r\na=rtcp-rsize\r\n");
+    assertEquals(munged(extra, CLIENT_MUNGING), cache.rewrite(extra, 1, CLIENT_MUNGING));
+    assertEquals(0, cache.hits());
+
+    // The plan of the first offer still serves the offers it fits.
+    String next = offer(4, 2, "\r\n");
+    assertEquals(munged(next, CLIENT_MUNGING), cache.rewrite(next, 1, CLIENT_MUNGING));
+    assertEquals(1, cache.hits());
+  }
+
+  private static String munged(String sdp, SdpRewriteCache.Munger munger) {
+    SdpModel model = SdpModel.parse(sdp);
+    munger.munge(model);
+    return model.toString();
+  }
+
+  // A Janus subscriber offer with one audio and |videoSections| video sections, of a
+  // publisher with the volatile values of |subscriber|; lines end in |lineEnd|.
+  private static String offer(int subscriber, int videoSections, String lineEnd) {
+    StringBuilder sdp = new StringBuilder();
+    sdp.append("v=0\n").append("o=- ").append(1596010184413364L + subscriber * 7919L)
+        .append(" 1 IN IP4 203.0.113.7\n");
+    sdp.append("s=VideoRoom 1234\nt=0 0\na=group:BUNDLE 0");
+    for (int i = 1; i <= videoSections; i++) sdp.append(' ').append(i);
+    sdp.append("\na=msid-semantic: WMS janus\na=ice-lite\n");
+
+    sdp.append("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9 0\n");
+    section(sdp, subscriber, 0);
+    sdp.append("a=rtpmap:111 opus/48000/2\na=fmtp:111 minptime=10;useinbandfec=1\n");
+    sdp.append("a=rtpmap:103 ISAC/16000\na=rtpmap:9 G722/8000\na=rtpmap:0 PCMU/8000\n");
+    sdp.append("a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\n");
+    sources(sdp, subscriber, 0, "a");
+
+    for (int i = 1; i <= videoSections; i++) {
+      sdp.append("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 102 121 127 120 125 107\n");
+      section(sdp, subscriber, i);
+      String[] codecs = {"VP8", "VP9", "H264", "H264", "H264"};
+      String[] payloadTypes = {"96", "98", "102", "127", "125"};
+      String[] rtxTypes = {"97", "99", "121", "120", "107"};
+      for (int c = 0; c < codecs.length; c++) {
+        String pt = payloadTypes[c];
+        sdp.append("a=rtpmap:").append(pt).append(' ').append(codecs[c]).append("/90000\n");
+        for (String fb : new String[] {"goog-remb", "transport-cc", "ccm fir", "nack", "nack pli"}) {
+          sdp.append("a=rtcp-fb:").append(pt).append(' ').append(fb).append('\n');
+        }
+        if (codecs[c].equals("H264")) {
+          sdp.append("a=fmtp:").append(pt).append(" level-asymmetry-allowed=1;packetization-mode=")
+              .append(c % 2).append(";profile-level-id=42e01f\n");
+        }
+        sdp.append("a=rtpmap:").append(rtxTypes[c]).append(" rtx/90000\n");
+        sdp.append("a=fmtp:").append(rtxTypes[c]).append(" apt=").append(pt).append('\n');
+      }
+      sources(sdp, subscriber, i, "v");
+    }
+    return sdp.toString().replace("\n", lineEnd);
+  }
+
+  private static void section(StringBuilder sdp, int subscriber, int mid) {
+    sdp.append("c=IN IP4 203.0.113.7\na=sendonly\na=mid:").append(mid).append('\n');
+    sdp.append("a=rtcp-mux\na=ice-ufrag:").append(Integer.toHexString(0x5eed + subscriber))
+        .append("\na=ice-pwd:").append(Long.toHexString(0x7a1e55e1dL * (subscriber + 3)))
+        .append("Vq2B5cRAnM\n");
+    sdp.append("a=ice-options:trickle\na=fingerprint:sha-256 ");
+    for (int i = 0; i < 32; i++) {
+      if (i > 0) sdp.append(':');
+      sdp.append(String.format("%02X", (i * 37 + subscriber * 101) & 0xff));
+    }
+    sdp.append("\na=setup:actpass\n");
+  }
+
+  private static void sources(StringBuilder sdp, int subscriber, int mid, String kind) {
+    String msid = "janus" + subscriber + " janus" + kind + mid;
+    long ssrc = 1000000L * (subscriber + 1) + mid * 10;
+    sdp.append("a=msid:").append(msid).append('\n');
+    if (kind.equals("v")) {
+      sdp.append("a=ssrc-group:FID ").append(ssrc).append(' ').append(ssrc + 1).append('\n');
+    }
+    for (long s = ssrc; s <= ssrc + (kind.equals("v") ? 1 : 0); s++) {
+      sdp.append("a=ssrc:").append(s).append(" cname:janus\n");
+      sdp.append("a=ssrc:").append(s).append(" msid:").append(msid).append('\n');
+    }
+    sdp.append("a=candidate:1 1 udp 2015363327 203.0.113.7 ").append(40000 + subscriber)
+        .append(" typ host\n");
+    sdp.append("a=candidate:2 1 udp 1679819007 198.51.100.").append(subscriber + 1)
+        .append(' ').append(51234 + subscriber)
+        .append(" typ srflx raddr 203.0.113.7 rport 40000\n");
+    sdp.append("a=end-of-candidates\n");
+  }
+}
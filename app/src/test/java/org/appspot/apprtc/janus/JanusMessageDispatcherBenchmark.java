@@ -0,0 +1,211 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound message decoding: the org.json path VideoRoomClient used before, against
+ * JanusMessageDispatcher. Both read the fields the signaling engine reads for each
+ * message of a recorded 30-publisher room session.
+ *
+ * <p>Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JanusMessageDispatcherBenchmark {
+    private static final String TRAFFIC = "/janus/videoroom-traffic.jsonl";
+
+    private List<String> messages;
+    private JanusMessageDispatcher dispatcher;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        messages = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream(TRAFFIC), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) messages.add(line);
+            }
+        }
+        dispatcher = new JanusMessageDispatcher(new ConsumingHandler());
+    }
+
+    @Benchmark
+    public void orgJson(Blackhole bh) throws JSONException {
+        for (String message : messages) {
+            decodeWithJsonObject(message, bh);
+        }
+    }
+
+    @Benchmark
+    public void streamingDispatcher() throws JSONException {
+        for (String message : messages) {
+            dispatcher.dispatch(message);
+        }
+    }
+
+    // Mirrors the reads of the former VideoRoomClient.onWebSocketMessage.
+    private static void decodeWithJsonObject(String msg, Blackhole bh) throws JSONException {
+        JSONObject json = new JSONObject(msg);
+
+        String janus = json.optString("janus");
+        String sender = json.optString("sender");
+        String transaction = json.optString("transaction");
+        bh.consume(transaction);
+
+        if (!sender.equals("")) {
+            bh.consume(new BigInteger(sender));
+            if (janus.equals("event")) {
+                JSONObject data = json.optJSONObject("plugindata").optJSONObject("data");
+                JSONArray publishers = data.optJSONArray("publishers");
+                if (publishers != null) {
+                    for (int i = 0; i < publishers.length(); i++) {
+                        JSONObject publisher = publishers.optJSONObject(i);
+                        bh.consume(new BigInteger(publisher.optString("id")));
+                        bh.consume(publisher.optString("display"));
+                    }
+                }
+                String videoroom = data.optString("videoroom");
+                if (videoroom.equals("joined")) {
+                    bh.consume(new BigInteger(data.optString("private_id")));
+                } else if (videoroom.equals("attached")) {
+                    bh.consume(json.optJSONObject("jsep"));
+                } else if (videoroom.equals("event")) {
+                    String configured = data.optString("configured");
+                    if (!configured.equals("")) {
+                        bh.consume(json.optJSONObject("jsep"));
+                        return;
+                    }
+                    bh.consume(data.optString("started"));
+                    String unpublished = data.optString("unpublished");
+                    if (!unpublished.equals("")) {
+                        bh.consume(new BigInteger(unpublished));
+                        return;
+                    }
+                    String leaving = data.optString("leaving");
+                    if (!leaving.equals("")) bh.consume(new BigInteger(leaving));
+                }
+            } else if (janus.equals("media")) {
+                bh.consume(json.optString("type"));
+                bh.consume(json.optBoolean("receiving"));
+            }
+            return;
+        }
+
+        if (janus.equals("success")) {
+            json = json.optJSONObject("data");
+            if (json != null) bh.consume(new BigInteger(json.optString("id")));
+        } else if (janus.equals("error")) {
+            json = json.optJSONObject("error");
+            bh.consume(json.optString("reason"));
+            bh.consume(json.optString("code"));
+        }
+    }
+
+    // Reads the same fields as JanusSignalingEngine's message handler.
+    private class ConsumingHandler implements JanusMessageDispatcher.Handler {
+        @Override
+        public void onAck(JanusMessageReader message) throws JSONException {
+            blackhole.consume(message.transaction());
+        }
+
+        @Override
+        public void onSuccess(JanusMessageReader message) throws JSONException {
+            blackhole.consume(message.transaction());
+            blackhole.consume(message.dataId());
+        }
+
+        @Override
+        public void onError(JanusMessageReader message) throws JSONException {
+            blackhole.consume(message.transaction());
+            JSONObject error = message.error();
+            blackhole.consume(error.optString("reason"));
+            blackhole.consume(error.optString("code"));
+        }
+
+        @Override
+        public void onEvent(JanusMessageReader message) throws JSONException {
+            blackhole.consume(message.transaction());
+            blackhole.consume(message.sender());
+            JSONArray publishers = message.publishers();
+            if (publishers != null) {
+                for (int i = 0; i < publishers.length(); i++) {
+                    JSONObject publisher = publishers.optJSONObject(i);
+                    blackhole.consume(JanusId.parse(publisher.optString("id")));
+                    blackhole.consume(publisher.optString("display"));
+                }
+            }
+            switch (message.videoRoom()) {
+                case JOINED:
+                    blackhole.consume(message.pluginFieldLong("private_id"));
+                    break;
+                case ATTACHED:
+                    blackhole.consume(message.jsep());
+                    break;
+                case EVENT:
+                    if (message.hasPluginField("configured")) {
+                        blackhole.consume(message.jsep());
+                        return;
+                    }
+                    blackhole.consume(message.pluginFieldEquals("started", "ok"));
+                    if (message.hasPluginField("unpublished")) {
+                        blackhole.consume(message.pluginFieldLong("unpublished"));
+                        return;
+                    }
+                    if (message.hasPluginField("leaving")) {
+                        blackhole.consume(message.pluginFieldLong("leaving"));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onMedia(JanusMessageReader message) {
+            blackhole.consume(message.sender());
+        }
+
+        @Override
+        public void onUnrecognized(JanusMessageReader message) {
+            blackhole.consume(message.sender());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JanusMessageDispatcherBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,156 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusTransaction2.RequestType;
+import org.json.JSONObject;
+import org.webrtc.SessionDescription;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness for the signaling engine against MockJanusServer.
+ *
+ * <p>One client joins a room as a publisher, then simulated publishers join in waves and
+ * the client subscribes to each of them; afterwards they all leave again. Reports the
+ * transaction and subscription latencies the engine measured, keepalive round trips,
+ * the message counts of the server and the bytes allocated on the engine thread.
+ *
+ * <p>Arguments: publishers, wave size, one-way latency in milliseconds,
+ * concurrent subscriptions, membership window in milliseconds. Defaults: 300 20 10 4 150.
+ */
+public class JanusSignalingBenchmark {
+    private static final long ROOM_ID = 1234;
+    private static final String SDP = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+    public static void main(String[] args) throws Exception {
+        int publishers = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int waveSize = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int latencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int concurrent = args.length > 3 ? Integer.parseInt(args[3]) : JanusCommon.maxConcurrentSubscriptions;
+        int windowMillis = args.length > 4 ? Integer.parseInt(args[4]) : JanusCommon.membershipWindowMillis;
+
+        MockJanusServer server = new MockJanusServer(latencyMillis);
+        ScheduledJanusExecutor executor = new ScheduledJanusExecutor("JanusSignalingBenchmark");
+        final CountDownLatch joined = new CountDownLatch(1);
+        final AtomicInteger subscribed = new AtomicInteger();
+        final AtomicInteger left = new AtomicInteger();
+        final JanusSignalingEngine[] engine = new JanusSignalingEngine[1];
+
+        engine[0] = new JanusSignalingEngine(executor, server.transport(executor), new JanusRTCEvents2() {
+            @Override
+            public void onPublisherJoined(long handleId) {
+                engine[0].publisherCreateOffer(handleId, new SessionDescription(SessionDescription.Type.OFFER, SDP));
+            }
+
+            @Override
+            public void onRemoteJsep(long handleId, JSONObject jsep) {
+                if ("offer".equals(jsep.optString("type"))) {
+                    engine[0].subscriberCreateAnswer(handleId,
+                            new SessionDescription(SessionDescription.Type.ANSWER, SDP));
+                    subscribed.incrementAndGet();
+                } else {
+                    joined.countDown();
+                }
+            }
+
+            @Override
+            public void onLeft(long handleId) {
+                left.incrementAndGet();
+            }
+
+            @Override
+            public void onNotification(String notificationMessage) {
+            }
+
+            @Override
+            public void onChannelClose() {
+            }
+
+            @Override
+            public void onChannelError(String errorMessage) {
+                System.err.println("Channel error: " + errorMessage);
+            }
+        });
+        engine[0].setSubscriptionLimits(concurrent, concurrent);
+        engine[0].setMembershipWindow(windowMillis);
+        engine[0].connectToServer(new JanusCommon.JanusConnectionParameters("mock://", ROOM_ID, "bench"));
+        if (!joined.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("Publisher join timed out");
+
+        long threadId = engineThreadId(executor);
+        long allocatedBefore = allocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        long[] feedIds = new long[publishers];
+        for (int offset = 0; offset < publishers; offset += waveSize) {
+            int count = Math.min(waveSize, publishers - offset);
+            System.arraycopy(server.addPublishers(ROOM_ID, count), 0, feedIds, offset, count);
+            Thread.sleep(latencyMillis * 2L);
+        }
+        waitFor(() -> engine[0].getSubscriptionLatency(JanusSubscriptionPipeline.Phase.TOTAL).count() >= publishers);
+        long joinMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (long feedId : feedIds) server.removePublisher(ROOM_ID, feedId);
+        waitFor(() -> left.get() >= publishers);
+        long leaveMillis = (System.nanoTime() - start) / 1000000;
+        long allocated = allocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println(String.format(Locale.US,
+                "%d publishers in waves of %d, %d ms one way, %d concurrent subscriptions, %d ms membership window",
+                publishers, waveSize, latencyMillis, concurrent, windowMillis));
+        System.out.println(String.format(Locale.US, "All subscribed after %d ms, all gone after %d ms more",
+                joinMillis, leaveMillis));
+        System.out.println("Transactions:");
+        for (RequestType type : RequestType.values()) {
+            System.out.println("  " + type + " " + engine[0].getTransactionLatency(type));
+        }
+        System.out.println("Subscriptions:");
+        for (JanusSubscriptionPipeline.Phase phase : JanusSubscriptionPipeline.Phase.values()) {
+            System.out.println("  " + phase + " " + engine[0].getSubscriptionLatency(phase));
+        }
+        System.out.println("Keepalive " + engine[0].getKeepAliveRoundTrip());
+        System.out.println(String.format(Locale.US, "Server: %d requests, %d messages sent",
+                server.requests(), server.events()));
+        System.out.println(String.format(Locale.US, "Engine thread allocated %d KB, %d bytes per publisher",
+                allocated / 1024, allocated / publishers));
+
+        engine[0].disconnectFromServer();
+        server.shutdown();
+        System.exit(0);
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (!condition.met()) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    private static long engineThreadId(JanusExecutor executor) throws InterruptedException {
+        final long[] id = new long[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() -> {
+            id[0] = Thread.currentThread().getId();
+            done.countDown();
+        });
+        done.await();
+        return id[0];
+    }
+
+    // -1 where the JVM cannot tell.
+    private static long allocatedBytes(long threadId) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId);
+        }
+        return -1;
+    }
+}
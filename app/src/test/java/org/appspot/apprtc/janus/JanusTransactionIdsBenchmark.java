@@ -0,0 +1,61 @@
+package org.appspot.apprtc.janus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transaction id generation: JanusUtils.randomString(12), used for every request before,
+ * against JanusTransactionIds, on one thread and on four threads sharing a generator.
+ *
+ * <p>Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JanusTransactionIdsBenchmark {
+    private final JanusTransactionIds transactionIds = new JanusTransactionIds();
+
+    @Benchmark
+    public String randomString() {
+        return JanusUtils.randomString(JanusTransactionIds.LENGTH);
+    }
+
+    @Benchmark
+    public String transactionIds() {
+        return transactionIds.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String randomStringContended() {
+        return JanusUtils.randomString(JanusTransactionIds.LENGTH);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String transactionIdsContended() {
+        return transactionIds.next();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JanusTransactionIdsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,261 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.janus.JanusTransaction2.RequestType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JanusTransactionTable on a fake executor and clock: deadlines on the timing wheel, also
+ * beyond one turn of it, the in-flight and queue bounds, and replay after a pause.
+ */
+public class JanusTransactionTableTest {
+    private static final int TICK_MILLIS = 100;
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final RecordingTransport transport = new RecordingTransport();
+    private final List<String> errors = new ArrayList<>();
+    private long nowNanos = 1000000000L;
+
+    @Test
+    public void transactionWithoutReplyTimesOut() {
+        JanusTransactionTable table = table(300, 10, 10);
+        table.send(transaction("a", RequestType.JOIN), "join");
+
+        advance(2);
+        assertEquals(1, table.inFlightCount());
+        assertTrue(errors.isEmpty());
+        advance(1);
+        assertEquals(0, table.inFlightCount());
+        assertEquals(Arrays.asList("a:" + JanusTransaction2.ERROR_TIMEOUT), errors);
+        assertEquals(1, table.latency(RequestType.JOIN).timeouts());
+        assertNull(table.complete("a"));
+        // Nothing in flight, so the wheel stopped.
+        assertEquals(0, executor.delayed.size());
+    }
+
+    @Test
+    public void deadlinesBeyondOneTurnOfTheWheelWaitForTheirTurn() {
+        // 100 ticks, the wheel has 64 slots: the slot comes round once before the deadline.
+        JanusTransactionTable table = table(100 * TICK_MILLIS, 10, 10);
+        table.send(transaction("a", RequestType.ATTACH), "attach");
+        advance(99);
+        assertTrue(errors.isEmpty());
+        advance(1);
+        assertEquals(Arrays.asList("a:" + JanusTransaction2.ERROR_TIMEOUT), errors);
+    }
+
+    @Test
+    public void stalledWheelExpiresEverythingDue() {
+        JanusTransactionTable table = table(500, 10, 10);
+        table.send(transaction("a", RequestType.JOIN), "join");
+        advance(1);
+        table.send(transaction("b", RequestType.START), "start");
+        // One late tick after 200 missed ones.
+        nowNanos += 200L * TICK_MILLIS * 1000000L;
+        executor.runDelayed();
+        assertEquals(Arrays.asList("a:" + JanusTransaction2.ERROR_TIMEOUT,
+                "b:" + JanusTransaction2.ERROR_TIMEOUT), sorted(errors));
+        assertEquals(0, table.inFlightCount());
+    }
+
+    @Test
+    public void completedTransactionDoesNotTimeOut() {
+        JanusTransactionTable table = table(300, 10, 10);
+        table.send(transaction("a", RequestType.JOIN), "join");
+        advance(1);
+        assertNotNull(table.complete("a"));
+        advance(10);
+        assertTrue(errors.isEmpty());
+        assertEquals(1, table.latency(RequestType.JOIN).count());
+        assertEquals(TICK_MILLIS, table.latency(RequestType.JOIN).maxMillis());
+    }
+
+    @Test
+    public void ackCompletesTricklesOnly() {
+        JanusTransactionTable table = table(300, 10, 10);
+        table.send(transaction("t", RequestType.TRICKLE), "trickle");
+        table.send(transaction("j", RequestType.JOIN), "join");
+        table.ack("t");
+        table.ack("j");
+        assertEquals(1, table.inFlightCount());
+        assertNotNull(table.complete("j"));
+    }
+
+    @Test
+    public void queueBeyondInFlightLimitAndOverloadBeyondItsBound() {
+        JanusTransactionTable table = table(1000, 2, 1);
+        table.send(transaction("a", RequestType.ATTACH), "a");
+        table.send(transaction("b", RequestType.ATTACH), "b");
+        table.send(transaction("c", RequestType.ATTACH), "c");
+        table.send(transaction("d", RequestType.ATTACH), "d");
+        assertEquals(Arrays.asList("a", "b"), transport.sent);
+        assertEquals(2, table.inFlightCount());
+        assertEquals(1, table.queuedCount());
+        assertEquals(Arrays.asList("d:" + JanusTransaction2.ERROR_OVERLOAD), errors);
+
+        table.complete("a");
+        assertEquals(Arrays.asList("a", "b", "c"), transport.sent);
+        assertEquals(0, table.queuedCount());
+        // A later request waits behind the queue, not around it.
+        table.send(transaction("e", RequestType.ATTACH), "e");
+        assertEquals(1, table.queuedCount());
+    }
+
+    @Test
+    public void queuedTransactionIsSentWhenAnotherTimesOut() {
+        JanusTransactionTable table = table(300, 1, 1);
+        table.send(transaction("a", RequestType.JOIN), "a");
+        advance(1);
+        table.send(transaction("b", RequestType.JOIN), "b");
+        advance(2);
+        assertEquals(Arrays.asList("a:" + JanusTransaction2.ERROR_TIMEOUT), errors);
+        assertEquals(Arrays.asList("a", "b"), transport.sent);
+        // b has a full timeout of its own from when it was sent.
+        advance(2);
+        assertEquals(1, table.inFlightCount());
+        advance(1);
+        assertEquals(0, table.inFlightCount());
+    }
+
+    @Test
+    public void pauseReplaysRepeatableRequestsInOrderAndFailsTheOthers() {
+        JanusTransactionTable table = table(1000, 10, 10);
+        table.send(transaction("t1", RequestType.TRICKLE), "t1");
+        advance(1);
+        table.send(transaction("j", RequestType.JOIN), "j");
+        advance(1);
+        table.send(transaction("c", RequestType.CONFIGURE), "c");
+        advance(1);
+        table.send(transaction("n", RequestType.NEGOTIATE), "n");
+        advance(1);
+        table.send(transaction("t2", RequestType.TRICKLE), "t2");
+        transport.sent.clear();
+
+        table.pause();
+        assertEquals(Arrays.asList("j:" + JanusTransaction2.ERROR_DISCONNECTED,
+                "n:" + JanusTransaction2.ERROR_DISCONNECTED), sorted(errors));
+        assertEquals(0, table.inFlightCount());
+        assertEquals(3, table.queuedCount());
+
+        // New requests wait behind the replayed ones, the restoring ones go right away.
+        table.send(transaction("s", RequestType.START), "s");
+        table.sendNow(transaction("claim", RequestType.CLAIM), "claim");
+        assertEquals(Arrays.asList("claim"), transport.sent);
+        table.complete("claim");
+        // The paused table does not time out what it holds.
+        advance(20);
+        assertEquals(2, errors.size());
+
+        table.resume();
+        assertEquals(Arrays.asList("claim", "t1", "c", "t2", "s"), transport.sent);
+        assertEquals(4, table.inFlightCount());
+        assertEquals(0, table.queuedCount());
+    }
+
+    @Test
+    public void clearForgetsEverythingSilently() {
+        JanusTransactionTable table = table(300, 1, 10);
+        table.send(transaction("a", RequestType.JOIN), "a");
+        table.send(transaction("b", RequestType.JOIN), "b");
+        table.clear();
+        assertEquals(0, table.inFlightCount());
+        assertEquals(0, table.queuedCount());
+        assertEquals(0, executor.delayed.size());
+        advance(10);
+        assertTrue(errors.isEmpty());
+    }
+
+    private JanusTransactionTable table(int timeoutMillis, int maxInFlight, int maxQueued) {
+        return new JanusTransactionTable(executor, transport, timeoutMillis, maxInFlight, maxQueued,
+                () -> nowNanos);
+    }
+
+    private JanusTransaction2 transaction(final String id, RequestType type) {
+        JanusTransaction2 janusTransaction = new JanusTransaction2();
+        janusTransaction.transactionId = id;
+        janusTransaction.type = type;
+        janusTransaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long handleId) {
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                errors.add(id + ":" + code);
+            }
+        };
+        return janusTransaction;
+    }
+
+    // Moves the clock on by |ticks| wheel ticks, running the timer at each.
+    private void advance(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            nowNanos += TICK_MILLIS * 1000000L;
+            executor.runDelayed();
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    // Runs tasks right away, delayed ones when the test says their time has come.
+    private static final class ManualExecutor implements JanusExecutor {
+        final List<Runnable> delayed = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void executeDelayed(Runnable task, long delayMillis) {
+            delayed.add(task);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            delayed.remove(task);
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return true;
+        }
+
+        void runDelayed() {
+            List<Runnable> due = new ArrayList<>(delayed);
+            delayed.clear();
+            for (Runnable task : due) task.run();
+        }
+    }
+
+    private static final class RecordingTransport implements JanusTransport {
+        final List<String> sent = new ArrayList<>();
+
+        @Override
+        public void connect(JanusConnectionParameters connectionParameters, Events events) {
+        }
+
+        @Override
+        public void send(String message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
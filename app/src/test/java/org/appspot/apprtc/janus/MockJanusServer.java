@@ -0,0 +1,443 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a Janus server with the videoroom plugin.
+ *
+ * <p>Speaks the subset of the janus-protocol the client uses: create, claim, info, keepalive,
+ * attach, detach, destroy, trickle, and the videoroom join (publisher and subscriber,
+ * multistream streams included), update, configure and start requests, with publishers,
+ * leaving and unpublished events. SDPs are placeholders. Besides clients that connect
+ * through a Connection, rooms can be filled with simulated publishers that join and
+ * leave on command.
+ *
+ * <p>All protocol work runs on one server thread. Every message to and from a client is
+ * delayed by latencyMillis, one way.
+ */
+public class MockJanusServer {
+    private static final String PLUGIN = "janus.plugin.videoroom";
+    private static final int SESSION_TIMEOUT_SECONDS = 60;
+    private static final String OFFER_SDP = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+    // Receives the messages of one client connection.
+    public interface Sink {
+        void deliver(String message);
+    }
+
+    public final class Connection {
+        private final Sink sink;
+        private volatile boolean open = true;
+
+        private Connection(Sink sink) {
+            this.sink = sink;
+        }
+
+        // A message from the client.
+        public void receive(final String message) {
+            if (!open) return;
+            requests.incrementAndGet();
+            executor.schedule(() -> handle(this, message), latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // The client went away, its sessions stay until they are claimed or destroyed.
+        public void close() {
+            open = false;
+        }
+
+        private void send(JSONObject message) {
+            if (!open) return;
+            final String text = message.toString();
+            events.incrementAndGet();
+            executor.schedule(() -> {
+                if (open) sink.deliver(text);
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class Session {
+        final long id;
+        Connection connection;
+        final Map<Long, Handle> handles = new HashMap<>();
+
+        Session(long id, Connection connection) {
+            this.id = id;
+            this.connection = connection;
+        }
+    }
+
+    private static final class Handle {
+        final long id;
+        final Session session;
+        Room room;
+        // Next mid of a multistream subscription.
+        int nextMid;
+        // Set when joined as a publisher.
+        Participant participant;
+
+        Handle(long id, Session session) {
+            this.id = id;
+            this.session = session;
+        }
+    }
+
+    private static final class Participant {
+        final long feedId;
+        final String display;
+        // Null for a simulated publisher.
+        final Handle handle;
+
+        Participant(long feedId, String display, Handle handle) {
+            this.feedId = feedId;
+            this.display = display;
+            this.handle = handle;
+        }
+    }
+
+    private static final class Room {
+        final long id;
+        final Map<Long, Participant> participants = new LinkedHashMap<>();
+
+        Room(long id) {
+            this.id = id;
+        }
+    }
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "MockJanusServer"));
+    private final int latencyMillis;
+    private final Random random = new Random(42);
+    private final Map<Long, Session> sessions = new HashMap<>();
+    private final Map<Long, Handle> handles = new HashMap<>();
+    private final Map<Long, Room> rooms = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    public MockJanusServer(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public Connection connect(Sink sink) {
+        return new Connection(sink);
+    }
+
+    // An in-process transport for a signaling engine running on |clientExecutor|.
+    public JanusTransport transport(final JanusExecutor clientExecutor) {
+        return new JanusTransport() {
+            private Connection connection;
+
+            @Override
+            public void connect(JanusCommon.JanusConnectionParameters connectionParameters, final Events events) {
+                if (connection != null) connection.close();
+                connection = MockJanusServer.this.connect(
+                        message -> clientExecutor.execute(() -> events.onTransportMessage(message)));
+                clientExecutor.execute(events::onTransportOpen);
+            }
+
+            @Override
+            public void send(String message) {
+                connection.receive(message);
+            }
+
+            @Override
+            public void disconnect() {
+                if (connection != null) connection.close();
+            }
+        };
+    }
+
+    // Simulated publishers join |roomId|; returns their feed ids.
+    public long[] addPublishers(final long roomId, final int count) {
+        final long[] feedIds = new long[count];
+        runOnServer(() -> {
+            Room room = room(roomId);
+            JSONArray joined = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                Participant participant = new Participant(newId(), "bot-" + i, null);
+                room.participants.put(participant.feedId, participant);
+                feedIds[i] = participant.feedId;
+                joined.put(describe(participant));
+            }
+            notifyRoom(room, null, put(put(new JSONObject(), "videoroom", "event"), "publishers", joined));
+        });
+        return feedIds;
+    }
+
+    // A simulated publisher leaves |roomId|.
+    public void removePublisher(final long roomId, final long feedId) {
+        runOnServer(() -> {
+            Room room = rooms.get(roomId);
+            if (room != null && room.participants.remove(feedId) != null) {
+                notifyRoom(room, null, put(put(new JSONObject(), "videoroom", "event"), "leaving", feedId));
+            }
+        });
+    }
+
+    // Client messages received, and messages sent to clients.
+    public long requests() {
+        return requests.get();
+    }
+
+    public long events() {
+        return events.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // ----------------------------------------------------------------------------
+    // Protocol, on the server thread
+    // ----------------------------------------------------------------------------
+    private void handle(Connection connection, String text) {
+        try {
+            JSONObject request = new JSONObject(text);
+            String janus = request.getString("janus");
+            String transaction = request.optString("transaction");
+            Session session = sessions.get(request.optLong("session_id"));
+            Handle handle = handles.get(request.optLong("handle_id"));
+
+            switch (janus) {
+                case "create": {
+                    Session created = new Session(newId(), connection);
+                    sessions.put(created.id, created);
+                    connection.send(success(transaction, put(new JSONObject(), "id", created.id)));
+                    return;
+                }
+                case "info":
+                    connection.send(put(put(put(new JSONObject(), "janus", "server_info"),
+                            "transaction", transaction), "session-timeout", SESSION_TIMEOUT_SECONDS));
+                    return;
+                default:
+                    break;
+            }
+            if (session == null) {
+                connection.send(error(transaction, 458, "No such session"));
+                return;
+            }
+            switch (janus) {
+                case "claim":
+                    session.connection = connection;
+                    connection.send(put(success(transaction, null), "session_id", session.id));
+                    return;
+                case "keepalive":
+                    connection.send(ack(transaction, session));
+                    return;
+                case "attach": {
+                    Handle attached = new Handle(newId(), session);
+                    session.handles.put(attached.id, attached);
+                    handles.put(attached.id, attached);
+                    connection.send(put(success(transaction, put(new JSONObject(), "id", attached.id)),
+                            "session_id", session.id));
+                    return;
+                }
+                case "destroy":
+                    for (Handle owned : new ArrayList<>(session.handles.values())) detach(owned);
+                    sessions.remove(session.id);
+                    connection.send(success(transaction, null));
+                    return;
+                default:
+                    break;
+            }
+            if (handle == null || handle.session != session) {
+                connection.send(error(transaction, 459, "No such handle"));
+                return;
+            }
+            switch (janus) {
+                case "detach":
+                    detach(handle);
+                    connection.send(success(transaction, null));
+                    return;
+                case "hangup":
+                    connection.send(success(transaction, null));
+                    return;
+                case "trickle":
+                    connection.send(ack(transaction, session));
+                    return;
+                case "message":
+                    connection.send(ack(transaction, session));
+                    message(handle, transaction, request.getJSONObject("body"), request.optJSONObject("jsep"));
+                    return;
+                default:
+                    connection.send(error(transaction, 453, "Unknown request '" + janus + "'"));
+            }
+        } catch (JSONException e) {
+            connection.send(error(null, 454, "Invalid JSON: " + e.getMessage()));
+        }
+    }
+
+    private void message(Handle handle, String transaction, JSONObject body, JSONObject jsep) throws JSONException {
+        String request = body.getString("request");
+        JSONObject data = new JSONObject();
+        JSONObject answer = null;
+        switch (request) {
+            case "join":
+                handle.room = room(body.getLong("room"));
+                if ("publisher".equals(body.optString("ptype"))) {
+                    Participant participant = new Participant(handle.id, body.optString("display"), handle);
+                    JSONArray others = publishers(handle.room, participant.feedId);
+                    handle.participant = participant;
+                    handle.room.participants.put(participant.feedId, participant);
+                    put(put(put(put(put(data, "videoroom", "joined"), "room", handle.room.id),
+                            "id", participant.feedId), "private_id", newId()), "publishers", others);
+                    JSONArray joined = new JSONArray().put(describe(participant));
+                    notifyRoom(handle.room, handle, put(put(new JSONObject(), "videoroom", "event"), "publishers", joined));
+                } else if (body.has("streams")) {
+                    put(put(put(data, "videoroom", "attached"), "room", handle.room.id),
+                            "streams", streams(handle, body.getJSONArray("streams")));
+                    answer = sdp("offer");
+                } else {
+                    Participant feed = handle.room.participants.get(body.getLong("feed"));
+                    if (feed == null) {
+                        put(put(put(data, "videoroom", "event"), "error_code", 428), "error", "No such feed");
+                    } else {
+                        put(put(put(put(data, "videoroom", "attached"), "room", handle.room.id),
+                                "id", feed.feedId), "display", feed.display);
+                        answer = sdp("offer");
+                    }
+                }
+                break;
+            case "update":
+                put(put(data, "videoroom", "updated"), "streams",
+                        streams(handle, body.optJSONArray("subscribe")));
+                answer = sdp("offer");
+                break;
+            case "configure":
+                put(put(data, "videoroom", "event"), "configured", "ok");
+                if (jsep != null) answer = sdp("answer");
+                break;
+            case "start":
+                put(put(data, "videoroom", "event"), "started", "ok");
+                break;
+            case "leave":
+            case "unpublish":
+                leave(handle, request.equals("leave") ? "leaving" : "unpublished");
+                put(put(data, "videoroom", "event"), request.equals("leave") ? "leaving" : "unpublished", "ok");
+                break;
+            default:
+                put(put(put(data, "videoroom", "event"), "error_code", 423), "error", "Unknown request");
+                break;
+        }
+        JSONObject event = event(handle, data);
+        put(event, "transaction", transaction);
+        if (answer != null) put(event, "jsep", answer);
+        handle.session.connection.send(event);
+    }
+
+    private void detach(Handle handle) {
+        leave(handle, "leaving");
+        handle.session.handles.remove(handle.id);
+        handles.remove(handle.id);
+    }
+
+    private void leave(Handle handle, String field) {
+        Participant participant = handle.participant;
+        if (participant == null) return;
+        handle.participant = null;
+        handle.room.participants.remove(participant.feedId);
+        notifyRoom(handle.room, handle, put(put(new JSONObject(), "videoroom", "event"), field, participant.feedId));
+    }
+
+    // Sends |data| to every publisher handle in |room| but |except|.
+    private void notifyRoom(Room room, Handle except, JSONObject data) {
+        for (Participant participant : room.participants.values()) {
+            Handle handle = participant.handle;
+            if (handle != null && handle != except) handle.session.connection.send(event(handle, data));
+        }
+    }
+
+    private JSONArray publishers(Room room, long exceptFeedId) {
+        JSONArray publishers = new JSONArray();
+        for (Participant participant : room.participants.values()) {
+            if (participant.feedId != exceptFeedId) publishers.put(describe(participant));
+        }
+        return publishers;
+    }
+
+    // Stream descriptions for the feeds of a multistream subscribe list.
+    private JSONArray streams(Handle handle, JSONArray subscribe) throws JSONException {
+        JSONArray streams = new JSONArray();
+        if (subscribe == null) return streams;
+        for (int i = 0; i < subscribe.length(); i++) {
+            long feedId = subscribe.getJSONObject(i).getLong("feed");
+            if (!handle.room.participants.containsKey(feedId)) continue;
+            JSONObject stream = new JSONObject();
+            put(put(put(stream, "type", "video"), "mid", Integer.toString(handle.nextMid++)), "feed_id", feedId);
+            streams.put(stream);
+        }
+        return streams;
+    }
+
+    private Room room(long roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            room = new Room(roomId);
+            rooms.put(roomId, room);
+        }
+        return room;
+    }
+
+    private void runOnServer(Runnable runnable) {
+        try {
+            executor.submit(runnable).get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Janus ids fit in a double, like the ones the server hands out.
+    private long newId() {
+        return 1 + (random.nextLong() >>> 11);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Message builders
+    // ----------------------------------------------------------------------------
+    private static JSONObject describe(Participant participant) {
+        return put(put(new JSONObject(), "id", participant.feedId), "display", participant.display);
+    }
+
+    private static JSONObject event(Handle handle, JSONObject data) {
+        JSONObject pluginData = put(put(new JSONObject(), "plugin", PLUGIN), "data", data);
+        return put(put(put(put(new JSONObject(), "janus", "event"), "session_id", handle.session.id),
+                "sender", handle.id), "plugindata", pluginData);
+    }
+
+    private static JSONObject success(String transaction, JSONObject data) {
+        JSONObject message = put(put(new JSONObject(), "janus", "success"), "transaction", transaction);
+        return data == null ? message : put(message, "data", data);
+    }
+
+    private static JSONObject ack(String transaction, Session session) {
+        return put(put(put(new JSONObject(), "janus", "ack"), "session_id", session.id), "transaction", transaction);
+    }
+
+    private static JSONObject error(String transaction, int code, String reason) {
+        JSONObject error = put(put(new JSONObject(), "code", code), "reason", reason);
+        return put(put(put(new JSONObject(), "janus", "error"), "transaction", transaction), "error", error);
+    }
+
+    private static JSONObject sdp(String type) {
+        return put(put(new JSONObject(), "type", type), "sdp", OFFER_SDP);
+    }
+
+    private static JSONObject put(JSONObject json, String key, Object value) {
+        try {
+            return json.put(key, value);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.appspot.apprtc.janus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * WebSocket front end of MockJanusServer, for pointing a device or emulator at it.
+ *
+ * <p>A minimal RFC 6455 server: the janus-protocol subprotocol, unfragmented text frames,
+ * ping and close. One thread per connection.
+ */
+public class MockJanusWebSocketServer {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String PROTOCOL = "janus-protocol";
+
+    private final MockJanusServer server;
+    private final ServerSocket serverSocket;
+
+    public MockJanusWebSocketServer(MockJanusServer server, int port) throws IOException {
+        this.server = server;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"));
+        Thread acceptor = new Thread(this::accept, "MockJanusWebSocket");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(socket), "MockJanusWebSocket-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        MockJanusServer.Connection connection = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            if (!handshake(in, out)) return;
+
+            connection = server.connect(message -> {
+                try {
+                    writeFrame(out, 0x1, message.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                }
+            });
+            while (true) {
+                int first = in.readUnsignedByte();
+                int opcode = first & 0x0f;
+                byte[] payload = readPayload(in);
+                if (opcode == 0x1) {
+                    connection.receive(new String(payload, StandardCharsets.UTF_8));
+                } else if (opcode == 0x9) {
+                    writeFrame(out, 0xA, payload);
+                } else if (opcode == 0x8) {
+                    writeFrame(out, 0x8, payload);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away.
+        } finally {
+            if (connection != null) connection.close();
+            closeQuietly(socket);
+        }
+    }
+
+    private static boolean handshake(DataInputStream in, OutputStream out) throws IOException {
+        String key = null;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) return false;
+
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(
+                    sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n"
+                + "Sec-WebSocket-Protocol: " + PROTOCOL + "\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        return true;
+    }
+
+    // A header line, read byte by byte so nothing of the first frame is consumed.
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.readUnsignedByte()) != '\n') {
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    // Client frames are always masked.
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        int second = in.readUnsignedByte();
+        boolean masked = (second & 0x80) != 0;
+        long length = second & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        if (length > Integer.MAX_VALUE) throw new EOFException("Frame too large");
+        byte[] mask = new byte[4];
+        if (masked) in.readFully(mask);
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        if (masked) {
+            for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+        }
+        return payload;
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 10);
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(payload.length);
+        } else if (payload.length < 65536) {
+            frame.write(126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) frame.write((int) ((long) payload.length >>> shift));
+        }
+        frame.write(payload);
+        synchronized (out) {
+            frame.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.appspot.apprtc.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LaneExecutor: order within a lane, the hand-off of the pool thread between lanes after a
+ * batch, and closed lanes refusing later work while finishing what they hold.
+ */
+public class LaneExecutorTest {
+    private static final int BATCH = 16;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private LaneExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) executor.shutdown();
+    }
+
+    @Test
+    public void tasksOfOneLaneRunInSubmissionOrder() throws InterruptedException {
+        executor = new LaneExecutor("test", 3);
+        final int lanes = 8;
+        final int tasks = 2000;
+        final List<List<Integer>> runs = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(lanes * tasks);
+        for (int key = 0; key < lanes; key++) runs.add(new ArrayList<>());
+        for (int i = 0; i < tasks; i++) {
+            for (int key = 0; key < lanes; key++) {
+                final List<Integer> run = runs.get(key);
+                final int index = i;
+                // Only the lane touches its list, one task at a time.
+                executor.lane(key).execute(() -> {
+                    run.add(index);
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int key = 0; key < lanes; key++) {
+            List<Integer> run = runs.get(key);
+            assertEquals(tasks, run.size());
+            for (int i = 0; i < tasks; i++) assertEquals(i, (int) run.get(i));
+        }
+    }
+
+    @Test
+    public void busyLaneHandsThePoolThreadOnAfterABatch() throws InterruptedException {
+        executor = new LaneExecutor("test", 1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3 * BATCH + 1);
+        LaneExecutor.Lane busy = executor.lane(1);
+        // Everything is queued while the first task holds the only pool thread.
+        busy.execute(() -> {
+            await(gate);
+            order.add("busy");
+            done.countDown();
+        });
+        for (int i = 1; i < 3 * BATCH; i++) {
+            busy.execute(() -> {
+                order.add("busy");
+                done.countDown();
+            });
+        }
+        executor.lane(2).execute(() -> {
+            order.add("other");
+            done.countDown();
+        });
+        gate.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(BATCH, order.indexOf("other"));
+        assertEquals(3 * BATCH + 1, order.size());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopItsLane() throws InterruptedException {
+        executor = new LaneExecutor("test", 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        LaneExecutor.Lane lane = executor.lane(1);
+        lane.execute(() -> {
+            throw new IllegalStateException("task failure");
+        });
+        lane.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closedLaneFinishesQueuedTasksAndDropsLaterOnes() throws InterruptedException {
+        executor = new LaneExecutor("test", 2);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(2);
+        LaneExecutor.Lane lane = executor.lane(7);
+        lane.execute(() -> {
+            await(gate);
+            queued.countDown();
+        });
+        lane.execute(queued::countDown);
+        executor.close(7);
+        assertTrue(lane.isClosed());
+        assertFalse(lane.submit(() -> {
+            throw new AssertionError("ran on a closed lane");
+        }));
+        gate.countDown();
+        assertTrue(queued.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Late work for the key finds the closed lane rather than a new one.
+        assertSame(lane, executor.lane(7));
+        assertFalse(executor.lanes().contains(lane));
+        assertEquals(2, lane.executed());
+    }
+
+    @Test
+    public void laneClosedByItsOwnQueuedTaskRefusesWorkQueuedBehindTheClose()
+            throws InterruptedException {
+        // dispose(handleId) closes the lane from a task on it; closeInternal() then queues its own
+        // task there and waits for it, which only works if it learns that the task was dropped.
+        executor = new LaneExecutor("test", 2);
+        final CountDownLatch closed = new CountDownLatch(1);
+        LaneExecutor.Lane lane = executor.lane(3);
+        lane.execute(() -> {
+            executor.close(3);
+            closed.countDown();
+        });
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final CountDownLatch disposed = new CountDownLatch(1);
+        if (!executor.lane(3).submit(disposed::countDown)) disposed.countDown();
+        assertTrue(disposed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void onlyTheMostRecentlyClosedLanesAreRemembered() {
+        executor = new LaneExecutor("test", 1);
+        LaneExecutor.Lane first = executor.lane(1);
+        for (long key = 1; key <= 300; key++) executor.close(key);
+        // The oldest closed lanes are forgotten, a later lane for their key is a new one.
+        LaneExecutor.Lane reopened = executor.lane(1);
+        assertNotSame(first, reopened);
+        assertFalse(reopened.isClosed());
+        assertTrue(executor.lane(300).isClosed());
+        assertEquals(1, executor.lanes().size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.appspot.apprtc.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LongHashMap against HashMap under random puts and removes: key 0, keys sharing a home
+ * slot, probe chains wrapping around the end of the table, and growth.
+ */
+public class LongHashMapTest {
+    @Test
+    public void randomOperationsOnFewKeysMatchHashMap() {
+        // Few distinct keys around 0, so chains are long and removes hit present keys.
+        Random random = new Random(1);
+        check(random, 20000, () -> random.nextInt(41) - 20L);
+    }
+
+    @Test
+    public void randomOperationsOnWideKeysMatchHashMap() {
+        Random random = new Random(2);
+        List<Long> pool = new ArrayList<>();
+        for (int i = 0; i < 300; i++) pool.add(random.nextLong());
+        pool.add(0L);
+        pool.add(Long.MIN_VALUE);
+        pool.add(Long.MAX_VALUE);
+        check(random, 50000, () -> pool.get(random.nextInt(pool.size())));
+    }
+
+    @Test
+    public void removalShiftsBackChainsWrappingAroundTheTable() {
+        // Keys whose home is the last slot of a 16 slot table probe on into slots 0, 1, ...
+        List<Long> last = keysWithHome(15, 16, 4);
+        List<Long> first = keysWithHome(0, 16, 2);
+        for (int round = 0; round < last.size(); round++) {
+            LongHashMap<Long> map = new LongHashMap<>(8);
+            Map<Long, Long> expected = new HashMap<>();
+            for (long key : last) put(map, expected, key);
+            for (long key : first) put(map, expected, key);
+            // Remove each of the wrapping keys in turn, the others must stay reachable.
+            remove(map, expected, last.get(round));
+            assertSame(map, expected);
+            for (long key : first) remove(map, expected, key);
+            assertSame(map, expected);
+        }
+    }
+
+    @Test
+    public void zeroKeyIsAnEntryLikeAnyOther() {
+        LongHashMap<String> map = new LongHashMap<>();
+        assertFalse(map.containsKey(0));
+        assertNull(map.put(0, null));
+        assertTrue(map.containsKey(0));
+        assertEquals(1, map.size());
+        assertNull(map.put(0, "zero"));
+        assertEquals("zero", map.put(0, "again"));
+        assertEquals(1, map.size());
+        assertEquals("again", map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(0, map.size());
+        assertNull(map.remove(0));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void growKeepsEveryEntry() {
+        LongHashMap<Long> map = new LongHashMap<>(1);
+        Map<Long, Long> expected = new HashMap<>();
+        for (long key = -1000; key <= 1000; key += 3) put(map, expected, key * 0x10000L);
+        assertSame(map, expected);
+        map.clear();
+        expected.clear();
+        assertSame(map, expected);
+    }
+
+    private interface KeySource {
+        long next();
+    }
+
+    private static void check(Random random, int operations, KeySource keys) {
+        LongHashMap<Long> map = new LongHashMap<>(2);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < operations; i++) {
+            long key = keys.next();
+            int op = random.nextInt(10);
+            if (op < 5) {
+                put(map, expected, key);
+            } else if (op < 9) {
+                remove(map, expected, key);
+            } else {
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+                assertEquals(expected.get(key), map.get(key));
+            }
+            if (i % 97 == 0) assertSame(map, expected);
+        }
+        assertSame(map, expected);
+    }
+
+    private static void put(LongHashMap<Long> map, Map<Long, Long> expected, long key) {
+        Long value = key * 31 + expected.size();
+        assertEquals(expected.put(key, value), map.put(key, value));
+        assertEquals(expected.size(), map.size());
+    }
+
+    private static void remove(LongHashMap<Long> map, Map<Long, Long> expected, long key) {
+        assertEquals(expected.remove(key), map.remove(key));
+        assertEquals(expected.size(), map.size());
+    }
+
+    // Same entries, through every way of reading the map.
+    private static void assertSame(LongHashMap<Long> map, Map<Long, Long> expected) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.isEmpty(), map.isEmpty());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<Long, Long> visited = new HashMap<>();
+        map.forEach((key, value) -> assertNull(visited.put(key, value)));
+        assertEquals(expected, visited);
+        List<Long> values = map.values();
+        assertEquals(expected.size(), values.size());
+        assertTrue(values.containsAll(expected.values()));
+    }
+
+    // |count| non-zero keys hashed to slot |home| of a table of |capacity| slots, with the
+    // hash of LongHashMap.
+    private static List<Long> keysWithHome(int home, int capacity, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            if (((int) (h ^ (h >>> 32)) & (capacity - 1)) == home) keys.add(key);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.view.Choreographer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One render thread and EGL context for many EglRenderers.
+ *
+ * <p>An EglRenderer initialized with init(EglRenderEngine) does not start a thread or create a
+ * context of its own. Its window surface is created on the context of the engine, and it draws
+ * with the GlRectDrawer and VideoFrameDrawer of the engine. Incoming frames only mark the renderer
+ * dirty; on the next vsync the engine draws the latest frame of every dirty renderer and swaps
+ * each of their surfaces once. The number of threads and contexts therefore stays at one however
+ * many renderers are attached, and the renderers no longer contend with each other on
+ * EglBase.lock.
+ *
+ * <p>Renderers must be released before the engine. Requires EGL 1.4.
+ */
+public class EglRenderEngine {
+  private static final String TAG = "EglRenderEngine";
+  private static final long LOG_INTERVAL_SEC = 4;
+
+  // A surface drawn by the engine: an EglRenderer, or a VideoGridRenderer.
+  interface Target {
+    // Draws what changed since the last call; returns true if the surface was swapped.
+    boolean drawOnVsync();
+  }
+
+  private final String name;
+  private final Handler handler;
+  // Accessed only on the render thread.
+  private final EglBase14Impl eglBase;
+  private final RendererCommon.GlDrawer drawer = new GlRectDrawer();
+  private final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+  private final ArrayList<Target> targets = new ArrayList<>();
+  @Nullable private Choreographer choreographer;
+  private Target[] drawing = new Target[0];
+
+  // Targets with a frame to draw at the next vsync. Synchronized on |dirtyLock|.
+  private final Object dirtyLock = new Object();
+  private final ArrayList<Target> dirty = new ArrayList<>();
+  private boolean frameRequested;
+  private boolean released;
+
+  // Synchronized on |statisticsLock|.
+  private final Object statisticsLock = new Object();
+  private int vsyncs;
+  private int swaps;
+  private long drawTimeNs;
+
+  private final Choreographer.FrameCallback frameCallback = this::drawOnVsync;
+  private final Runnable postFrameCallback = new Runnable() {
+    @Override
+    public void run() {
+      if (choreographer != null) {
+        choreographer.postFrameCallback(frameCallback);
+      }
+    }
+  };
+  private final Runnable logStatisticsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      logStatistics();
+      handler.postDelayed(this, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  };
+
+  /**
+   * Starts the render thread and creates its context, sharing resources with |sharedContext|.
+   */
+  public EglRenderEngine(String name, @Nullable EglBase.Context sharedContext) {
+    if (sharedContext != null && !(sharedContext instanceof EglBase14.Context)) {
+      throw new IllegalArgumentException("EglRenderEngine requires an EGL 1.4 context");
+    }
+    this.name = name;
+    final HandlerThread renderThread = new HandlerThread(name + "EglRenderEngine");
+    renderThread.start();
+    handler = new Handler(renderThread.getLooper());
+    eglBase = ThreadUtils.invokeAtFrontUninterruptibly(handler, () -> {
+      EglBase14Impl base = new EglBase14Impl(sharedContext == null
+              ? null
+              : ((EglBase14.Context) sharedContext).getRawContext(),
+          EglBase.CONFIG_PLAIN);
+      base.createDummyPbufferSurface();
+      base.makeCurrent();
+      choreographer = Choreographer.getInstance();
+      return base;
+    });
+    handler.postDelayed(logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    Logging.d(TAG, name + "Started");
+  }
+
+  /**
+   * Stops the render thread and releases the context. Blocks until done.
+   */
+  public void release() {
+    synchronized (dirtyLock) {
+      if (released) {
+        return;
+      }
+      released = true;
+      dirty.clear();
+    }
+    final CountDownLatch barrier = new CountDownLatch(1);
+    handler.removeCallbacks(logStatisticsRunnable);
+    handler.postAtFrontOfQueue(() -> {
+      if (!targets.isEmpty()) {
+        Logging.w(TAG, name + targets.size() + " renderers not released");
+      }
+      if (choreographer != null) {
+        choreographer.removeFrameCallback(frameCallback);
+        choreographer = null;
+      }
+      eglBase.makeCurrent();
+      drawer.release();
+      frameDrawer.release();
+      eglBase.release();
+      barrier.countDown();
+      Looper.myLooper().quit();
+    });
+    ThreadUtils.awaitUninterruptibly(barrier);
+    Logging.d(TAG, name + "Released");
+  }
+
+  /** Number of renderers attached. */
+  public int getRendererCount() {
+    return ThreadUtils.invokeAtFrontUninterruptibly(handler, targets::size);
+  }
+
+  // ----------------------------------------------------------------------------
+  // Used by the renderers
+  // ----------------------------------------------------------------------------
+  Handler getHandler() {
+    return handler;
+  }
+
+  RendererCommon.GlDrawer getDrawer() {
+    return drawer;
+  }
+
+  VideoFrameDrawer getFrameDrawer() {
+    return frameDrawer;
+  }
+
+  // A new EglBase with no surface yet on the context of the engine. Render thread only.
+  EglBase createSurfaceEglBase(Target target) {
+    targets.add(target);
+    return new EglBase14Impl(eglBase);
+  }
+
+  // Render thread only.
+  void detach(Target target) {
+    targets.remove(target);
+    synchronized (dirtyLock) {
+      dirty.remove(target);
+    }
+  }
+
+  // Makes the context current without a window surface, to release GL resources. Render thread
+  // only.
+  void makeCurrent() {
+    eglBase.makeCurrent();
+  }
+
+  // Draws |target| at the next vsync. Any thread.
+  void requestRender(Target target) {
+    synchronized (dirtyLock) {
+      if (released) {
+        return;
+      }
+      if (!dirty.contains(target)) {
+        dirty.add(target);
+      }
+      if (frameRequested) {
+        return;
+      }
+      frameRequested = true;
+    }
+    handler.post(postFrameCallback);
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  private void drawOnVsync(long frameTimeNanos) {
+    final int count;
+    synchronized (dirtyLock) {
+      frameRequested = false;
+      count = dirty.size();
+      if (drawing.length < count) {
+        drawing = new Target[Math.max(count, drawing.length * 2)];
+      }
+      dirty.toArray(drawing);
+      dirty.clear();
+    }
+    final long startTimeNs = System.nanoTime();
+    int swapped = 0;
+    for (int i = 0; i < count; i++) {
+      if (drawing[i].drawOnVsync()) {
+        swapped++;
+      }
+      drawing[i] = null;
+    }
+    synchronized (statisticsLock) {
+      vsyncs++;
+      swaps += swapped;
+      drawTimeNs += System.nanoTime() - startTimeNs;
+    }
+  }
+
+  private void logStatistics() {
+    synchronized (statisticsLock) {
+      Logging.d(TAG, name + "Renderers: " + targets.size() + "."
+          + " Vsyncs drawn: " + vsyncs + "."
+          + " Swaps: " + swaps + "."
+          + " Average draw time per vsync: "
+          + (vsyncs <= 0 ? "NA" : TimeUnit.NANOSECONDS.toMicros(drawTimeNs / vsyncs) + " us")
+          + ".");
+      vsyncs = 0;
+      swaps = 0;
+      drawTimeNs = 0;
+    }
+  }
+}
@@ -37,6 +37,29 @@ public class EglRenderer implements VideoSink {
 
   public interface FrameListener { void onFrame(Bitmap frame); }
 
+  /**
+   * Statistics of one logging interval of LOG_INTERVAL_SEC.
+   */
+  public static class RenderStats {
+    public final long durationMs;
+    public final int framesReceived;
+    public final int framesDropped;
+    public final int framesRendered;
+    // Averages over the rendered frames, or 0 if none were rendered.
+    public final long averageRenderTimeUs;
+    public final long averageSwapBufferTimeUs;
+
+    public RenderStats(long durationMs, int framesReceived, int framesDropped, int framesRendered,
+        long averageRenderTimeUs, long averageSwapBufferTimeUs) {
+      this.durationMs = durationMs;
+      this.framesReceived = framesReceived;
+      this.framesDropped = framesDropped;
+      this.framesRendered = framesRendered;
+      this.averageRenderTimeUs = averageRenderTimeUs;
+      this.averageSwapBufferTimeUs = averageSwapBufferTimeUs;
+    }
+  }
+
   private static class FrameListenerAndParams {
     public final FrameListener listener;
     public final float scale;
@@ -123,8 +146,16 @@ public class EglRenderer implements VideoSink {
   // EGL and GL resources for drawing YUV/OES textures. After initilization, these are only accessed
   // from the render thread.
   @Nullable private EglBase eglBase;
-  private final VideoFrameDrawer frameDrawer;
+  private final VideoFrameDrawer ownFrameDrawer;
+  private VideoFrameDrawer frameDrawer;
   @Nullable private RendererCommon.GlDrawer drawer;
+  // Set when initialized on an EglRenderEngine, whose thread, context and drawers are used instead
+  // of our own. Synchronized on |handlerLock|.
+  @Nullable private EglRenderEngine engine;
+  // Whether |eglBase| shares its context with other surfaces and must be made current before
+  // drawing. Accessed only on the render thread.
+  private boolean onSharedContext;
+  private final EglRenderEngine.Target engineTarget = this::renderFrameOnRenderThread;
   private boolean usePresentationTimeStamp;
   private final Matrix drawMatrix = new Matrix();
 
@@ -155,6 +186,8 @@ public class EglRenderer implements VideoSink {
   private long renderTimeNs;
   // Time in ns spent by the render thread in the swapBuffers() function.
   private long renderSwapBufferTimeNs;
+  // Statistics of the last complete interval, or null before the first one.
+  @Nullable private RenderStats lastRenderStats;
 
   // Used for bitmap capturing.
   private final GlTextureFrameBuffer bitmapTextureFramebuffer =
@@ -186,6 +219,7 @@ public class EglRenderer implements VideoSink {
 
   public EglRenderer(String name, VideoFrameDrawer videoFrameDrawer) {
     this.name = name;
+    this.ownFrameDrawer = videoFrameDrawer;
     this.frameDrawer = videoFrameDrawer;
   }
 
@@ -204,6 +238,8 @@ public class EglRenderer implements VideoSink {
         throw new IllegalStateException(name + "Already initialized");
       }
       logD("Initializing EglRenderer");
+      this.engine = null;
+      this.frameDrawer = ownFrameDrawer;
       this.drawer = drawer;
       this.usePresentationTimeStamp = usePresentationTimeStamp;
 
@@ -232,6 +268,7 @@ public class EglRenderer implements VideoSink {
           logD("EglBase.create shared context");
           eglBase = EglBase.create(sharedContext, configAttributes);
         }
+        onSharedContext = false;
       });
       renderThreadHandler.post(eglSurfaceCreationRunnable);
       final long currentTimeNs = System.nanoTime();
@@ -251,6 +288,35 @@ public class EglRenderer implements VideoSink {
     init(sharedContext, configAttributes, drawer, /* usePresentationTimeStamp= */ false);
   }
 
+  /**
+   * Initialize this class on the render thread and EGL context of |engine|, drawing with its
+   * drawers. Frames are drawn at the next vsync of the engine. It is allowed to call init() to
+   * reinitialize the renderer after a previous init()/release() cycle.
+   */
+  public void init(final EglRenderEngine engine) {
+    synchronized (handlerLock) {
+      if (renderThreadHandler != null) {
+        throw new IllegalStateException(name + "Already initialized");
+      }
+      logD("Initializing EglRenderer on shared engine");
+      this.engine = engine;
+      this.frameDrawer = engine.getFrameDrawer();
+      this.drawer = engine.getDrawer();
+      this.usePresentationTimeStamp = false;
+      renderThreadHandler = engine.getHandler();
+      ThreadUtils.invokeAtFrontUninterruptibly(
+          renderThreadHandler, () -> {
+            eglBase = engine.createSurfaceEglBase(engineTarget);
+            onSharedContext = true;
+          });
+      renderThreadHandler.post(eglSurfaceCreationRunnable);
+      final long currentTimeNs = System.nanoTime();
+      resetStatistics(currentTimeNs);
+      renderThreadHandler.postDelayed(
+          logStatisticsRunnable, TimeUnit.SECONDS.toMillis(LOG_INTERVAL_SEC));
+    }
+  }
+
   public void createEglSurface(Surface surface) {
     createEglSurfaceInternal(surface);
   }
@@ -279,33 +345,14 @@ public class EglRenderer implements VideoSink {
         return;
       }
       renderThreadHandler.removeCallbacks(logStatisticsRunnable);
-      // Release EGL and GL resources on render thread.
-      renderThreadHandler.postAtFrontOfQueue(() -> {
-        // Detach current shader program.
-        GLES20.glUseProgram(/* program= */ 0);
-        if (drawer != null) {
-          drawer.release();
-          drawer = null;
-        }
-        frameDrawer.release();
-        bitmapTextureFramebuffer.release();
-        if (eglBase != null) {
-          logD("eglBase detach and release.");
-          eglBase.detachCurrent();
-          eglBase.release();
-          eglBase = null;
-        }
-        frameListeners.clear();
-        eglCleanupBarrier.countDown();
-      });
-      final Looper renderLooper = renderThreadHandler.getLooper();
-      // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
-      renderThreadHandler.post(() -> {
-        logD("Quitting render thread.");
-        renderLooper.quit();
-      });
+      if (engine != null) {
+        releaseFromEngine(engine, eglCleanupBarrier);
+      } else {
+        releaseRenderThread(eglCleanupBarrier);
+      }
       // Don't accept any more frames or messages to the render thread.
       renderThreadHandler = null;
+      engine = null;
     }
     // Make sure the EGL/GL cleanup posted above is executed.
     ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
@@ -318,6 +365,56 @@ public class EglRenderer implements VideoSink {
     logD("Releasing done.");
   }
 
+  // Releases EGL and GL resources and stops our own render thread. Must be called with
+  // |handlerLock| held.
+  private void releaseRenderThread(final CountDownLatch eglCleanupBarrier) {
+    // Release EGL and GL resources on render thread.
+    renderThreadHandler.postAtFrontOfQueue(() -> {
+      // Detach current shader program.
+      GLES20.glUseProgram(/* program= */ 0);
+      if (drawer != null) {
+        drawer.release();
+        drawer = null;
+      }
+      frameDrawer.release();
+      bitmapTextureFramebuffer.release();
+      if (eglBase != null) {
+        logD("eglBase detach and release.");
+        eglBase.detachCurrent();
+        eglBase.release();
+        eglBase = null;
+      }
+      frameListeners.clear();
+      eglCleanupBarrier.countDown();
+    });
+    final Looper renderLooper = renderThreadHandler.getLooper();
+    // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
+    renderThreadHandler.post(() -> {
+      logD("Quitting render thread.");
+      renderLooper.quit();
+    });
+  }
+
+  // Releases our surface and GL resources; the thread, context and drawers stay with |engine|.
+  // Must be called with |handlerLock| held.
+  private void releaseFromEngine(
+      final EglRenderEngine engine, final CountDownLatch eglCleanupBarrier) {
+    renderThreadHandler.postAtFrontOfQueue(() -> {
+      engine.detach(engineTarget);
+      engine.makeCurrent();
+      bitmapTextureFramebuffer.release();
+      if (eglBase != null) {
+        logD("eglBase release.");
+        eglBase.release();
+        eglBase = null;
+      }
+      onSharedContext = false;
+      drawer = null;
+      frameListeners.clear();
+      eglCleanupBarrier.countDown();
+    });
+  }
+
   /**
    * Reset the statistics logged in logStatistics().
    */
@@ -332,6 +429,16 @@ public class EglRenderer implements VideoSink {
     }
   }
 
+  /**
+   * Statistics of the last logging interval, or null if none has completed yet.
+   */
+  @Nullable
+  public RenderStats getRenderStats() {
+    synchronized (statisticsLock) {
+      return lastRenderStats;
+    }
+  }
+
   public void printStackTrace() {
     synchronized (handlerLock) {
       final Thread renderThread =
@@ -504,7 +611,11 @@ public class EglRenderer implements VideoSink {
         }
         pendingFrame = frame;
         pendingFrame.retain();
-        renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        if (engine != null) {
+          engine.requestRender(engineTarget);
+        } else {
+          renderThreadHandler.post(this ::renderFrameOnRenderThread);
+        }
       }
     }
     if (dropOldFrame) {
@@ -551,6 +662,9 @@ public class EglRenderer implements VideoSink {
   private void clearSurfaceOnRenderThread(float r, float g, float b, float a) {
     if (eglBase != null && eglBase.hasSurface()) {
       logD("clearSurface");
+      if (onSharedContext) {
+        eglBase.makeCurrent();
+      }
       GLES20.glClearColor(r, g, b, a);
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       eglBase.swapBuffers();
@@ -577,14 +691,14 @@ public class EglRenderer implements VideoSink {
   }
 
   /**
-   * Renders and releases |pendingFrame|.
+   * Renders and releases |pendingFrame|. Returns true if the surface was swapped.
    */
-  private void renderFrameOnRenderThread() {
+  private boolean renderFrameOnRenderThread() {
     // Fetch and render |pendingFrame|.
     final VideoFrame frame;
     synchronized (frameLock) {
       if (pendingFrame == null) {
-        return;
+        return false;
       }
       frame = pendingFrame;
       pendingFrame = null;
@@ -592,7 +706,10 @@ public class EglRenderer implements VideoSink {
     if (eglBase == null || !eglBase.hasSurface()) {
       logD("Dropping frame - No surface");
       frame.release();
-      return;
+      return false;
+    }
+    if (onSharedContext) {
+      eglBase.makeCurrent();
     }
     // Check if fps reduction is active.
     final boolean shouldRenderFrame;
@@ -665,6 +782,7 @@ public class EglRenderer implements VideoSink {
 
     notifyCallbacks(frame, shouldRenderFrame);
     frame.release();
+    return shouldRenderFrame;
   }
 
   private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
@@ -722,6 +840,10 @@ public class EglRenderer implements VideoSink {
     return (count <= 0) ? "NA" : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count) + " us";
   }
 
+  private static long averageTimeUs(long sumTimeNs, int count) {
+    return count <= 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sumTimeNs / count);
+  }
+
   private void logStatistics() {
     final DecimalFormat fpsFormat = new DecimalFormat("#.0");
     final long currentTimeNs = System.nanoTime();
@@ -739,6 +861,10 @@ public class EglRenderer implements VideoSink {
           + " Average render time: " + averageTimeAsString(renderTimeNs, framesRendered) + "."
           + " Average swapBuffer time: "
           + averageTimeAsString(renderSwapBufferTimeNs, framesRendered) + ".");
+      lastRenderStats = new RenderStats(TimeUnit.NANOSECONDS.toMillis(elapsedTimeNs),
+          framesReceived, framesDropped, framesRendered,
+          averageTimeUs(renderTimeNs, framesRendered),
+          averageTimeUs(renderSwapBufferTimeNs, framesRendered));
       resetStatistics(currentTimeNs);
     }
   }
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Pool of the native byte buffers behind JavaI420Buffer.allocate(), bucketed by size.
+ *
+ * <p>Every I420 frame produced by JavaI420Buffer.allocate(), cropAndScaleI420(), and the NV12 and
+ * NV21 conversions used to allocate and free a native buffer. A buffer now goes back to the bucket
+ * of its size when the ref count of its frame reaches zero, and the next frame of that size takes
+ * it. Each bucket keeps at most maxBuffersPerSize free buffers and all buckets together at most
+ * maxPooledBytes; the rest are freed. Buckets that have not been used for BUCKET_IDLE_MS are
+ * emptied, so a resolution change does not leave buffers of the old one behind. Call trim() when
+ * the system is low on memory.
+ *
+ * <p>Thread-safe.
+ */
+public class I420BufferPool {
+  private static final String TAG = "I420BufferPool";
+  private static final long BUCKET_IDLE_MS = 3000;
+  // Acquisitions between sweeps for idle buckets.
+  private static final int SWEEP_INTERVAL = 64;
+
+  private static class Bucket {
+    final int size;
+    final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    long lastUsedMs;
+
+    Bucket(int size) {
+      this.size = size;
+    }
+  }
+
+  private static final Object lock = new Object();
+  private static final ArrayList<Bucket> buckets = new ArrayList<>();
+  private static boolean enabled = true;
+  private static int maxBuffersPerSize = 4;
+  private static long maxPooledBytes = 32 * 1024 * 1024;
+  private static long pooledBytes;
+  private static int acquisitionsSinceSweep;
+  private static long hits;
+  private static long misses;
+
+  private I420BufferPool() {}
+
+  /** Disabling the pool frees its buffers; frames allocate and free their own again. */
+  public static void setEnabled(boolean enabled) {
+    synchronized (lock) {
+      I420BufferPool.enabled = enabled;
+    }
+    if (!enabled) {
+      trim();
+    }
+  }
+
+  /** Limits of free buffers kept per size, and of their bytes over all sizes. */
+  public static void setLimits(int maxBuffersPerSize, long maxPooledBytes) {
+    synchronized (lock) {
+      I420BufferPool.maxBuffersPerSize = maxBuffersPerSize;
+      I420BufferPool.maxPooledBytes = maxPooledBytes;
+    }
+  }
+
+  /** Frees every buffer in the pool; buffers of frames in use come back later as usual. */
+  public static void trim() {
+    ArrayList<ByteBuffer> freed = new ArrayList<>();
+    synchronized (lock) {
+      for (Bucket bucket : buckets) {
+        freed.addAll(bucket.free);
+        bucket.free.clear();
+      }
+      buckets.clear();
+      pooledBytes = 0;
+    }
+    for (ByteBuffer buffer : freed) {
+      JniCommon.nativeFreeByteBuffer(buffer);
+    }
+    if (!freed.isEmpty()) {
+      Logging.d(TAG, "Trimmed " + freed.size() + " buffers");
+    }
+  }
+
+  /** Allocations served from the pool. */
+  public static long getHitCount() {
+    synchronized (lock) {
+      return hits;
+    }
+  }
+
+  /** Allocations that needed a new native buffer. */
+  public static long getMissCount() {
+    synchronized (lock) {
+      return misses;
+    }
+  }
+
+  /** Bytes of the free buffers held. */
+  public static long getPooledBytes() {
+    synchronized (lock) {
+      return pooledBytes;
+    }
+  }
+
+  /** A native buffer of |size| bytes, with position 0 and limit |size|. */
+  static ByteBuffer acquire(int size) {
+    ByteBuffer buffer = null;
+    ArrayList<ByteBuffer> idle = null;
+    synchronized (lock) {
+      long nowMs = System.currentTimeMillis();
+      if (enabled) {
+        Bucket bucket = bucket(size);
+        if (bucket == null) {
+          bucket = new Bucket(size);
+          buckets.add(bucket);
+        }
+        bucket.lastUsedMs = nowMs;
+        buffer = bucket.free.pollFirst();
+        if (buffer != null) {
+          pooledBytes -= size;
+        }
+        if (++acquisitionsSinceSweep >= SWEEP_INTERVAL) {
+          acquisitionsSinceSweep = 0;
+          idle = sweep(nowMs);
+        }
+      }
+      if (buffer != null) {
+        hits++;
+      } else {
+        misses++;
+      }
+    }
+    if (idle != null) {
+      for (ByteBuffer idleBuffer : idle) {
+        JniCommon.nativeFreeByteBuffer(idleBuffer);
+      }
+    }
+    if (buffer == null) {
+      return JniCommon.nativeAllocateByteBuffer(size);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /** Takes back a buffer from acquire() once nothing uses it, or frees it. */
+  static void recycle(ByteBuffer buffer) {
+    int size = buffer.capacity();
+    synchronized (lock) {
+      Bucket bucket = enabled ? bucket(size) : null;
+      if (bucket != null && bucket.free.size() < maxBuffersPerSize
+          && pooledBytes + size <= maxPooledBytes) {
+        bucket.free.addFirst(buffer);
+        pooledBytes += size;
+        return;
+      }
+    }
+    JniCommon.nativeFreeByteBuffer(buffer);
+  }
+
+  // Must be called with |lock| held.
+  private static @Nullable Bucket bucket(int size) {
+    for (int i = 0; i < buckets.size(); i++) {
+      if (buckets.get(i).size == size) {
+        return buckets.get(i);
+      }
+    }
+    return null;
+  }
+
+  // Removes the buckets idle for BUCKET_IDLE_MS and returns their buffers to free. Must be called
+  // with |lock| held.
+  private static @Nullable ArrayList<ByteBuffer> sweep(long nowMs) {
+    ArrayList<ByteBuffer> idle = null;
+    for (int i = buckets.size() - 1; i >= 0; i--) {
+      Bucket bucket = buckets.get(i);
+      if (nowMs - bucket.lastUsedMs < BUCKET_IDLE_MS) {
+        continue;
+      }
+      if (idle == null) {
+        idle = new ArrayList<>();
+      }
+      idle.addAll(bucket.free);
+      pooledBytes -= (long) bucket.size * bucket.free.size();
+      buckets.remove(i);
+    }
+    return idle;
+  }
+}
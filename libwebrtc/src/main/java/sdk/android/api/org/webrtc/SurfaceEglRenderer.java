@@ -61,6 +61,21 @@ public class SurfaceEglRenderer extends EglRenderer implements SurfaceHolder.Cal
     super.init(sharedContext, configAttributes, drawer);
   }
 
+  /**
+   * Initialize this class on the render thread and EGL context of |engine|.
+   */
+  public void init(EglRenderEngine engine, RendererCommon.RendererEvents rendererEvents) {
+    ThreadUtils.checkIsOnMainThread();
+    this.rendererEvents = rendererEvents;
+    synchronized (layoutLock) {
+      isFirstFrameRendered = false;
+      rotatedFrameWidth = 0;
+      rotatedFrameHeight = 0;
+      frameRotation = 0;
+    }
+    super.init(engine);
+  }
+
   @Override
   public void init(final EglBase.Context sharedContext, final int[] configAttributes,
       RendererCommon.GlDrawer drawer) {
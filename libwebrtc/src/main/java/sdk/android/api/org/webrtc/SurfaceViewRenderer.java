@@ -14,6 +14,7 @@ import android.content.Context;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Point;
 import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -87,6 +88,19 @@ public class SurfaceViewRenderer extends SurfaceView
     eglRenderer.init(sharedContext, this /* rendererEvents */, configAttributes, drawer);
   }
 
+  /**
+   * Initialize this class on the render thread and EGL context of |engine|, which draws the frames
+   * of all its renderers at vsync. It is allowed to call init() to reinitialize the renderer after
+   * a previous init()/release() cycle.
+   */
+  public void init(EglRenderEngine engine, RendererCommon.RendererEvents rendererEvents) {
+    ThreadUtils.checkIsOnMainThread();
+    this.rendererEvents = rendererEvents;
+    rotatedFrameWidth = 0;
+    rotatedFrameHeight = 0;
+    eglRenderer.init(engine, this /* rendererEvents */);
+  }
+
   /**
    * Block until any pending frame is returned and all GL resources released, even if an interrupt
    * occurs. If an interrupt occurs during release(), the interrupt flag will be set. This function
@@ -128,6 +142,14 @@ public class SurfaceViewRenderer extends SurfaceView
     eglRenderer.removeFrameListener(listener);
   }
 
+  /**
+   * Render statistics of the last logging interval, or null if none has completed yet.
+   */
+  @Nullable
+  public EglRenderer.RenderStats getRenderStats() {
+    return eglRenderer.getRenderStats();
+  }
+
   /**
    * Enables fixed size for the surface. This provides better performance but might be buggy on some
    * devices. By default this is turned off.
@@ -0,0 +1,620 @@
+/*
+ *  Copyright 2019 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.content.Context;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Displays many video streams as tiles of a single SurfaceView.
+ *
+ * <p>Every tile is a VideoSink. The tiles are placed by a Layout, GridLayout by default, and drawn
+ * as textured quads with the drawers of an EglRenderEngine into a composition texture the size of
+ * the surface. At a vsync only the tiles with a new frame are drawn into the composition, which is
+ * then drawn to the surface with one quad and swapped once; tiles without a new frame are not
+ * drawn again, and nothing is swapped when no tile changed. A tile can limit its frame rate with
+ * setMaxFps(); the frames over the limit are dropped before they reach the render thread.
+ *
+ * <p>After a layout change or a resize the composition is cleared, and each tile shows again from
+ * its next frame: tiles do not hold on to their last frame, which could stall a decoder that
+ * renders to a texture.
+ */
+public class VideoGridRenderer extends SurfaceView implements SurfaceHolder.Callback {
+  private static final String TAG = "VideoGridRenderer";
+  // clang-format off
+  private static final float[] IDENTITY_MATRIX = {
+    1, 0, 0, 0,
+    0, 1, 0, 0,
+    0, 0, 1, 0,
+    0, 0, 0, 1
+  };
+  // clang-format on
+
+  /**
+   * Places the visible tiles on the surface.
+   */
+  public interface Layout {
+    /**
+     * Sets |rects[i]| to the area of tile |i| of |count| on a |width|x|height| surface, in pixels
+     * from the top left.
+     */
+    void layout(int count, int width, int height, Rect[] rects);
+  }
+
+  /**
+   * Rows and columns of equal cells, as many columns as make the largest cells for video of
+   * |aspectRatio|. The last row is centered.
+   */
+  public static class GridLayout implements Layout {
+    private final float aspectRatio;
+    private final int spacing;
+
+    public GridLayout(float aspectRatio, int spacing) {
+      this.aspectRatio = aspectRatio;
+      this.spacing = spacing;
+    }
+
+    @Override
+    public void layout(int count, int width, int height, Rect[] rects) {
+      if (count == 0) {
+        return;
+      }
+      int columns = 1;
+      float bestWidth = -1;
+      for (int c = 1; c <= count; c++) {
+        final int r = (count + c - 1) / c;
+        final float cellWidth = (width - spacing * (c - 1)) / (float) c;
+        final float cellHeight = (height - spacing * (r - 1)) / (float) r;
+        // Width of the video fitted in the cell.
+        final float fittedWidth = Math.min(cellWidth, cellHeight * aspectRatio);
+        if (fittedWidth > bestWidth) {
+          bestWidth = fittedWidth;
+          columns = c;
+        }
+      }
+      final int rows = (count + columns - 1) / columns;
+      final int cellWidth = Math.max(1, (width - spacing * (columns - 1)) / columns);
+      final int cellHeight = Math.max(1, (height - spacing * (rows - 1)) / rows);
+      for (int i = 0; i < count; i++) {
+        final int row = i / columns;
+        final int inRow = Math.min(columns, count - row * columns);
+        final int left = (width - inRow * cellWidth - (inRow - 1) * spacing) / 2
+            + (i % columns) * (cellWidth + spacing);
+        final int top = row * (cellHeight + spacing);
+        rects[i].set(left, top, left + cellWidth, top + cellHeight);
+      }
+    }
+  }
+
+  /**
+   * One video stream of the grid. Its frames are cropped to fill its area.
+   */
+  public class Tile implements VideoSink {
+    // Synchronized on |lock|.
+    private final Rect rect = new Rect();
+    private boolean visible = true;
+    private boolean mirror;
+    private long minFramePeriodNs;
+    private long nextFrameTimeNs;
+    @Nullable private VideoFrame pendingFrame;
+    private int framesReceived;
+    private int framesDecimated;
+    private int framesDrawn;
+
+    private Tile() {}
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+      synchronized (lock) {
+        ++framesReceived;
+        if (engine == null || !visible || rect.isEmpty()) {
+          return;
+        }
+        if (minFramePeriodNs > 0) {
+          final long currentTimeNs = System.nanoTime();
+          if (currentTimeNs < nextFrameTimeNs) {
+            ++framesDecimated;
+            return;
+          }
+          // The time for the next frame should always be in the future.
+          nextFrameTimeNs = Math.max(nextFrameTimeNs + minFramePeriodNs, currentTimeNs);
+        }
+        if (pendingFrame != null) {
+          pendingFrame.release();
+        }
+        pendingFrame = frame;
+        pendingFrame.retain();
+        engine.requestRender(engineTarget);
+      }
+    }
+
+    /**
+     * Limit the frame rate of this tile, or use Float.POSITIVE_INFINITY to draw every frame.
+     */
+    public void setMaxFps(float fps) {
+      synchronized (lock) {
+        minFramePeriodNs = fps <= 0 || Float.isInfinite(fps)
+            ? 0
+            : (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        nextFrameTimeNs = System.nanoTime();
+      }
+    }
+
+    /**
+     * Set if the video should be mirrored horizontally.
+     */
+    public void setMirror(boolean mirror) {
+      synchronized (lock) {
+        this.mirror = mirror;
+      }
+    }
+
+    /**
+     * Hidden tiles are left out of the layout and drop their frames.
+     */
+    public void setVisible(boolean visible) {
+      synchronized (lock) {
+        if (this.visible == visible) {
+          return;
+        }
+        this.visible = visible;
+        if (!visible && pendingFrame != null) {
+          pendingFrame.release();
+          pendingFrame = null;
+        }
+        updateLayout();
+      }
+    }
+
+    public boolean isVisible() {
+      synchronized (lock) {
+        return visible;
+      }
+    }
+
+    /** Width of the tile in pixels, 0 if it is not laid out. */
+    public int getWidth() {
+      synchronized (lock) {
+        return rect.width();
+      }
+    }
+
+    /** Height of the tile in pixels, 0 if it is not laid out. */
+    public int getHeight() {
+      synchronized (lock) {
+        return rect.height();
+      }
+    }
+
+    public int getFramesReceived() {
+      synchronized (lock) {
+        return framesReceived;
+      }
+    }
+
+    /** Frames dropped by setMaxFps(). */
+    public int getFramesDecimated() {
+      synchronized (lock) {
+        return framesDecimated;
+      }
+    }
+
+    public int getFramesDrawn() {
+      synchronized (lock) {
+        return framesDrawn;
+      }
+    }
+  }
+
+  // Tiles, layout and surface size, synchronized on |lock|.
+  private final Object lock = new Object();
+  private final ArrayList<Tile> tiles = new ArrayList<>();
+  private Layout layout = new GridLayout(16f / 9f, 0);
+  private Rect[] layoutRects = new Rect[0];
+  private int surfaceWidth;
+  private int surfaceHeight;
+  // Incremented on every layout change, to clear the composition.
+  private int layoutGeneration;
+  @Nullable private EglRenderEngine engine;
+
+  private final EglRenderEngine.Target engineTarget = this::drawOnVsync;
+
+  // Accessed only on the render thread.
+  @Nullable private EglBase eglBase;
+  @Nullable private GlTextureFrameBuffer composition;
+  private int drawnGeneration = -1;
+  private final Matrix drawMatrix = new Matrix();
+  private Tile[] drawTiles = new Tile[0];
+  private VideoFrame[] drawFrames = new VideoFrame[0];
+  private Rect[] drawRects = new Rect[0];
+  private boolean[] drawMirrors = new boolean[0];
+  private float backgroundRed;
+  private float backgroundGreen;
+  private float backgroundBlue;
+
+  /**
+   * Standard View constructor. In order to render something, you must first call init().
+   */
+  public VideoGridRenderer(Context context) {
+    super(context);
+    getHolder().addCallback(this);
+  }
+
+  /**
+   * Standard View constructor. In order to render something, you must first call init().
+   */
+  public VideoGridRenderer(Context context, AttributeSet attrs) {
+    super(context, attrs);
+    getHolder().addCallback(this);
+  }
+
+  /**
+   * Draw on the render thread and EGL context of |engine|. It is allowed to call init() to
+   * reinitialize the renderer after a previous init()/release() cycle.
+   */
+  public void init(final EglRenderEngine engine) {
+    ThreadUtils.checkIsOnMainThread();
+    synchronized (lock) {
+      if (this.engine != null) {
+        throw new IllegalStateException(TAG + " already initialized");
+      }
+      this.engine = engine;
+    }
+    ThreadUtils.invokeAtFrontUninterruptibly(engine.getHandler(), () -> {
+      eglBase = engine.createSurfaceEglBase(engineTarget);
+      drawnGeneration = -1;
+    });
+    if (getHolder().getSurface() != null && getHolder().getSurface().isValid()) {
+      createEglSurface();
+    }
+  }
+
+  /**
+   * Block until the surface and GL resources are released. The tiles stay, and show again after
+   * the next init().
+   */
+  public void release() {
+    final EglRenderEngine releasedEngine;
+    synchronized (lock) {
+      releasedEngine = engine;
+      engine = null;
+      for (Tile tile : tiles) {
+        if (tile.pendingFrame != null) {
+          tile.pendingFrame.release();
+          tile.pendingFrame = null;
+        }
+      }
+    }
+    if (releasedEngine == null) {
+      return;
+    }
+    ThreadUtils.invokeAtFrontUninterruptibly(releasedEngine.getHandler(), () -> {
+      releasedEngine.detach(engineTarget);
+      releasedEngine.makeCurrent();
+      if (composition != null) {
+        composition.release();
+        composition = null;
+      }
+      if (eglBase != null) {
+        eglBase.release();
+        eglBase = null;
+      }
+    });
+  }
+
+  /**
+   * Add a tile at the end of the layout.
+   */
+  public Tile addTile() {
+    synchronized (lock) {
+      final Tile tile = new Tile();
+      tiles.add(tile);
+      updateLayout();
+      return tile;
+    }
+  }
+
+  public void removeTile(Tile tile) {
+    synchronized (lock) {
+      if (!tiles.remove(tile)) {
+        return;
+      }
+      if (tile.pendingFrame != null) {
+        tile.pendingFrame.release();
+        tile.pendingFrame = null;
+      }
+      tile.rect.setEmpty();
+      updateLayout();
+    }
+  }
+
+  public void setLayout(Layout layout) {
+    synchronized (lock) {
+      this.layout = layout;
+      updateLayout();
+    }
+  }
+
+  /**
+   * Color of the surface between and behind the tiles.
+   */
+  public void setBackgroundColor(float r, float g, float b) {
+    final EglRenderEngine engine;
+    synchronized (lock) {
+      engine = this.engine;
+      if (engine == null) {
+        backgroundRed = r;
+        backgroundGreen = g;
+        backgroundBlue = b;
+        return;
+      }
+    }
+    engine.getHandler().post(() -> {
+      backgroundRed = r;
+      backgroundGreen = g;
+      backgroundBlue = b;
+      drawnGeneration = -1;
+    });
+  }
+
+  /**
+   * The visible tile at |x|, |y| in view coordinates, or null.
+   */
+  @Nullable
+  public Tile tileAt(float x, float y) {
+    synchronized (lock) {
+      for (Tile tile : tiles) {
+        if (tile.visible && tile.rect.contains((int) x, (int) y)) {
+          return tile;
+        }
+      }
+      return null;
+    }
+  }
+
+  // SurfaceHolder.Callback interface.
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    ThreadUtils.checkIsOnMainThread();
+    createEglSurface();
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    ThreadUtils.checkIsOnMainThread();
+    Logging.d(TAG, "surfaceChanged: size: " + width + "x" + height);
+    synchronized (lock) {
+      surfaceWidth = width;
+      surfaceHeight = height;
+      updateLayout();
+    }
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    ThreadUtils.checkIsOnMainThread();
+    final EglRenderEngine engine;
+    synchronized (lock) {
+      engine = this.engine;
+    }
+    if (engine == null) {
+      return;
+    }
+    final CountDownLatch completionLatch = new CountDownLatch(1);
+    engine.getHandler().postAtFrontOfQueue(() -> {
+      if (eglBase != null) {
+        eglBase.detachCurrent();
+        eglBase.releaseSurface();
+      }
+      completionLatch.countDown();
+    });
+    ThreadUtils.awaitUninterruptibly(completionLatch);
+  }
+
+  // ----------------------------------------------------------------------------
+  // Internal functions
+  // ----------------------------------------------------------------------------
+  private void createEglSurface() {
+    final EglRenderEngine engine;
+    synchronized (lock) {
+      engine = this.engine;
+    }
+    if (engine == null) {
+      return;
+    }
+    engine.getHandler().post(() -> {
+      if (eglBase != null && !eglBase.hasSurface() && getHolder().getSurface().isValid()) {
+        eglBase.createSurface(getHolder().getSurface());
+        eglBase.makeCurrent();
+        // Necessary for YUV frames with odd width.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        drawnGeneration = -1;
+        synchronized (lock) {
+          engine.requestRender(engineTarget);
+        }
+      }
+    });
+  }
+
+  // Lays out the visible tiles and has the composition cleared. Must be called with |lock| held.
+  private void updateLayout() {
+    int count = 0;
+    for (Tile tile : tiles) {
+      if (tile.visible) {
+        count++;
+      }
+    }
+    if (layoutRects.length < count) {
+      layoutRects = Arrays.copyOf(layoutRects, Math.max(count, layoutRects.length * 2));
+      for (int i = 0; i < layoutRects.length; i++) {
+        if (layoutRects[i] == null) {
+          layoutRects[i] = new Rect();
+        }
+      }
+    }
+    if (surfaceWidth > 0 && surfaceHeight > 0) {
+      layout.layout(count, surfaceWidth, surfaceHeight, layoutRects);
+    }
+    int i = 0;
+    for (Tile tile : tiles) {
+      if (!tile.visible || surfaceWidth <= 0 || surfaceHeight <= 0) {
+        tile.rect.setEmpty();
+      } else {
+        tile.rect.set(layoutRects[i++]);
+      }
+    }
+    layoutGeneration++;
+    if (engine != null) {
+      engine.requestRender(engineTarget);
+    }
+  }
+
+  // Takes the new frames of the tiles to draw. Returns how many; all tiles are taken when the
+  // composition has to be redrawn. Must be called with |lock| held.
+  private int takeFrames(boolean redraw) {
+    if (drawTiles.length < tiles.size()) {
+      final int size = Math.max(tiles.size(), drawTiles.length * 2);
+      drawTiles = new Tile[size];
+      drawFrames = new VideoFrame[size];
+      drawMirrors = new boolean[size];
+      drawRects = Arrays.copyOf(drawRects, size);
+      for (int i = 0; i < size; i++) {
+        if (drawRects[i] == null) {
+          drawRects[i] = new Rect();
+        }
+      }
+    }
+    int count = 0;
+    for (Tile tile : tiles) {
+      if (!tile.visible || tile.rect.isEmpty() || (tile.pendingFrame == null && !redraw)) {
+        continue;
+      }
+      drawTiles[count] = tile;
+      drawFrames[count] = tile.pendingFrame;
+      drawRects[count].set(tile.rect);
+      drawMirrors[count] = tile.mirror;
+      tile.pendingFrame = null;
+      count++;
+    }
+    return count;
+  }
+
+  private boolean drawOnVsync() {
+    final int count;
+    boolean redraw;
+    synchronized (lock) {
+      redraw = drawnGeneration != layoutGeneration;
+      drawnGeneration = layoutGeneration;
+      count = takeFrames(redraw);
+    }
+    try {
+      if (eglBase == null || !eglBase.hasSurface()) {
+        // Draw all tiles again once there is a surface.
+        drawnGeneration = -1;
+        return false;
+      }
+      eglBase.makeCurrent();
+      final int width = eglBase.surfaceWidth();
+      final int height = eglBase.surfaceHeight();
+      if (width <= 0 || height <= 0) {
+        return false;
+      }
+      if (composition == null) {
+        composition = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+      }
+      if (composition.getWidth() != width || composition.getHeight() != height) {
+        composition.setSize(width, height);
+        redraw = true;
+      }
+      return compose(count, width, height, redraw);
+    } finally {
+      for (int i = 0; i < count; i++) {
+        if (drawFrames[i] != null) {
+          drawFrames[i].release();
+          drawFrames[i] = null;
+        }
+        drawTiles[i] = null;
+      }
+    }
+  }
+
+  // Draws the taken frames into the composition, and the composition to the surface.
+  private boolean compose(int count, int width, int height, boolean redraw) {
+    final EglRenderEngine engine;
+    synchronized (lock) {
+      engine = this.engine;
+    }
+    if (engine == null) {
+      return false;
+    }
+    final RendererCommon.GlDrawer drawer = engine.getDrawer();
+    final VideoFrameDrawer frameDrawer = engine.getFrameDrawer();
+
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, composition.getFrameBufferId());
+    if (redraw) {
+      GLES20.glClearColor(backgroundRed, backgroundGreen, backgroundBlue, 1f /* alpha */);
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    }
+    int drawn = 0;
+    for (int i = 0; i < count; i++) {
+      final VideoFrame frame = drawFrames[i];
+      if (frame == null) {
+        continue;
+      }
+      final Rect rect = drawRects[i];
+      // Crop the frame to the aspect ratio of the tile.
+      final float frameAspectRatio = frame.getRotatedWidth() / (float) frame.getRotatedHeight();
+      final float tileAspectRatio = rect.width() / (float) rect.height();
+      final float scaleX = frameAspectRatio > tileAspectRatio
+          ? tileAspectRatio / frameAspectRatio
+          : 1f;
+      final float scaleY = frameAspectRatio > tileAspectRatio
+          ? 1f
+          : frameAspectRatio / tileAspectRatio;
+      drawMatrix.reset();
+      drawMatrix.preTranslate(0.5f, 0.5f);
+      drawMatrix.preScale(drawMirrors[i] ? -1f : 1f, 1f);
+      drawMatrix.preScale(scaleX, scaleY);
+      drawMatrix.preTranslate(-0.5f, -0.5f);
+      // The viewport counts from the bottom left.
+      frameDrawer.drawFrame(frame, drawer, drawMatrix, rect.left, height - rect.bottom,
+          rect.width(), rect.height());
+      drawn++;
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    if (drawn > 0) {
+      synchronized (lock) {
+        for (int i = 0; i < count; i++) {
+          if (drawFrames[i] != null) {
+            drawTiles[i].framesDrawn++;
+          }
+        }
+      }
+    } else if (!redraw) {
+      return false;
+    }
+
+    drawer.drawRgb(composition.getTextureId(), IDENTITY_MATRIX, width, height, 0 /* viewportX */,
+        0 /* viewportY */, width, height);
+    eglBase.swapBuffers();
+    return true;
+  }
+}
@@ -37,6 +37,8 @@ class EglBase14Impl implements EglBase14 {
   @Nullable private EGLConfig eglConfig;
   private EGLDisplay eglDisplay;
   private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+  // False for a surface of the context of another EglBase14Impl; see EglBase14Impl(EglBase14Impl).
+  private final boolean ownsContext;
 
   // EGL 1.4 is supported from API 17. But EGLExt that is used for setting presentation
   // time stamp on a surface is supported from 18 so we require 18.
@@ -74,6 +76,17 @@ class EglBase14Impl implements EglBase14 {
     eglDisplay = getEglDisplay();
     eglConfig = getEglConfig(eglDisplay, configAttributes);
     eglContext = createEglContext(sharedContext, eglDisplay, eglConfig);
+    ownsContext = true;
+  }
+
+  // Create an instance with its own surface on the context of |contextOwner|, which must outlive
+  // it. Releasing it only releases the surface.
+  EglBase14Impl(EglBase14Impl contextOwner) {
+    contextOwner.checkIsNotReleased();
+    eglDisplay = contextOwner.eglDisplay;
+    eglConfig = contextOwner.eglConfig;
+    eglContext = contextOwner.eglContext;
+    ownsContext = false;
   }
 
   // Create EGLSurface from the Android Surface.
@@ -167,6 +180,12 @@ class EglBase14Impl implements EglBase14 {
   public void release() {
     checkIsNotReleased();
     releaseSurface();
+    if (!ownsContext) {
+      eglContext = EGL14.EGL_NO_CONTEXT;
+      eglDisplay = EGL14.EGL_NO_DISPLAY;
+      eglConfig = null;
+      return;
+    }
     detachCurrent();
     EGL14.eglDestroyContext(eglDisplay, eglContext);
     EGL14.eglReleaseThread();